@@ -0,0 +1,64 @@
+package no.novari.qliktosharepoint.cache;
+
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only set of member ids backed by a compressed bitmap of {@link UserOrdinals}. The bitmap must not be
+ * modified once wrapped.
+ */
+public final class BitmapMemberSet extends AbstractSet<String> {
+
+    private final RoaringBitmap bitmap;
+    private final UserOrdinals ordinals;
+
+    BitmapMemberSet(RoaringBitmap bitmap, UserOrdinals ordinals) {
+        this.bitmap = bitmap;
+        this.ordinals = ordinals;
+    }
+
+    RoaringBitmap bitmap() {
+        return bitmap;
+    }
+
+    UserOrdinals ordinals() {
+        return ordinals;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String id)) return false;
+        int ordinal = ordinals.find(id);
+        return ordinal >= 0 && bitmap.contains(ordinal);
+    }
+
+    @Override
+    public int size() {
+        return bitmap.getCardinality();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        IntIterator it = bitmap.getIntIterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!it.hasNext()) throw new NoSuchElementException();
+                return ordinals.idOf(it.next());
+            }
+        };
+    }
+
+    public long sizeInBytes() {
+        return bitmap.getLongSizeInBytes();
+    }
+}
@@ -0,0 +1,54 @@
+package no.novari.qliktosharepoint.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit/miss counters for the {@link EntraCache} lookups, one pair per cached map.
+ */
+public final class CacheStats {
+
+    public enum Lookup {
+        GUESTS("guests"),
+        GROUP_IDS("groupIds"),
+        GROUP_MEMBERS("groupMembers"),
+        MEMBERSHIP("membership"),
+        INVITE_FAILURES("inviteFailures");
+
+        private final String tag;
+
+        Lookup(String tag) {
+            this.tag = tag;
+        }
+
+        public String tag() {
+            return tag;
+        }
+    }
+
+    private final LongAdder[] hits = newAdders();
+    private final LongAdder[] misses = newAdders();
+
+    <T> T record(Lookup lookup, T result) {
+        (result != null ? hits : misses)[lookup.ordinal()].increment();
+        return result;
+    }
+
+    boolean record(Lookup lookup, boolean hit) {
+        (hit ? hits : misses)[lookup.ordinal()].increment();
+        return hit;
+    }
+
+    public long hits(Lookup lookup) {
+        return hits[lookup.ordinal()].sum();
+    }
+
+    public long misses(Lookup lookup) {
+        return misses[lookup.ordinal()].sum();
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[Lookup.values().length];
+        for (int i = 0; i < adders.length; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+}
@@ -0,0 +1,346 @@
+package no.novari.qliktosharepoint.cache;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread-safe set of Entra object ids. Canonical lowercase UUIDs are stored as two {@code long}s in open-addressing
+ * arrays (linear probing, backward-shift deletion), about 27 bytes per member at the maximum load factor instead of
+ * the 100+ bytes a 36-char {@code String} costs in a {@code HashSet}. Anything else falls back to a concurrent
+ * string set.
+ * <p>
+ * {@link #contains(Object)} is an optimistic read and does not allocate. Writers take an exclusive lock.
+ * Iterators work on a copy taken under a read lock and decode ids back to strings lazily.
+ */
+public final class CompactMemberSet extends AbstractSet<String> {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final double MAX_LOAD = 0.6;
+
+    private final StampedLock lock = new StampedLock();
+
+    private long[] hi;
+    private long[] lo;
+    private int uuidCount;
+    private boolean containsNil;
+    private volatile Set<String> others;
+
+    public CompactMemberSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public CompactMemberSet(int expectedSize) {
+        int capacity = capacityFor(expectedSize);
+        this.hi = new long[capacity];
+        this.lo = new long[capacity];
+    }
+
+    public static CompactMemberSet copyOf(Collection<String> ids) {
+        if (ids instanceof CompactMemberSet compact) return compact.copy();
+        CompactMemberSet set = new CompactMemberSet(ids.size());
+        for (String id : ids) {
+            if (id != null) set.add(id);
+        }
+        return set;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String id)) return false;
+        if (!isCanonicalUuid(id)) {
+            Set<String> fallback = others;
+            return fallback != null && fallback.contains(id);
+        }
+
+        long h = hiBits(id);
+        long l = loBits(id);
+
+        long stamp = lock.tryOptimisticRead();
+        boolean found = containsBits(h, l);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = containsBits(h, l);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public boolean add(String id) {
+        if (id == null) throw new NullPointerException("id");
+        if (!isCanonicalUuid(id)) return othersForWrite().add(id);
+
+        long h = hiBits(id);
+        long l = loBits(id);
+
+        long stamp = lock.writeLock();
+        try {
+            if (h == 0 && l == 0) {
+                if (containsNil) return false;
+                containsNil = true;
+                return true;
+            }
+            if (indexOf(h, l) >= 0) return false;
+            if (uuidCount + 1 > hi.length * MAX_LOAD) resize(hi.length << 1);
+            insert(h, l);
+            uuidCount++;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String id)) return false;
+        if (!isCanonicalUuid(id)) {
+            Set<String> fallback = others;
+            return fallback != null && fallback.remove(id);
+        }
+
+        long h = hiBits(id);
+        long l = loBits(id);
+
+        long stamp = lock.writeLock();
+        try {
+            if (h == 0 && l == 0) {
+                boolean had = containsNil;
+                containsNil = false;
+                return had;
+            }
+            int idx = indexOf(h, l);
+            if (idx < 0) return false;
+            deleteAt(idx);
+            uuidCount--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            Set<String> fallback = others;
+            return uuidCount + (containsNil ? 1 : 0) + (fallback == null ? 0 : fallback.size());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        long[] hiCopy;
+        long[] loCopy;
+        boolean nil;
+
+        long stamp = lock.readLock();
+        try {
+            hiCopy = hi.clone();
+            loCopy = lo.clone();
+            nil = containsNil;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        Set<String> fallback = others;
+        Iterator<String> rest = fallback == null ? null : fallback.iterator();
+
+        return new Iterator<>() {
+            private int slot = 0;
+            private boolean nilPending = nil;
+
+            @Override
+            public boolean hasNext() {
+                while (slot < hiCopy.length && hiCopy[slot] == 0 && loCopy[slot] == 0) slot++;
+                return slot < hiCopy.length || nilPending || (rest != null && rest.hasNext());
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (slot < hiCopy.length) {
+                    String id = new UUID(hiCopy[slot], loCopy[slot]).toString();
+                    slot++;
+                    return id;
+                }
+                if (nilPending) {
+                    nilPending = false;
+                    return new UUID(0, 0).toString();
+                }
+                return rest.next();
+            }
+        };
+    }
+
+    /**
+     * Rough retained size in bytes: the two slot arrays plus the fallback strings.
+     */
+    public long estimatedHeapBytes() {
+        long stamp = lock.readLock();
+        try {
+            long bytes = 64 + 2L * (16 + 8L * hi.length);
+            Set<String> fallback = others;
+            if (fallback != null) bytes += 112L * fallback.size();
+            return bytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private CompactMemberSet copy() {
+        long stamp = lock.readLock();
+        try {
+            CompactMemberSet c = new CompactMemberSet(MIN_CAPACITY);
+            c.hi = hi.clone();
+            c.lo = lo.clone();
+            c.uuidCount = uuidCount;
+            c.containsNil = containsNil;
+            Set<String> fallback = others;
+            if (fallback != null) c.othersForWrite().addAll(fallback);
+            return c;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Set<String> othersForWrite() {
+        Set<String> fallback = others;
+        if (fallback == null) {
+            synchronized (this) {
+                fallback = others;
+                if (fallback == null) {
+                    fallback = ConcurrentHashMap.newKeySet();
+                    others = fallback;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    private boolean containsBits(long h, long l) {
+        if (h == 0 && l == 0) return containsNil;
+
+        long[] hs = hi;
+        long[] ls = lo;
+        if (hs.length != ls.length) return false;
+
+        int mask = hs.length - 1;
+        int idx = home(h, l, mask);
+        for (int probes = 0; probes < hs.length; probes++) {
+            long sh = hs[idx];
+            long sl = ls[idx];
+            if (sh == 0 && sl == 0) return false;
+            if (sh == h && sl == l) return true;
+            idx = (idx + 1) & mask;
+        }
+        return false;
+    }
+
+    private int indexOf(long h, long l) {
+        int mask = hi.length - 1;
+        int idx = home(h, l, mask);
+        while (hi[idx] != 0 || lo[idx] != 0) {
+            if (hi[idx] == h && lo[idx] == l) return idx;
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long h, long l) {
+        int mask = hi.length - 1;
+        int idx = home(h, l, mask);
+        while (hi[idx] != 0 || lo[idx] != 0) idx = (idx + 1) & mask;
+        hi[idx] = h;
+        lo[idx] = l;
+    }
+
+    private void deleteAt(int idx) {
+        int mask = hi.length - 1;
+        int i = idx;
+        int j = idx;
+        while (true) {
+            j = (j + 1) & mask;
+            if (hi[j] == 0 && lo[j] == 0) break;
+            int k = home(hi[j], lo[j], mask);
+            boolean inRange = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (inRange) continue;
+            hi[i] = hi[j];
+            lo[i] = lo[j];
+            i = j;
+        }
+        hi[i] = 0;
+        lo[i] = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldHi = hi;
+        long[] oldLo = lo;
+        hi = new long[capacity];
+        lo = new long[capacity];
+        for (int i = 0; i < oldHi.length; i++) {
+            if (oldHi[i] != 0 || oldLo[i] != 0) insert(oldHi[i], oldLo[i]);
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int needed = (int) Math.ceil(Math.max(expectedSize, 1) / MAX_LOAD);
+        int capacity = needed <= 1 ? 1 : Integer.highestOneBit(needed - 1) << 1;
+        return Math.max(MIN_CAPACITY, capacity);
+    }
+
+    private static int home(long h, long l, int mask) {
+        long x = (h * 0x9E3779B97F4A7C15L) ^ l;
+        x ^= (x >>> 32);
+        x *= 0xC2B2AE3D27D4EB4FL;
+        x ^= (x >>> 29);
+        return (int) x & mask;
+    }
+
+    static boolean isCanonicalUuid(String s) {
+        if (s.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = s.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (hexValue(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long hiBits(String s) {
+        long v = 0;
+        for (int i = 0; i < 18; i++) {
+            if (i == 8 || i == 13) continue;
+            v = (v << 4) | hexValue(s.charAt(i));
+        }
+        return v;
+    }
+
+    static long loBits(String s) {
+        long v = 0;
+        for (int i = 19; i < 36; i++) {
+            if (i == 23) continue;
+            v = (v << 4) | hexValue(s.charAt(i));
+        }
+        return v;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+}
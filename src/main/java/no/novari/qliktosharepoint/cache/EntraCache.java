@@ -1,98 +1,669 @@
 package no.novari.qliktosharepoint.cache;
 
-import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
+/**
+ * Cache of Entra guests, group ids and group memberships.
+ * <p>
+ * Readers see one immutable {@link Snapshot} plus the deltas written since it was published. A refresh builds the
+ * next snapshot off to the side and publishes it with a single reference swap, so readers never block and never see
+ * a half-built cache. Deltas written while a refresh is running are recorded twice, on the live state and on the
+ * pending one, and carried over into the published state so they are not lost.
+ * <p>
+ * Snapshot memberships are compressed bitmaps over dense {@link UserOrdinals}, so desired-vs-current diffs are
+ * AND-NOT operations. Deltas are held in {@link CompactMemberSet}s.
+ * <p>
+ * Failed guest invitations are kept in a negative cache next to the snapshot, so a refresh does not reset their
+ * backoff.
+ */
 @Slf4j
 @Component
 public class EntraCache {
 
-    private final Map<String, String> guestIdByEmail = new ConcurrentHashMap<>();
-    private final Map<String, Set<String>> groupMemberIds = new ConcurrentHashMap<>();
-    private final Map<String, String> groupIdByDisplayName = new ConcurrentHashMap<>();
+    private static final int MEMBER_STRIPES = 64;
+    // map node + key string + id string, for ~30 char emails and 36 char object ids
+    private static final long GUEST_ENTRY_BYTES = 200;
+    private static final long INVITE_FAILURE_BYTES = 400;
 
-    @Getter
-    private volatile Instant lastRefresh = Instant.EPOCH;
+    private final UserOrdinals ordinals = new UserOrdinals();
+    private final AtomicReference<State> state = new AtomicReference<>(new State(Snapshot.EMPTY, new Deltas()));
+    private volatile Deltas refreshDeltas;
+    private final AtomicLong modCount = new AtomicLong();
+    private final Object[] memberStripes = newStripes();
+    private final CacheStats stats = new CacheStats();
+    private final Map<String, InviteFailure> inviteFailuresByEmail = new ConcurrentHashMap<>();
+    private final Map<String, Instant> guestVerifiedAt = new ConcurrentHashMap<>();
 
-    public void clearAll() {
-        guestIdByEmail.clear();
-        groupMemberIds.clear();
-        groupIdByDisplayName.clear();
+    public record Snapshot(long version,
+                           Instant builtAt,
+                           Map<String, String> guestIdByEmail,
+                           Map<String, String> groupIdByDisplayName,
+                           Map<String, BitmapMemberSet> groupMemberIds) {
+
+        static final Snapshot EMPTY = new Snapshot(0, Instant.EPOCH, Map.of(), Map.of(), Map.of());
+    }
+
+    private record State(Snapshot snapshot, Deltas deltas) {
+    }
+
+    private static final class Deltas {
+        final Map<String, String> guestIdByEmail = new ConcurrentHashMap<>();
+        final Set<String> removedGuests = ConcurrentHashMap.newKeySet();
+        final Map<String, String> groupIdByDisplayName = new ConcurrentHashMap<>();
+        final Map<String, CompactMemberSet> addedMembers = new ConcurrentHashMap<>();
+        final Map<String, CompactMemberSet> removedMembers = new ConcurrentHashMap<>();
+
+        // Callers hold the member stripe for (groupId, userId). The set being entered is updated before the other is
+        // cleared, so lock-free readers see the new state or the old one, never neither.
+        void addMember(String groupId, String userId) {
+            addedMembers.computeIfAbsent(groupId, _ -> new CompactMemberSet()).add(userId);
+            Set<String> removed = removedMembers.get(groupId);
+            if (removed != null) removed.remove(userId);
+        }
+
+        void removeMember(String groupId, String userId) {
+            removedMembers.computeIfAbsent(groupId, _ -> new CompactMemberSet()).add(userId);
+            Set<String> added = addedMembers.get(groupId);
+            if (added != null) added.remove(userId);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return state.get().snapshot();
+    }
+
+    public long getVersion() {
+        return snapshot().version();
+    }
+
+    public Instant getLastRefresh() {
+        return snapshot().builtAt();
+    }
+
+    /**
+     * Starts recording deltas for the snapshot that is about to be built. Must be called before the refresh starts
+     * reading from Graph.
+     */
+    public synchronized void beginRefresh() {
+        refreshDeltas = new Deltas();
     }
 
-    public synchronized void replaceAll(
-            Map<String, String> guestsByEmail,
-            Map<String, String> groupIdByName,
-            Map<String, Set<String>> membersByGroupIdOrNull
-    ) {
-        guestIdByEmail.clear();
+    public synchronized void abortRefresh() {
+        refreshDeltas = null;
+    }
+
+    /**
+     * Publishes a freshly built snapshot. Deltas recorded since {@link #beginRefresh()} stay applied on top of it.
+     */
+    public synchronized Snapshot publish(Map<String, String> guestsByEmail,
+                                         Map<String, String> groupIdByName,
+                                         Map<String, ? extends Set<String>> membersByGroupId) {
+        Deltas carried = refreshDeltas != null ? refreshDeltas : new Deltas();
+        Snapshot next = install(snapshot().version() + 1, Instant.now(), guestsByEmail, groupIdByName,
+                membersByGroupId, carried);
+        refreshDeltas = null;
+        guestVerifiedAt.keySet().removeIf(e ->
+                !next.guestIdByEmail().containsKey(e) && !carried.guestIdByEmail.containsKey(e));
+        return next;
+    }
+
+    /**
+     * Replaces the members of one group with a fresh read from Graph and drops the group's deltas, without waiting
+     * for a full refresh. Skipped while a full refresh is running, since that will replace the group anyway. Writes
+     * racing with the targeted read may be dropped; the next sync re-plans them and the Graph writes are idempotent.
+     */
+    public synchronized boolean replaceGroupMembers(String groupId, Collection<String> memberIds) {
+        if (groupId == null || groupId.isBlank() || memberIds == null || refreshDeltas != null) return false;
+
+        State s = state.get();
+        Snapshot base = s.snapshot();
+        Map<String, BitmapMemberSet> members = new HashMap<>(base.groupMemberIds());
+        members.put(groupId, new BitmapMemberSet(toBitmap(memberIds), ordinals));
+
+        Snapshot next = new Snapshot(
+                base.version() + 1,
+                base.builtAt(),
+                base.guestIdByEmail(),
+                base.groupIdByDisplayName(),
+                Map.copyOf(members)
+        );
+
+        // swap first so readers see the new base with the old deltas rather than the old base without them
+        state.set(new State(next, s.deltas()));
+        s.deltas().addedMembers.remove(groupId);
+        s.deltas().removedMembers.remove(groupId);
+        modCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Installs a previously persisted snapshot, keeping its version and build time. Only applies to a cache that
+     * has not been published yet; a restore never replaces data fetched from Graph.
+     */
+    public synchronized boolean restore(long version,
+                                        Instant builtAt,
+                                        Map<String, String> guestsByEmail,
+                                        Map<String, String> groupIdByName,
+                                        Map<String, ? extends Set<String>> membersByGroupId) {
+        if (snapshot().version() != 0 || version <= 0) return false;
+        install(version, builtAt, guestsByEmail, groupIdByName, membersByGroupId, state.get().deltas());
+        return true;
+    }
+
+    /**
+     * The snapshot with its deltas folded in, as of now. Member sets share bitmaps with the snapshot where a group
+     * has no deltas.
+     */
+    public Snapshot current() {
+        State s = state.get();
+        Snapshot base = s.snapshot();
+        Deltas deltas = s.deltas();
+
+        Map<String, String> guests = mergedGuests(base, deltas);
+        Map<String, String> groupIds = new HashMap<>(base.groupIdByDisplayName());
+        groupIds.putAll(deltas.groupIdByDisplayName);
+
+        Set<String> groupIdsWithMembers = new HashSet<>(base.groupMemberIds().keySet());
+        groupIdsWithMembers.addAll(deltas.addedMembers.keySet());
+        Map<String, BitmapMemberSet> members = new HashMap<>();
+        for (String groupId : groupIdsWithMembers) {
+            members.put(groupId, new BitmapMemberSet(mergedBitmap(s, groupId), ordinals));
+        }
+
+        return new Snapshot(base.version(), base.builtAt(), Map.copyOf(guests), Map.copyOf(groupIds), Map.copyOf(members));
+    }
+
+    /**
+     * All cached guests by email, snapshot and deltas merged.
+     */
+    public Map<String, String> getGuests() {
+        State s = state.get();
+        return Collections.unmodifiableMap(mergedGuests(s.snapshot(), s.deltas()));
+    }
+
+    /**
+     * Visits every cached guest, snapshot and deltas merged, without copying them the way {@link #getGuests()} does.
+     */
+    public void forEachGuest(BiConsumer<String, String> action) {
+        State s = state.get();
+        Deltas d = s.deltas();
+        s.snapshot().guestIdByEmail().forEach((email, userId) -> {
+            if (!d.removedGuests.contains(email) && !d.guestIdByEmail.containsKey(email)) action.accept(email, userId);
+        });
+        d.guestIdByEmail.forEach(action);
+    }
+
+    private static Map<String, String> mergedGuests(Snapshot base, Deltas deltas) {
+        Map<String, String> guests = new HashMap<>(base.guestIdByEmail());
+        guests.keySet().removeAll(deltas.removedGuests);
+        guests.putAll(deltas.guestIdByEmail);
+        return guests;
+    }
+
+    public CacheStats stats() {
+        return stats;
+    }
+
+    /**
+     * Size of {@link #getGuests()}, counted in O(deltas) without building the merged map.
+     */
+    public int guestCount() {
+        State s = state.get();
+        Map<String, String> base = s.snapshot().guestIdByEmail();
+        Map<String, String> added = s.deltas().guestIdByEmail;
+
+        int count = base.size() + added.size();
+        for (String email : added.keySet()) {
+            if (base.containsKey(email)) count--;
+        }
+        for (String email : s.deltas().removedGuests) {
+            if (base.containsKey(email) && !added.containsKey(email)) count--;
+        }
+        return Math.max(0, count);
+    }
+
+    public int groupCount() {
+        State s = state.get();
+        Set<String> groupIds = new HashSet<>(s.snapshot().groupMemberIds().keySet());
+        groupIds.addAll(s.deltas().addedMembers.keySet());
+        return groupIds.size();
+    }
+
+    /**
+     * Memberships in the merged view, counted from the snapshot cardinalities in O(deltas) without cloning bitmaps
+     * or assigning ordinals. Writes during a refresh go to the live deltas as well, so they are included.
+     */
+    public long membershipCount() {
+        State s = state.get();
+        Map<String, BitmapMemberSet> base = s.snapshot().groupMemberIds();
+        Deltas deltas = s.deltas();
+
+        long count = 0;
+        for (BitmapMemberSet members : base.values()) count += members.size();
+        for (Map.Entry<String, CompactMemberSet> e : deltas.addedMembers.entrySet()) {
+            BitmapMemberSet members = base.get(e.getKey());
+            for (String userId : e.getValue()) {
+                if (members == null || !members.contains(userId)) count++;
+            }
+        }
+        for (Map.Entry<String, CompactMemberSet> e : deltas.removedMembers.entrySet()) {
+            BitmapMemberSet members = base.get(e.getKey());
+            if (members == null) continue;
+            Set<String> added = deltas.addedMembers.get(e.getKey());
+            for (String userId : e.getValue()) {
+                if (members.contains(userId) && (added == null || !added.contains(userId))) count--;
+            }
+        }
+        return Math.max(0, count);
+    }
+
+    /**
+     * Rough retained heap of the cache: member bitmaps and deltas measured, maps and ordinals estimated per entry.
+     */
+    public long estimatedHeapBytes() {
+        State s = state.get();
+        Snapshot snapshot = s.snapshot();
+        Deltas deltas = s.deltas();
+
+        long bytes = ordinals.estimatedHeapBytes();
+        bytes += (long) (snapshot.guestIdByEmail().size() + deltas.guestIdByEmail.size()) * GUEST_ENTRY_BYTES;
+        bytes += (long) (snapshot.groupIdByDisplayName().size() + deltas.groupIdByDisplayName.size()) * GUEST_ENTRY_BYTES;
+        for (BitmapMemberSet members : snapshot.groupMemberIds().values()) bytes += members.sizeInBytes();
+        for (CompactMemberSet added : deltas.addedMembers.values()) bytes += added.estimatedHeapBytes();
+        for (CompactMemberSet removed : deltas.removedMembers.values()) bytes += removed.estimatedHeapBytes();
+        bytes += (long) inviteFailuresByEmail.size() * INVITE_FAILURE_BYTES;
+        return bytes;
+    }
+
+    /**
+     * Incremented on every write to the cache; lets callers skip work when nothing has changed.
+     */
+    public long getModCount() {
+        return modCount.get();
+    }
+
+    private Snapshot install(long version,
+                             Instant builtAt,
+                             Map<String, String> guestsByEmail,
+                             Map<String, String> groupIdByName,
+                             Map<String, ? extends Set<String>> membersByGroupId,
+                             Deltas carried) {
+        Map<String, String> guests = new HashMap<>();
         if (guestsByEmail != null) {
-            guestsByEmail.forEach(this::putGuest);
+            guestsByEmail.forEach((email, userId) -> {
+                String e = normalizeEmail(email);
+                if (e != null && userId != null) guests.put(e, userId);
+            });
         }
 
-        groupIdByDisplayName.clear();
+        Map<String, String> groupIds = new HashMap<>();
         if (groupIdByName != null) {
-            groupIdByName.forEach(this::putGroupIdByDisplayName);
+            groupIdByName.forEach((name, groupId) -> {
+                String key = name == null ? null : name.trim();
+                if (key != null && !key.isEmpty() && groupId != null) groupIds.put(key, groupId);
+            });
         }
 
-        if (membersByGroupIdOrNull != null) {
-            groupMemberIds.clear();
-            membersByGroupIdOrNull.forEach(this::setGroupMembers);
+        Map<String, BitmapMemberSet> members = new HashMap<>();
+        if (membersByGroupId != null) {
+            membersByGroupId.forEach((groupId, memberIds) -> {
+                if (groupId != null && !groupId.isBlank() && memberIds != null) {
+                    members.put(groupId, memberIds instanceof BitmapMemberSet bitmapSet && bitmapSet.ordinals() == ordinals
+                            ? bitmapSet
+                            : new BitmapMemberSet(toBitmap(memberIds), ordinals));
+                }
+            });
         }
+
+        Snapshot next = new Snapshot(
+                version,
+                builtAt,
+                Map.copyOf(guests),
+                Map.copyOf(groupIds),
+                Map.copyOf(members)
+        );
+
+        state.set(new State(next, carried));
+        modCount.incrementAndGet();
+        return next;
     }
 
     public void putGroupIdByDisplayName(String displayName, String groupId) {
-        if (displayName == null) return;
+        if (displayName == null || groupId == null) return;
         String key = displayName.trim();
         if (key.isEmpty()) return;
-        groupIdByDisplayName.put(key, groupId);
+        apply(d -> d.groupIdByDisplayName.put(key, groupId));
     }
 
     public String getGroupIdByDisplayName(String displayName) {
         if (displayName == null) return null;
-        return groupIdByDisplayName.get(displayName.trim());
+        String key = displayName.trim();
+        State s = state.get();
+        String groupId = s.deltas().groupIdByDisplayName.get(key);
+        return stats.record(CacheStats.Lookup.GROUP_IDS,
+                groupId != null ? groupId : s.snapshot().groupIdByDisplayName().get(key));
     }
 
+    /**
+     * Adds or confirms a guest. Confirming the id the cache already has only refreshes its verification time, so it
+     * does not count as a modification.
+     */
     public void putGuest(String email, String userId) {
-        if (email == null || userId == null) return;
-        String e = email.trim().toLowerCase();
-        if (e.isBlank()) return;
-        guestIdByEmail.put(e, userId);
+        if (userId == null) return;
+        String e = normalizeEmail(email);
+        if (e == null) return;
+        if (!userId.equals(lookupGuest(e))) {
+            apply(d -> {
+                d.removedGuests.remove(e);
+                d.guestIdByEmail.put(e, userId);
+            });
+        }
+        guestVerifiedAt.put(e, Instant.now());
+        inviteFailuresByEmail.remove(e);
+    }
+
+    /**
+     * Forgets a guest, e.g. one that no longer exists in Entra.
+     */
+    public void evictGuest(String email) {
+        String e = normalizeEmail(email);
+        if (e == null) return;
+        apply(d -> {
+            d.guestIdByEmail.remove(e);
+            d.removedGuests.add(e);
+        });
+        guestVerifiedAt.remove(e);
+    }
+
+    /**
+     * Pins the verification time of a guest so it survives the next publish, which would otherwise make snapshot
+     * entries look verified at the new build time.
+     */
+    void pinGuestVerifiedAt(String email, Instant verifiedAt) {
+        guestVerifiedAt.putIfAbsent(email, verifiedAt);
+    }
+
+    /**
+     * When the guest entry was last confirmed against Entra: the last {@link #putGuest} for it, otherwise the build
+     * time of the snapshot it came with. Null if the email is not cached.
+     */
+    public Instant getGuestVerifiedAt(String email) {
+        String e = normalizeEmail(email);
+        if (e == null || lookupGuest(e) == null) return null;
+        Instant verifiedAt = guestVerifiedAt.get(e);
+        return verifiedAt != null ? verifiedAt : snapshot().builtAt();
     }
 
     public String getGuestIdByEmail(String email) {
-        if (email == null) return null;
-        return guestIdByEmail.get(email.trim().toLowerCase());
+        String e = normalizeEmail(email);
+        if (e == null) return null;
+        return stats.record(CacheStats.Lookup.GUESTS, lookupGuest(e));
     }
 
-    public void setGroupMembers(String groupId, Set<String> memberIds) {
-        if (groupId == null || groupId.isBlank()) return;
-        groupMemberIds.put(groupId, memberIds);
+    private String lookupGuest(String e) {
+        State s = state.get();
+        String userId = s.deltas().guestIdByEmail.get(e);
+        if (userId != null) return userId;
+        return s.deltas().removedGuests.contains(e) ? null : s.snapshot().guestIdByEmail().get(e);
     }
 
+    /**
+     * Current members of the group as a read-only view over the snapshot and its deltas. The view is weakly
+     * consistent: it never throws on concurrent updates and reflects them on a best-effort basis.
+     */
     public Set<String> getGroupMembers(String groupId) {
         if (groupId == null || groupId.isBlank()) return null;
-        return groupMemberIds.get(groupId);
+        State s = state.get();
+
+        Set<String> base = s.snapshot().groupMemberIds().get(groupId);
+        Set<String> added = s.deltas().addedMembers.get(groupId);
+        Set<String> removed = s.deltas().removedMembers.get(groupId);
+
+        if (!stats.record(CacheStats.Lookup.GROUP_MEMBERS, base != null || added != null)) return null;
+        if (added == null && removed == null) return base;
+        return new MemberView(base == null ? Set.of() : base, added == null ? Set.of() : added, removed == null ? Set.of() : removed);
+    }
+
+    public boolean isMember(String groupId, String userId) {
+        if (groupId == null || userId == null) return false;
+        State s = state.get();
+
+        Set<String> added = s.deltas().addedMembers.get(groupId);
+        if (added != null && added.contains(userId)) return stats.record(CacheStats.Lookup.MEMBERSHIP, true);
+        Set<String> removed = s.deltas().removedMembers.get(groupId);
+        if (removed != null && removed.contains(userId)) return stats.record(CacheStats.Lookup.MEMBERSHIP, false);
+
+        BitmapMemberSet base = s.snapshot().groupMemberIds().get(groupId);
+        return stats.record(CacheStats.Lookup.MEMBERSHIP, base != null && base.contains(userId));
+    }
+
+    /**
+     * Current members of the group as user ordinals, snapshot and deltas merged. The result may be shared with the
+     * snapshot and must be treated as read-only; combine it with the static {@link RoaringBitmap} operations.
+     */
+    public RoaringBitmap memberBitmap(String groupId) {
+        State s = state.get();
+        stats.record(CacheStats.Lookup.GROUP_MEMBERS,
+                s.snapshot().groupMemberIds().containsKey(groupId) || s.deltas().addedMembers.containsKey(groupId));
+        return mergedBitmap(s, groupId);
+    }
+
+    private RoaringBitmap mergedBitmap(State s, String groupId) {
+        BitmapMemberSet base = s.snapshot().groupMemberIds().get(groupId);
+        Set<String> added = s.deltas().addedMembers.get(groupId);
+        Set<String> removed = s.deltas().removedMembers.get(groupId);
+
+        RoaringBitmap current = base == null ? new RoaringBitmap() : base.bitmap();
+        if ((added == null || added.isEmpty()) && (removed == null || removed.isEmpty())) return current;
+
+        current = current.clone();
+        if (added != null) {
+            for (String userId : added) current.add(ordinals.assign(userId));
+        }
+        if (removed != null) {
+            for (String userId : removed) {
+                int ordinal = ordinals.find(userId);
+                if (ordinal >= 0) current.remove(ordinal);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Bitmap of the given user ids, assigning ordinals to ids not seen before.
+     */
+    public RoaringBitmap toBitmap(Collection<String> userIds) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (String userId : userIds) {
+            if (userId != null && !userId.isBlank()) bitmap.add(ordinals.assign(userId));
+        }
+        bitmap.runOptimize();
+        return bitmap;
+    }
+
+    /**
+     * Ordinal of the user id in the member bitmaps, assigning one if the id has not been seen before.
+     */
+    public int ordinalOf(String userId) {
+        return ordinals.assign(userId);
+    }
+
+    public String userIdOf(int ordinal) {
+        return ordinals.idOf(ordinal);
+    }
+
+    /**
+     * Records a failed guest invitation. The email is skipped until the backoff for its reason has passed; the
+     * backoff doubles with each consecutive failure, up to {@link InviteFailureReason#getMaxBackoff()}.
+     */
+    public InviteFailure recordInviteFailure(String email, InviteFailureReason reason, String message) {
+        String e = normalizeEmail(email);
+        if (e == null || reason == null) return null;
+        Instant now = Instant.now();
+
+        return inviteFailuresByEmail.compute(e, (_, previous) -> {
+            int failures = previous == null ? 1 : previous.failures() + 1;
+            Duration backoff = reason.getBaseBackoff().multipliedBy(1L << Math.min(16, failures - 1));
+            if (backoff.compareTo(reason.getMaxBackoff()) > 0) backoff = reason.getMaxBackoff();
+            return new InviteFailure(e, reason, failures, now, now.plus(backoff), message);
+        });
+    }
+
+    /**
+     * @return the failure that currently blocks inviting the email, or null if it may be invited
+     */
+    public InviteFailure getActiveInviteFailure(String email) {
+        String e = normalizeEmail(email);
+        if (e == null) return null;
+        InviteFailure failure = inviteFailuresByEmail.get(e);
+        return stats.record(CacheStats.Lookup.INVITE_FAILURES,
+                failure != null && failure.isActive(Instant.now()) ? failure : null);
+    }
+
+    public List<InviteFailure> getInviteFailures() {
+        return inviteFailuresByEmail.values().stream()
+                .sorted(Comparator.comparing(InviteFailure::retryAfter).reversed())
+                .toList();
+    }
+
+    public int inviteFailureCount() {
+        return inviteFailuresByEmail.size();
+    }
+
+    public boolean clearInviteFailure(String email) {
+        String e = normalizeEmail(email);
+        return e != null && inviteFailuresByEmail.remove(e) != null;
+    }
+
+    public int clearInviteFailures() {
+        int cleared = inviteFailuresByEmail.size();
+        inviteFailuresByEmail.clear();
+        return cleared;
     }
 
     public void addMemberToGroup(String groupId, String userId) {
         if (groupId == null || groupId.isBlank() || userId == null || userId.isBlank()) return;
-        groupMemberIds.computeIfAbsent(groupId, _ -> ConcurrentHashMap.newKeySet()).add(userId);
+        synchronized (memberStripe(groupId, userId)) {
+            apply(d -> d.addMember(groupId, userId));
+        }
     }
 
     public void removeMemberFromGroup(String groupId, String userId) {
         if (groupId == null || groupId.isBlank() || userId == null || userId.isBlank()) return;
-        Set<String> set = groupMemberIds.get(groupId);
-        if (set != null) set.remove(userId);
+        synchronized (memberStripe(groupId, userId)) {
+            apply(d -> d.removeMember(groupId, userId));
+        }
+    }
+
+    /**
+     * Writes to the same (group, user) pair touch both the added and the removed set of two Deltas, so they are
+     * serialized on a stripe; writes to different pairs and all reads stay lock-free.
+     */
+    private Object memberStripe(String groupId, String userId) {
+        int h = 31 * groupId.hashCode() + userId.hashCode();
+        return memberStripes[(h ^ (h >>> 16)) & (MEMBER_STRIPES - 1)];
+    }
+
+    private void apply(Consumer<Deltas> change) {
+        // Read the pending deltas before the live state: publish() swaps the state before clearing refreshDeltas,
+        // so a writer racing with publish() always reaches the deltas that end up in the published state.
+        Deltas pending = refreshDeltas;
+        Deltas live = state.get().deltas();
+        change.accept(live);
+        if (pending != null && pending != live) change.accept(pending);
+        modCount.incrementAndGet();
+    }
+
+    private static Object[] newStripes() {
+        Object[] stripes = new Object[MEMBER_STRIPES];
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+        return stripes;
     }
 
-    public void markRefreshed() {
-        lastRefresh = Instant.now();
+    private static String normalizeEmail(String email) {
+        if (email == null) return null;
+        String e = email.trim().toLowerCase();
+        return e.isBlank() ? null : e;
+    }
+
+    private static final class MemberView extends AbstractSet<String> {
+        private final Set<String> base;
+        private final Set<String> added;
+        private final Set<String> removed;
+
+        MemberView(Set<String> base, Set<String> added, Set<String> removed) {
+            this.base = base;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (added.contains(o)) return true;
+            return base.contains(o) && !removed.contains(o);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            Iterator<String> fromBase = base.iterator();
+            Iterator<String> fromAdded = added.iterator();
+
+            return new Iterator<>() {
+                private String next = advance();
+
+                private String advance() {
+                    while (fromBase.hasNext()) {
+                        String id = fromBase.next();
+                        if (!removed.contains(id) || added.contains(id)) return id;
+                    }
+                    while (fromAdded.hasNext()) {
+                        String id = fromAdded.next();
+                        if (!base.contains(id)) return id;
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public String next() {
+                    if (next == null) throw new NoSuchElementException();
+                    String current = next;
+                    next = advance();
+                    return current;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            int n = 0;
+            for (Iterator<String> it = iterator(); it.hasNext(); it.next()) n++;
+            return n;
+        }
     }
 }
@@ -0,0 +1,66 @@
+package no.novari.qliktosharepoint.cache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Publishes {@link EntraCache} hit/miss counters and size gauges to Micrometer, available under
+ * {@code /actuator/metrics/entra.cache.*}.
+ */
+@Component
+@RequiredArgsConstructor
+public class EntraCacheMetrics implements MeterBinder {
+
+    private final EntraCache cache;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CacheStats stats = cache.stats();
+        for (CacheStats.Lookup lookup : CacheStats.Lookup.values()) {
+            FunctionCounter.builder("entra.cache.lookups", stats, s -> s.hits(lookup))
+                    .description("EntraCache lookups")
+                    .tags("map", lookup.tag(), "result", "hit")
+                    .register(registry);
+            FunctionCounter.builder("entra.cache.lookups", stats, s -> s.misses(lookup))
+                    .description("EntraCache lookups")
+                    .tags("map", lookup.tag(), "result", "miss")
+                    .register(registry);
+        }
+
+        Gauge.builder("entra.cache.guests", cache, EntraCache::guestCount)
+                .description("Cached guest users")
+                .register(registry);
+        Gauge.builder("entra.cache.groups", cache, EntraCache::groupCount)
+                .description("Groups with cached members")
+                .register(registry);
+        Gauge.builder("entra.cache.memberships", cache, EntraCache::membershipCount)
+                .description("Cached (group, member) pairs")
+                .register(registry);
+        Gauge.builder("entra.cache.invite.failures", cache, EntraCache::inviteFailureCount)
+                .description("Emails in the guest invitation negative cache")
+                .register(registry);
+        Gauge.builder("entra.cache.version", cache, EntraCache::getVersion)
+                .description("Version of the published snapshot")
+                .register(registry);
+        Gauge.builder("entra.cache.snapshot.age", cache, EntraCacheMetrics::snapshotAgeSeconds)
+                .description("Time since the published snapshot was built")
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("entra.cache.heap.estimated", cache, EntraCache::estimatedHeapBytes)
+                .description("Estimated retained heap of the cache")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    private static double snapshotAgeSeconds(EntraCache cache) {
+        if (cache.getVersion() == 0) return Double.NaN;
+        return Duration.between(cache.getLastRefresh(), Instant.now()).toMillis() / 1000.0;
+    }
+}
@@ -4,16 +4,14 @@ import com.microsoft.graph.models.DirectoryObject;
 import com.microsoft.graph.models.User;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
 import com.microsoft.kiota.ApiException;
-import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import no.novari.qliktosharepoint.config.CacheProperties;
 import no.novari.qliktosharepoint.config.GraphProperties;
-import no.novari.qliktosharepoint.service.GraphGroupService;
-import no.novari.qliktosharepoint.service.UserSyncScheduler;
-import no.novari.qliktosharepoint.service.UserSyncService;
-import org.springframework.scheduling.annotation.Scheduled;
+import no.novari.qliktosharepoint.config.GuestResolutionMode;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
@@ -26,18 +24,18 @@ public class EntraCacheRefresher {
 
     private final GraphServiceClient graph;
     private final GraphProperties graphProperties;
+    private final CacheProperties cacheProperties;
     private final EntraCache cache;
-    private final UserSyncScheduler userSyncScheduler;
 
-  @Scheduled(fixedDelayString = "PT12H")
-  public void refreshCacheScheduled() {
-    try {
-      userSyncScheduler.running.set(true);
-          refreshCache();
+    /**
+     * Entry point for the periodic full refresh, scheduled by {@code UserSyncScheduler} every
+     * {@code novari.cache.refresh-interval} in a gap between sync runs.
+     */
+    public void refreshCacheScheduled() {
+        try {
+            refreshCache();
         } catch (Exception e) {
-          log.error("Failed refreshing Entra cache. Error {}", e.getMessage());
-        } finally {
-          userSyncScheduler.running.set(false);
+            log.error("Failed refreshing Entra cache. Error {}", e.getMessage());
         }
     }
 
@@ -48,8 +46,13 @@ public class EntraCacheRefresher {
         Map<String, Set<String>> membersByGroupId = new HashMap<>();
         Map<String, String> guestIdByEmail = new HashMap<>();
 
+        cache.beginRefresh();
         try {
-            refreshAllGuestsInto(guestIdByEmail);
+            if (cacheProperties.getGuestResolution() == GuestResolutionMode.DEMAND) {
+                retainFreshGuestsInto(guestIdByEmail);
+            } else {
+                refreshAllGuestsInto(guestIdByEmail);
+            }
 
             List<String> groupNames = normalizedGroupNames(graphProperties.getGroupMappings());
             if (groupNames.isEmpty()) {
@@ -72,23 +75,21 @@ public class EntraCacheRefresher {
                         log.debug("Fetched members for groupName={} groupId={} members={}",
                                 groupName, groupId, members.size());
                     } catch (Exception ex) {
-                        log.error("Failed refreshing members for groupName='{}' groupId={}", groupName, groupId, ex);
+                        log.error("Failed refreshing members for groupName='{}' groupId={}. Keeping cached members.",
+                                groupName, groupId, ex);
+                        Set<String> cached = cache.getGroupMembers(groupId);
+                        if (cached != null) membersByGroupId.put(groupId, CompactMemberSet.copyOf(cached));
                     }
                 }
             }
 
-            cache.clearAll();
-
-            guestIdByEmail.forEach(cache::putGuest);
-            membersByGroupId.forEach(cache::setGroupMembers);
-            groupIdByName.forEach(cache::putGroupIdByDisplayName);
-
-            cache.markRefreshed();
-            log.debug("Entra cache refresh finished. lastRefresh={}", cache.getLastRefresh()
+            EntraCache.Snapshot published = cache.publish(guestIdByEmail, groupIdByName, membersByGroupId);
+            log.debug("Entra cache refresh finished. version={} lastRefresh={}", published.version(), published.builtAt()
                     .truncatedTo(ChronoUnit.SECONDS)
                     .atZone(ZoneId.systemDefault()));
 
         } catch (Exception e) {
+            cache.abortRefresh();
             log.error("Entra cache refresh FAILED. Keeping existing cache. Cause={}", e.getMessage(), e);
         }
         log.info(
@@ -101,6 +102,21 @@ public class EntraCacheRefresher {
         );
     }
 
+    /**
+     * Re-reads the members of a single group from Graph, for when the cached members are known to have drifted.
+     */
+    public boolean refreshGroup(String groupId) {
+        try {
+            Set<String> members = fetchGroupMembers(groupId);
+            boolean replaced = cache.replaceGroupMembers(groupId, members);
+            log.info("Targeted refresh groupId={} members={} replaced={}", groupId, members.size(), replaced);
+            return replaced;
+        } catch (Exception e) {
+            log.error("Targeted refresh FAILED groupId={}. Keeping cached members. Cause={}", groupId, e.getMessage());
+            return false;
+        }
+    }
+
     private Optional<String> resolveGroupIdByDisplayName(String displayName) {
         if (displayName == null || displayName.isBlank()) return Optional.empty();
 
@@ -140,7 +156,7 @@ public class EntraCacheRefresher {
 
     private Set<String> fetchGroupMembers(String groupId) {
         String next = null;
-        Set<String> memberIds = new HashSet<>();
+        Set<String> memberIds = new CompactMemberSet();
 
         do {
             var page = (next == null)
@@ -168,6 +184,23 @@ public class EntraCacheRefresher {
         return email.toLowerCase();
     }
 
+    private void retainFreshGuestsInto(Map<String, String> guestIdByEmail) {
+        Instant staleBefore = Instant.now().minus(cacheProperties.getGuestTtl());
+        int expired = 0;
+
+        for (Map.Entry<String, String> e : cache.getGuests().entrySet()) {
+            Instant verifiedAt = cache.getGuestVerifiedAt(e.getKey());
+            if (verifiedAt != null && !verifiedAt.isBefore(staleBefore)) {
+                guestIdByEmail.put(e.getKey(), e.getValue());
+                cache.pinGuestVerifiedAt(e.getKey(), verifiedAt);
+            } else {
+                expired++;
+            }
+        }
+
+        log.info("Demand guest resolution: kept {} cached guests, dropped {} expired", guestIdByEmail.size(), expired);
+    }
+
     private void refreshAllGuestsInto(Map<String, String> guestIdByEmail) {
         log.info("Refreshing ALL guest users into cache...");
         long count = 0;
@@ -0,0 +1,229 @@
+package no.novari.qliktosharepoint.cache;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.qliktosharepoint.config.CacheProperties;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persists {@link EntraCache} to a binary snapshot file and restores it at startup, so the first sync after a
+ * restart runs against a warm cache while {@link EntraCacheRefresher} reconciles it with Graph in the background.
+ * <p>
+ * Layout: magic, format version, then a payload of cache version, build time, guests, group ids and group members,
+ * followed by a CRC32 of everything before it. Canonical UUIDs are written as two longs. A file with a wrong magic,
+ * format version or checksum is ignored.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class EntraCacheSnapshotStore {
+
+    static final int MAGIC = 0x4E514543; // "NQEC"
+    static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_COUNT = 50_000_000;
+    private static final byte ID_UUID = 0;
+    private static final byte ID_STRING = 1;
+
+    private final EntraCache cache;
+    private final CacheProperties cacheProperties;
+
+    private volatile long persistedModCount = -1;
+
+    record Persisted(long version,
+                     Instant builtAt,
+                     Map<String, String> guestIdByEmail,
+                     Map<String, String> groupIdByDisplayName,
+                     Map<String, Set<String>> groupMemberIds) {
+    }
+
+    @PostConstruct
+    public void load() {
+        if (!cacheProperties.isSnapshotEnabled()) return;
+        Path file = cacheProperties.getSnapshotFile();
+
+        long start = System.nanoTime();
+        Persisted persisted;
+        try (InputStream in = Files.newInputStream(file)) {
+            persisted = read(in);
+        } catch (NoSuchFileException e) {
+            log.info("No Entra cache snapshot at {} - starting cold", file);
+            return;
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable Entra cache snapshot {}: {}", file, e.getMessage());
+            return;
+        }
+
+        Duration age = Duration.between(persisted.builtAt(), Instant.now());
+        if (age.compareTo(cacheProperties.getSnapshotMaxAge()) > 0) {
+            log.info("Ignoring Entra cache snapshot {} built {} ago (max age {})", file, age, cacheProperties.getSnapshotMaxAge());
+            return;
+        }
+
+        if (cache.restore(persisted.version(), persisted.builtAt(), persisted.guestIdByEmail(),
+                persisted.groupIdByDisplayName(), persisted.groupMemberIds())) {
+            persistedModCount = cache.getModCount();
+            log.info("Restored Entra cache snapshot version={} guests={} groups={} age={} in {}ms",
+                    persisted.version(),
+                    persisted.guestIdByEmail().size(),
+                    persisted.groupMemberIds().size(),
+                    age,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${novari.cache.snapshot-interval:PT5M}",
+            fixedDelayString = "${novari.cache.snapshot-interval:PT5M}")
+    public void persistScheduled() {
+        try {
+            persist();
+        } catch (Exception e) {
+            log.error("Failed writing Entra cache snapshot. Error {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void persistOnShutdown() {
+        persistScheduled();
+    }
+
+    public void persist() throws IOException {
+        if (!cacheProperties.isSnapshotEnabled()) return;
+
+        long modCount = cache.getModCount();
+        if (modCount == persistedModCount) return;
+
+        EntraCache.Snapshot current = cache.current();
+        if (current.version() == 0) return;
+
+        Path file = cacheProperties.getSnapshotFile().toAbsolutePath();
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                write(current, out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        persistedModCount = modCount;
+        log.debug("Wrote Entra cache snapshot version={} to {} ({} bytes)", current.version(), file, Files.size(file));
+    }
+
+    static void write(EntraCache.Snapshot snapshot, OutputStream target) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(target, 1 << 16), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(snapshot.version());
+        out.writeLong(snapshot.builtAt().toEpochMilli());
+
+        out.writeInt(snapshot.guestIdByEmail().size());
+        for (Map.Entry<String, String> e : snapshot.guestIdByEmail().entrySet()) {
+            out.writeUTF(e.getKey());
+            writeId(out, e.getValue());
+        }
+
+        out.writeInt(snapshot.groupIdByDisplayName().size());
+        for (Map.Entry<String, String> e : snapshot.groupIdByDisplayName().entrySet()) {
+            out.writeUTF(e.getKey());
+            writeId(out, e.getValue());
+        }
+
+        out.writeInt(snapshot.groupMemberIds().size());
+        for (Map.Entry<String, BitmapMemberSet> e : snapshot.groupMemberIds().entrySet()) {
+            writeId(out, e.getKey());
+            out.writeInt(e.getValue().size());
+            for (String member : e.getValue()) writeId(out, member);
+        }
+
+        out.writeLong(checked.getChecksum().getValue());
+        out.flush();
+    }
+
+    static Persisted read(InputStream source) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(source, 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+
+        if (in.readInt() != MAGIC) throw new IOException("not an Entra cache snapshot");
+        int format = in.readInt();
+        if (format != FORMAT_VERSION) throw new IOException("unsupported snapshot format " + format);
+
+        long version = in.readLong();
+        Instant builtAt = Instant.ofEpochMilli(in.readLong());
+
+        int guestCount = readCount(in);
+        Map<String, String> guests = HashMap.newHashMap(guestCount);
+        for (int i = 0; i < guestCount; i++) {
+            guests.put(in.readUTF(), readId(in));
+        }
+
+        int groupCount = readCount(in);
+        Map<String, String> groupIds = HashMap.newHashMap(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            groupIds.put(in.readUTF(), readId(in));
+        }
+
+        int memberGroupCount = readCount(in);
+        Map<String, Set<String>> members = HashMap.newHashMap(memberGroupCount);
+        for (int i = 0; i < memberGroupCount; i++) {
+            String groupId = readId(in);
+            int memberCount = readCount(in);
+            CompactMemberSet memberIds = new CompactMemberSet();
+            for (int m = 0; m < memberCount; m++) memberIds.add(readId(in));
+            members.put(groupId, memberIds);
+        }
+
+        long expected = checked.getChecksum().getValue();
+        if (in.readLong() != expected) throw new IOException("snapshot checksum mismatch");
+
+        return new Persisted(version, builtAt, guests, groupIds, members);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT) throw new IOException("corrupt count " + count);
+        return count;
+    }
+
+    private static void writeId(DataOutputStream out, String id) throws IOException {
+        if (CompactMemberSet.isCanonicalUuid(id)) {
+            out.writeByte(ID_UUID);
+            out.writeLong(CompactMemberSet.hiBits(id));
+            out.writeLong(CompactMemberSet.loBits(id));
+        } else {
+            out.writeByte(ID_STRING);
+            out.writeUTF(id);
+        }
+    }
+
+    private static String readId(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        return switch (tag) {
+            case ID_UUID -> new UUID(in.readLong(), in.readLong()).toString();
+            case ID_STRING -> in.readUTF();
+            default -> throw new IOException("corrupt id tag " + tag);
+        };
+    }
+}
@@ -0,0 +1,167 @@
+package no.novari.qliktosharepoint.cache;
+
+import com.microsoft.graph.models.User;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.graph.directoryobjects.item.checkmembergroups.CheckMemberGroupsPostRequestBody;
+import com.microsoft.kiota.ApiException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.qliktosharepoint.config.CacheProperties;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cheap drift detection between the full refreshes: samples a few cached (group, member) pairs per group and a few
+ * guests, checks them against Graph, and re-reads a group whose sampled drift rate reaches the threshold. Drifted
+ * guests are evicted directly, so the next sync resolves them again.
+ * <p>
+ * Membership is checked with checkMemberGroups, which is transitive; a member removed directly but still nested
+ * through another group is not reported as drift.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class EntraCacheVerifier {
+
+    private final GraphServiceClient graph;
+    private final EntraCache cache;
+    private final EntraCacheRefresher refresher;
+    private final CacheProperties cacheProperties;
+
+    record GroupSample(String groupId, int checked, int drifted) {
+        double driftRate() {
+            return checked == 0 ? 0 : (double) drifted / checked;
+        }
+    }
+
+    @Scheduled(initialDelayString = "${novari.cache.verify-interval:PT5M}",
+            fixedDelayString = "${novari.cache.verify-interval:PT5M}")
+    public void verifyScheduled() {
+        if (!cacheProperties.isVerifyEnabled() || cache.getVersion() == 0) return;
+        try {
+            verify();
+        } catch (Exception e) {
+            log.error("Entra cache verification failed. Error {}", e.getMessage());
+        }
+    }
+
+    public void verify() {
+        int refreshed = 0;
+        int checked = 0;
+        int drifted = 0;
+
+        for (String groupId : cache.snapshot().groupMemberIds().keySet()) {
+            GroupSample sample = sampleGroup(groupId, cacheProperties.getVerifySamplesPerGroup());
+            checked += sample.checked();
+            drifted += sample.drifted();
+
+            if (sample.checked() > 0 && sample.driftRate() >= cacheProperties.getVerifyDriftThreshold()) {
+                log.warn("Cache drift groupId={} drifted={}/{} - refreshing group", groupId, sample.drifted(), sample.checked());
+                if (refresher.refreshGroup(groupId)) refreshed++;
+            }
+        }
+
+        int guestsEvicted = sampleGuests(cacheProperties.getVerifyGuestSamples());
+
+        log.info("Entra cache verification: memberships drifted={}/{} groupsRefreshed={} guestsEvicted={}",
+                drifted, checked, refreshed, guestsEvicted);
+    }
+
+    GroupSample sampleGroup(String groupId, int samples) {
+        RoaringBitmap members = cache.memberBitmap(groupId);
+        int size = members.getCardinality();
+        int checked = 0;
+        int drifted = 0;
+
+        for (int rank : distinctRandom(size, samples)) {
+            String userId = cache.userIdOf(members.select(rank));
+            if (userId == null) continue;
+
+            Boolean member = isMember(userId, groupId);
+            if (member == null) continue;
+            checked++;
+            if (!member) drifted++;
+        }
+        return new GroupSample(groupId, checked, drifted);
+    }
+
+    int sampleGuests(int samples) {
+        int evicted = 0;
+
+        for (Map.Entry<String, String> guest : randomGuests(samples)) {
+            String email = guest.getKey();
+            String userId = guest.getValue();
+
+            try {
+                User user = graph.users().byUserId(userId).get(req ->
+                        req.queryParameters.select = new String[]{"id", "mail", "userType"});
+                if (user == null || (user.getMail() != null && !email.equalsIgnoreCase(user.getMail()))) {
+                    cache.evictGuest(email);
+                    evicted++;
+                }
+            } catch (ApiException e) {
+                if (e.getResponseStatusCode() == 404) {
+                    cache.evictGuest(email);
+                    evicted++;
+                } else {
+                    log.debug("Guest verification skipped email={} status={}", email, e.getResponseStatusCode());
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Uses directoryObjects rather than users, since groups may hold non-user members. A 404 means the object is gone.
+     *
+     * @return whether the user is a member of the group according to Graph, or null if that could not be determined
+     */
+    private Boolean isMember(String userId, String groupId) {
+        try {
+            CheckMemberGroupsPostRequestBody body = new CheckMemberGroupsPostRequestBody();
+            body.setGroupIds(List.of(groupId));
+            var response = graph.directoryObjects().byDirectoryObjectId(userId).checkMemberGroups().post(body);
+            return response != null && response.getValue() != null && response.getValue().contains(groupId);
+        } catch (ApiException e) {
+            if (e.getResponseStatusCode() == 404) return false;
+            log.debug("Membership verification skipped userId={} groupId={} status={}",
+                    userId, groupId, e.getResponseStatusCode());
+            return null;
+        }
+    }
+
+    /**
+     * Reservoir sample over the merged guest view, so a tick holds {@code count} entries instead of a copy of every
+     * guest in the tenant.
+     */
+    private List<Map.Entry<String, String>> randomGuests(int count) {
+        if (count <= 0) return List.of();
+        List<Map.Entry<String, String>> reservoir = new ArrayList<>(count);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] seen = {0};
+        cache.forEachGuest((email, userId) -> {
+            long n = ++seen[0];
+            if (reservoir.size() < count) {
+                reservoir.add(Map.entry(email, userId));
+            } else {
+                long slot = random.nextLong(n);
+                if (slot < count) reservoir.set((int) slot, Map.entry(email, userId));
+            }
+        });
+        return reservoir;
+    }
+
+    private static int[] distinctRandom(int bound, int count) {
+        if (bound <= 0 || count <= 0) return new int[0];
+        if (count >= bound) {
+            int[] all = new int[bound];
+            for (int i = 0; i < bound; i++) all[i] = i;
+            return all;
+        }
+        return ThreadLocalRandom.current().ints(0, bound).distinct().limit(count).toArray();
+    }
+}
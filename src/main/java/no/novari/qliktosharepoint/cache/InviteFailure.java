@@ -0,0 +1,19 @@
+package no.novari.qliktosharepoint.cache;
+
+import java.time.Instant;
+
+/**
+ * Negative cache entry for an email whose guest invitation failed. The email is not invited again before
+ * {@code retryAfter}.
+ */
+public record InviteFailure(String email,
+                            InviteFailureReason reason,
+                            int failures,
+                            Instant lastFailure,
+                            Instant retryAfter,
+                            String message) {
+
+    public boolean isActive(Instant now) {
+        return now.isBefore(retryAfter);
+    }
+}
@@ -0,0 +1,53 @@
+package no.novari.qliktosharepoint.cache;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Actuator view of the guest invitation negative cache: {@code GET /actuator/invitefailures[/{email}]} lists
+ * entries, {@code DELETE} clears one or all so the email is invited again on the next sync. Only exposed over
+ * HTTP with the {@code invite-admin} profile.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@Endpoint(id = "invitefailures")
+public class InviteFailureEndpoint {
+
+    private final EntraCache cache;
+
+    @ReadOperation
+    public List<InviteFailure> failures() {
+        return cache.getInviteFailures();
+    }
+
+    @ReadOperation
+    public InviteFailure failure(@Selector String email) {
+        return cache.getInviteFailures().stream()
+                .filter(f -> f.email().equalsIgnoreCase(email.trim()))
+                .findFirst()
+                .orElse(null);
+    }
+
+    @DeleteOperation
+    public Map<String, Integer> clearAll() {
+        int cleared = cache.clearInviteFailures();
+        log.info("Cleared {} invite failures from negative cache", cleared);
+        return Map.of("cleared", cleared);
+    }
+
+    @DeleteOperation
+    public Map<String, Integer> clear(@Selector String email) {
+        boolean cleared = cache.clearInviteFailure(email);
+        if (cleared) log.info("Cleared invite failure for email={}", email);
+        return Map.of("cleared", cleared ? 1 : 0);
+    }
+}
@@ -0,0 +1,31 @@
+package no.novari.qliktosharepoint.cache;
+
+import java.time.Duration;
+
+/**
+ * Why a guest invitation failed. The category sets the first backoff; each further failure doubles it, up to the
+ * category's cap. Transient failures (throttling, 5xx) are capped low, so an outage does not park emails for days.
+ */
+public enum InviteFailureReason {
+    INVALID_ADDRESS(Duration.ofHours(6), Duration.ofDays(7)),
+    BLOCKED_DOMAIN(Duration.ofHours(6), Duration.ofDays(7)),
+    FORBIDDEN(Duration.ofHours(1), Duration.ofDays(7)),
+    UNKNOWN(Duration.ofMinutes(30), Duration.ofDays(7)),
+    TRANSIENT(Duration.ofMinutes(5), Duration.ofHours(1));
+
+    private final Duration baseBackoff;
+    private final Duration maxBackoff;
+
+    InviteFailureReason(Duration baseBackoff, Duration maxBackoff) {
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    public Duration getBaseBackoff() {
+        return baseBackoff;
+    }
+
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+}
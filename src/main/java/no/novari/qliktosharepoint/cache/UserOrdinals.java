@@ -0,0 +1,60 @@
+package no.novari.qliktosharepoint.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dense int ordinals for Entra object ids, so memberships can be held as bitmaps. Ordinals are assigned once and
+ * never reused for the lifetime of the process; lookups are lock-free, assignment is serialized.
+ */
+public final class UserOrdinals {
+
+    private final Map<String, Integer> ordinalById = new ConcurrentHashMap<>();
+    private volatile String[] idByOrdinal = new String[1024];
+    private int next;
+
+    /**
+     * @return the ordinal of the id, or -1 if it has never been assigned
+     */
+    public int find(String id) {
+        Integer ordinal = ordinalById.get(id);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public int assign(String id) {
+        Integer ordinal = ordinalById.get(id);
+        if (ordinal != null) return ordinal;
+
+        synchronized (this) {
+            ordinal = ordinalById.get(id);
+            if (ordinal != null) return ordinal;
+
+            int assigned = next++;
+            String[] ids = idByOrdinal;
+            if (assigned >= ids.length) {
+                ids = Arrays.copyOf(ids, ids.length << 1);
+            }
+            ids[assigned] = id;
+            idByOrdinal = ids;
+            ordinalById.put(id, assigned);
+            return assigned;
+        }
+    }
+
+    public String idOf(int ordinal) {
+        String[] ids = idByOrdinal;
+        return ordinal >= 0 && ordinal < ids.length ? ids[ordinal] : null;
+    }
+
+    public int size() {
+        return ordinalById.size();
+    }
+
+    /**
+     * Map node, boxed ordinal and array slot per id, plus the id string (36 char UUIDs).
+     */
+    public long estimatedHeapBytes() {
+        return 16L + 8L * idByOrdinal.length + 150L * ordinalById.size();
+    }
+}
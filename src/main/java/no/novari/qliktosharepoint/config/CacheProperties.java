@@ -0,0 +1,29 @@
+package no.novari.qliktosharepoint.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "novari.cache")
+public class CacheProperties {
+    private boolean snapshotEnabled = true;
+    private Path snapshotFile = Path.of("/tmp/entra-cache.snapshot");
+    private Duration snapshotInterval = Duration.ofMinutes(5);
+    private Duration snapshotMaxAge = Duration.ofDays(2);
+    private GuestResolutionMode guestResolution = GuestResolutionMode.TENANT;
+    private Duration guestTtl = Duration.ofHours(12);
+    private int guestLookupChunkSize = 15;
+    private boolean verifyEnabled = true;
+    private Duration verifyInterval = Duration.ofMinutes(5);
+    private int verifySamplesPerGroup = 10;
+    private int verifyGuestSamples = 20;
+    private double verifyDriftThreshold = 0.1;
+    private Duration refreshInterval = Duration.ofHours(12);
+}
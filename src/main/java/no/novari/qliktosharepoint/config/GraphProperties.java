@@ -6,7 +6,9 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Getter
 @Setter
@@ -20,4 +22,6 @@ public class GraphProperties {
     private String inviteRedirectUrl;
     private String baseUrl;
     private List<String> groupMappings = new ArrayList<>();
+    // optional Qlik group name rules per mapped AAD group, replacing the prefix derived from its name
+    private Map<String, List<String>> groupMappingRules = new LinkedHashMap<>();
 }
\ No newline at end of file
@@ -0,0 +1,12 @@
+package no.novari.qliktosharepoint.config;
+
+public enum GuestResolutionMode {
+    /**
+     * The cache refresh pages every guest in the tenant.
+     */
+    TENANT,
+    /**
+     * Only the emails a sync run needs are looked up, and cached entries expire after {@code novari.cache.guest-ttl}.
+     */
+    DEMAND
+}
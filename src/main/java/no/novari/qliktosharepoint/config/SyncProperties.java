@@ -0,0 +1,36 @@
+package no.novari.qliktosharepoint.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "novari.sync")
+public class SyncProperties {
+    private Duration runBudget = Duration.ofMinutes(10);
+    private Duration maxSkipAge = Duration.ofHours(1);
+    private boolean journalEnabled = true;
+    private Path journalFile = Path.of("/tmp/applied-state.journal");
+    private Duration fullRunInterval = Duration.ofHours(6);
+    // Graph operations queued or running at once; invites and writes are further capped within the window
+    private int maxInFlight = 48;
+    private int maxConcurrentWrites = 16;
+    private int maxConcurrentInvites = 6;
+    // streamed runs are always full runs and bypass the applied-state journal
+    private boolean streamingEnabled = false;
+    private int streamQueuePages = 4;
+    // starting interval; with adaptive-interval the schedule moves it between min-interval and max-interval
+    private Duration interval = Duration.ofMinutes(5);
+    private boolean adaptiveInterval = true;
+    private Duration minInterval = Duration.ofMinutes(1);
+    private Duration maxInterval = Duration.ofMinutes(30);
+    // webhook is disabled while no secret is configured
+    private String webhookSecret;
+    private Duration webhookDebounce = Duration.ofSeconds(5);
+}
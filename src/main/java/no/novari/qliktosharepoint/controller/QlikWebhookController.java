@@ -0,0 +1,119 @@
+package no.novari.qliktosharepoint.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.qliktosharepoint.config.SyncProperties;
+import no.novari.qliktosharepoint.service.WebhookSyncQueue;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Inbound Qlik webhook. Requests must carry a {@code qlik-signature} header with the HMAC-SHA256 of the raw body
+ * under the shared secret, hex or base64 encoded. User events queue a targeted sync of the user, group events a
+ * full run; both are debounced by {@link WebhookSyncQueue}.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/webhooks")
+public class QlikWebhookController {
+
+    static final String SIGNATURE_HEADER = "qlik-signature";
+
+    private final WebhookSyncQueue queue;
+    private final SyncProperties syncProperties;
+    private final ObjectMapper objectMapper;
+
+    public QlikWebhookController(WebhookSyncQueue queue, SyncProperties syncProperties, ObjectMapper objectMapper) {
+        this.queue = queue;
+        this.syncProperties = syncProperties;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostMapping("/qlik")
+    public ResponseEntity<Map<String, Integer>> onEvent(
+            @RequestHeader(name = SIGNATURE_HEADER, required = false) String signature,
+            @RequestBody byte[] body) {
+        String secret = syncProperties.getWebhookSecret();
+        if (secret == null || secret.isBlank()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!isValidSignature(secret, body, signature)) {
+            log.warn("Rejected Qlik webhook with missing or invalid signature");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+
+        JsonNode root;
+        try {
+            root = objectMapper.readTree(body);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        int users = 0;
+        int fullRuns = 0;
+        Iterable<JsonNode> events = root.isArray() ? root : List.of(root);
+        for (JsonNode event : events) {
+            String type = event.path("eventType").asText(event.path("type").asText(""));
+            if (type.contains(".group.")) {
+                queue.enqueueFullRun();
+                fullRuns++;
+            } else if (type.contains(".user.") && !type.endsWith(".deleted")) {
+                String key = userKey(event);
+                if (key != null) {
+                    queue.enqueueUser(key);
+                    users++;
+                }
+            } else {
+                log.debug("Ignoring Qlik webhook event type={}", type);
+            }
+        }
+        return ResponseEntity.accepted().body(Map.of("users", users, "fullRuns", fullRuns));
+    }
+
+    /**
+     * Qlik id of the user the event is about, or its email when no id is present.
+     */
+    static String userKey(JsonNode event) {
+        JsonNode data = event.path("data");
+        for (JsonNode candidate : List.of(data.path("id"), data.path("userId"), event.path("userId"),
+                data.path("email"))) {
+            String value = candidate.asText(null);
+            if (value != null && !value.isBlank()) return value;
+        }
+        return null;
+    }
+
+    static boolean isValidSignature(String secret, byte[] body, String signature) {
+        if (signature == null || signature.isBlank()) return false;
+
+        byte[] expected;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            expected = mac.doFinal(body);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        String s = signature.trim();
+        if (s.startsWith("sha256=")) s = s.substring(7);
+        return MessageDigest.isEqual(expected, decodeOrNull(s));
+    }
+
+    private static byte[] decodeOrNull(String s) {
+        try {
+            return s.length() == 64 ? HexFormat.of().parseHex(s) : Base64.getDecoder().decode(s);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
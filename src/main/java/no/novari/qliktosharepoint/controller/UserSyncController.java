@@ -1,23 +1,72 @@
 package no.novari.qliktosharepoint.controller;
 
+import no.novari.qliktosharepoint.service.SyncJob;
+import no.novari.qliktosharepoint.service.UserSyncResult;
+import no.novari.qliktosharepoint.service.UserSyncScheduler;
 import no.novari.qliktosharepoint.service.UserSyncService;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+
+import java.net.URI;
 
 @RestController
 @RequestMapping("/sync")
 public class UserSyncController {
+    private final UserSyncScheduler userSyncScheduler;
     private final UserSyncService userSyncService;
 
-    public UserSyncController(UserSyncService userSyncService) {
+    public UserSyncController(UserSyncScheduler userSyncScheduler, UserSyncService userSyncService) {
+        this.userSyncScheduler = userSyncScheduler;
         this.userSyncService = userSyncService;
     }
 
+    /**
+     * Starts a sync in the background. Answers 202 with the new run, or 200 with the run already in progress.
+     */
     @PostMapping("/qlik-users")
-    public ResponseEntity<String> syncQlikUsers() {
-        userSyncService.syncAll();
-        return ResponseEntity.ok("Sync started/finished");
+    public ResponseEntity<SyncJob.Status> syncQlikUsers() {
+        UserSyncScheduler.Submission submission = userSyncScheduler.submit("manual");
+        SyncJob job = submission.job();
+        return ResponseEntity.status(submission.started() ? HttpStatus.ACCEPTED : HttpStatus.OK)
+                .location(URI.create("/sync/qlik-users/" + job.id()))
+                .body(job.status());
+    }
+
+    @GetMapping("/qlik-users")
+    public ResponseEntity<SyncJob.Status> currentRun() {
+        SyncJob job = userSyncScheduler.current();
+        return job == null ? ResponseEntity.noContent().build() : ResponseEntity.ok(job.status());
+    }
+
+    @GetMapping("/qlik-users/{runId}")
+    public ResponseEntity<SyncJob.Status> run(@PathVariable String runId) {
+        SyncJob job = userSyncScheduler.job(runId);
+        return job == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(job.status());
+    }
+
+    /**
+     * Stops the run after the operations in flight; deferred work is carried over to the next run.
+     * Answers 409 if the run already finished.
+     */
+    @PostMapping("/qlik-users/{runId}/cancel")
+    public ResponseEntity<SyncJob.Status> cancel(@PathVariable String runId) {
+        SyncJob job = userSyncScheduler.job(runId);
+        if (job == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.status(job.cancel() ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT).body(job.status());
+    }
+
+    /**
+     * Syncs one Qlik user, by Qlik id or email, right away and answers with what was done. Only adds are applied.
+     */
+    @PostMapping("/qlik-user/{idOrEmail}")
+    public ResponseEntity<UserSyncResult> syncQlikUser(@PathVariable String idOrEmail) {
+        UserSyncResult result = userSyncService.syncUser(idOrEmail);
+        HttpStatus status = switch (result.outcome()) {
+            case NOT_FOUND -> HttpStatus.NOT_FOUND;
+            case QLIK_UNAVAILABLE, FAILED -> HttpStatus.BAD_GATEWAY;
+            default -> HttpStatus.OK;
+        };
+        return ResponseEntity.status(status).body(result);
     }
 }
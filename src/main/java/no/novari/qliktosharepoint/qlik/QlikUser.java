@@ -0,0 +1,62 @@
+package no.novari.qliktosharepoint.qlik;
+
+import java.util.*;
+
+/**
+ * Slim projection of a Qlik user holding only what the sync needs. Produced while parsing the users pages, so the
+ * full {@link QlikUserDto} graph is never retained.
+ *
+ * @param email      trimmed and lower-cased, null if missing or blank
+ * @param federated  whether any assigned group comes from the identity provider ({@code providerType=idp})
+ * @param groupNames sorted, distinct assigned group names; equal lists are shared between users
+ */
+public record QlikUser(String id, String email, String name, boolean federated, List<String> groupNames) {
+
+    public static QlikUser from(QlikUserDto dto) {
+        return from(dto, new Interner());
+    }
+
+    public static QlikUser from(QlikUserDto dto, Interner interner) {
+        boolean federated = false;
+        List<String> groupNames = new ArrayList<>();
+        if (dto.getAssignedGroups() != null) {
+            for (AssignedGroupDto group : dto.getAssignedGroups()) {
+                if ("idp".equalsIgnoreCase(group.getProviderType())) federated = true;
+                if (group.getName() != null) groupNames.add(group.getName());
+            }
+        }
+        return interner.user(dto.getId(), dto.getEmail(), dto.getName(), federated, groupNames);
+    }
+
+    public static String normalizeEmail(String email) {
+        if (email == null) return null;
+        String e = email.trim().toLowerCase(Locale.ROOT);
+        return e.isBlank() ? null : e;
+    }
+
+    /**
+     * Deduplicates group names and whole group lists across the users of one fetch. Thousands of users share the
+     * same few hundred group names and a much smaller number of distinct combinations. Not thread-safe.
+     */
+    public static final class Interner {
+        private final Map<String, String> names = new HashMap<>();
+        private final Map<List<String>, List<String>> groupLists = new HashMap<>();
+
+        public QlikUser user(String id, String email, String name, boolean federated, Collection<String> groupNames) {
+            return new QlikUser(id, normalizeEmail(email), name, federated, groups(groupNames));
+        }
+
+        List<String> groups(Collection<String> groupNames) {
+            if (groupNames.isEmpty()) return List.of();
+
+            TreeSet<String> sorted = new TreeSet<>();
+            for (String groupName : groupNames) sorted.add(names.computeIfAbsent(groupName, n -> n));
+            List<String> list = List.copyOf(sorted);
+            return groupLists.computeIfAbsent(list, l -> l);
+        }
+
+        int distinctGroupLists() {
+            return groupLists.size();
+        }
+    }
+}
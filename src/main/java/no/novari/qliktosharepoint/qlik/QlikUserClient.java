@@ -1,9 +1,7 @@
 package no.novari.qliktosharepoint.qlik;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.extern.slf4j.Slf4j;
 import no.novari.qliktosharepoint.config.QlikProperties;
 import org.springframework.stereotype.Component;
@@ -17,6 +15,7 @@ import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 @Slf4j
@@ -42,26 +41,34 @@ public class QlikUserClient {
                 .build();
     }
 
-    public List<QlikUserDto> getAllUsers() {
-        List<QlikUserDto> allUsers = new ArrayList<>();
+    /**
+     * Fetches all users as {@link QlikUser} projections, parsed straight from each page and filtered by audit
+     * activity. Group names and group lists are shared between users through one {@link QlikUser.Interner}.
+     *
+     * @return the users, or null if a users page could not be fetched
+     */
+    public List<QlikUser> getAllUsers() {
+        List<QlikUser> allUsers = new ArrayList<>();
+        QlikUser.Interner interner = new QlikUser.Interner();
         String nextUrl = properties.getUsersEndpoint() + "?limit=" + USERS_LIMIT;
 
         while (nextUrl != null) {
-            QlikUserListResponse page = fetchUsersPage(nextUrl);
+            UsersPage page = fetchUsersPage(nextUrl, interner);
             if (page == null) {
                 log.warn("Qlik USERS fetch failed - returning null to signal failure");
                 return null;
             }
 
-            if (page.getData() != null && !page.getData().isEmpty()) {
-                allUsers.addAll(page.getData());
-                log.debug("Fetched {} users, total so far {}", page.getData().size(), allUsers.size());
+            if (!page.users().isEmpty()) {
+                allUsers.addAll(page.users());
+                log.debug("Fetched {} users, total so far {}", page.users().size(), allUsers.size());
             } else {
                 log.warn("No users in response from Qlik for URL {}", nextUrl);
             }
 
-            nextUrl = nextHrefOrNull(page.getLinks());
+            nextUrl = nextHrefOrNull(page.links());
         }
+        log.debug("Parsed {} users with {} distinct group combinations", allUsers.size(), interner.distinctGroupLists());
 
 //        Integer daysBackCfg = properties.getAuditDaysBack();
         int daysBack = properties.getAuditDaysBack();
@@ -77,9 +84,9 @@ public class QlikUserClient {
             Map<String, LocalDate> lastLoginByUser = fetchLastLoginByDate(from, to);
 
             allUsers.removeIf(u -> {
-                if (u == null || u.getId() == null || u.getId().isBlank()) return true;
+                if (u == null || u.id() == null || u.id().isBlank()) return true;
 
-                LocalDate last = lastLoginByUser.get(u.getId());
+                LocalDate last = lastLoginByUser.get(u.id());
                 return (last == null);
             });
 
@@ -97,7 +104,134 @@ public class QlikUserClient {
         return allUsers;
     }
 
-    private QlikUserListResponse fetchUsersPage(String url) {
+    /**
+     * Streaming variant of {@link #getAllUsers()}: each users page is filtered and handed to {@code onPage} before
+     * the next page is requested. A consumer that blocks holds back the fetch, and an exception thrown by the
+     * consumer stops it.
+     * <p>
+     * The audit filter is not streamed. Audit events come sorted by time rather than by user, so the whole
+     * {@code auditDaysBack} window is scanned into a last-login map of active users before the first page is
+     * requested; a lookup per page would cost one audit request per user. The first page therefore waits for that
+     * scan, and the map grows with the number of active users in the tenant.
+     *
+     * @return false if a users page could not be fetched; the pages delivered so far are then incomplete
+     */
+    public boolean streamAllUsers(Consumer<List<QlikUser>> onPage) {
+        int daysBack = properties.getAuditDaysBack();
+        Map<String, LocalDate> lastLoginByUser;
+        try {
+            LocalDate to = LocalDate.now(ZoneOffset.UTC);
+            lastLoginByUser = fetchLastLoginByDate(to.minusDays(daysBack), to);
+        } catch (Exception e) {
+            log.warn("Failed to fetch audit activity. Streaming unfiltered users. Cause={}", e.getMessage(), e);
+            lastLoginByUser = null;
+        }
+
+        QlikUser.Interner interner = new QlikUser.Interner();
+        String nextUrl = properties.getUsersEndpoint() + "?limit=" + USERS_LIMIT;
+        int total = 0;
+        int included = 0;
+
+        while (nextUrl != null) {
+            UsersPage page = fetchUsersPage(nextUrl, interner);
+            if (page == null) {
+                log.warn("Qlik USERS fetch failed after {} users - stream is incomplete", total);
+                return false;
+            }
+
+            List<QlikUser> users = new ArrayList<>(page.users().size());
+            for (QlikUser u : page.users()) {
+                if (u == null || u.id() == null || u.id().isBlank()) continue;
+                if (lastLoginByUser != null && !lastLoginByUser.containsKey(u.id())) continue;
+                users.add(u);
+            }
+            total += page.users().size();
+            included += users.size();
+            if (!users.isEmpty()) onPage.accept(users);
+
+            nextUrl = nextHrefOrNull(page.links());
+        }
+
+        log.info("Users streamed total={} daysBack={} included={} filteredOut={} distinctGroupLists={}",
+                total, daysBack, included, total - included, interner.distinctGroupLists());
+        return true;
+    }
+
+    /**
+     * Point lookup of one user by Qlik id, or by email when the key contains {@code @}. No audit filter is applied.
+     *
+     * @return the matching users, empty if none, or null if the request failed
+     */
+    public List<QlikUser> findUsers(String idOrEmail) {
+        String key = idOrEmail.trim();
+        String filter = key.contains("@")
+                ? "email eq \"" + key.replace("\"", "") + "\""
+                : "id eq \"" + key.replace("\"", "") + "\"";
+
+        String json = getJson(
+                b -> b.path(properties.getUsersEndpoint())
+                        .queryParam("filter", "{filter}")
+                        .queryParam("limit", 10)
+                        .build(filter),
+                "USERS",
+                properties.getUsersEndpoint() + "?filter=" + filter
+        );
+        if (json == null) return null;
+
+        try {
+            JsonNode data = objectMapper.readTree(json).get("data");
+            if (data == null || !data.isArray()) return List.of();
+
+            QlikUser.Interner interner = new QlikUser.Interner();
+            List<QlikUser> users = new ArrayList<>(data.size());
+            for (JsonNode userNode : data) users.add(parseUser(userNode, interner));
+            return users;
+        } catch (Exception e) {
+            log.warn("Failed to parse USERS lookup for filter {}. Cause={}", filter, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Point lookup of audit activity for one user within the configured days back: one request for the newest
+     * session begin.
+     *
+     * @return whether the user started a session in the window, or null if the request failed
+     */
+    public Boolean hasRecentActivity(String qlikUserId) {
+        LocalDate to = LocalDate.now(ZoneOffset.UTC);
+        String eventTimeRange = buildEventTimeRange(to.minusDays(properties.getAuditDaysBack()), to);
+
+        String json = getJson(
+                b -> b.path(properties.getAuditEndpoint())
+                        .queryParam("eventType", SESSION_BEGIN)
+                        .queryParam("eventTime", eventTimeRange)
+                        .queryParam("userId", "{userId}")
+                        .queryParam("limit", 1)
+                        .queryParam("sort", "-eventTime")
+                        .build(qlikUserId),
+                "AUDIT",
+                properties.getAuditEndpoint() + "?userId=" + qlikUserId
+        );
+        if (json == null) return null;
+
+        try {
+            JsonNode data = objectMapper.readTree(json).get("data");
+            if (data == null || !data.isArray()) return false;
+            for (JsonNode ev : data) {
+                if (qlikUserId.equals(ev.path("userId").asText(null))) return true;
+            }
+            return false;
+        } catch (Exception e) {
+            log.warn("Failed to parse AUDIT lookup for userId={}. Cause={}", qlikUserId, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private record UsersPage(List<QlikUser> users, QlikUserListResponse.Links links) {
+    }
+
+    private UsersPage fetchUsersPage(String url, QlikUser.Interner interner) {
         URI rel = URI.create(url);
 
         String json = getJson(
@@ -112,22 +246,19 @@ public class QlikUserClient {
 
         try {
             JsonNode root = objectMapper.readTree(json);
-            QlikUserListResponse wrapper = new QlikUserListResponse();
 
             if (root.has("data") && root.get("data").isArray()) {
-                wrapper.setData(objectMapper.convertValue(root.get("data"), new TypeReference<>() {}));
-                if (root.has("links")) {
-                    wrapper.setLinks(objectMapper.convertValue(root.get("links"), QlikUserListResponse.Links.class));
+                List<QlikUser> users = new ArrayList<>(root.get("data").size());
+                for (JsonNode userNode : root.get("data")) {
+                    users.add(parseUser(userNode, interner));
                 }
-            } else {
-                ObjectNode userNode = root.deepCopy();
-                userNode.remove("links");
-                QlikUserDto user = objectMapper.treeToValue(userNode, QlikUserDto.class);
-                wrapper.setData(List.of(user));
-                wrapper.setLinks(null);
+                QlikUserListResponse.Links links = root.has("links")
+                        ? objectMapper.convertValue(root.get("links"), QlikUserListResponse.Links.class)
+                        : null;
+                return new UsersPage(users, links);
             }
 
-            return wrapper;
+            return new UsersPage(List.of(parseUser(root, interner)), null);
         } catch (Exception e) {
             log.warn("Failed to parse USERS response from {}. Cause={}", url, e.getMessage(), e);
             return null;
@@ -179,6 +310,27 @@ public class QlikUserClient {
         }
     }
 
+    private static QlikUser parseUser(JsonNode node, QlikUser.Interner interner) {
+        boolean federated = false;
+        List<String> groupNames = new ArrayList<>();
+
+        JsonNode groups = node.get("assignedGroups");
+        if (groups != null && groups.isArray()) {
+            for (JsonNode group : groups) {
+                if ("idp".equalsIgnoreCase(group.path("providerType").asText(null))) federated = true;
+                String name = group.path("name").asText(null);
+                if (name != null) groupNames.add(name);
+            }
+        }
+
+        return interner.user(
+                node.path("id").asText(null),
+                node.path("email").asText(null),
+                node.path("name").asText(null),
+                federated,
+                groupNames);
+    }
+
     private Map<String, LocalDate> fetchLastLoginByDate(LocalDate fromDateInclusive, LocalDate toDateInclusive) {
         Objects.requireNonNull(fromDateInclusive, "fromDateInclusive");
         Objects.requireNonNull(toDateInclusive, "toDateInclusive");
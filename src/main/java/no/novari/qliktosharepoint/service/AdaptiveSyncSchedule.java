@@ -0,0 +1,225 @@
+package no.novari.qliktosharepoint.service;
+
+import lombok.extern.slf4j.Slf4j;
+import no.novari.qliktosharepoint.cache.EntraCache;
+import no.novari.qliktosharepoint.config.CacheProperties;
+import no.novari.qliktosharepoint.config.SyncProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the delay before the next scheduled sync from how the last run went. Runs that changed memberships halve
+ * the interval, no-op runs stretch it by half, and throttled or failed runs double it. The interval never drops
+ * below a few times the last run's duration, so a slow tenant is not synced back to back, and stays within
+ * {@code novari.sync.min-interval}..{@code max-interval}.
+ * <p>
+ * Also decides when the full Entra cache refresh may run: never during a sync run and never shortly before the
+ * next one, so the two heavy Graph readers do not compete. A cold cache is refreshed right away; a cache restored
+ * from a snapshot is first refreshed when the snapshot is due, so the first sync after a restart runs against it.
+ */
+@Slf4j
+@Component
+public class AdaptiveSyncSchedule {
+
+    static final int LONG_RUN_FACTOR = 3;
+    private static final Duration MIN_REFRESH_RETRY = Duration.ofMinutes(1);
+
+    public enum Reason {
+        /** first run, or adaptive scheduling is off */
+        CONFIGURED,
+        /** the last run added or removed members */
+        CHANGES,
+        /** the last run was a no-op */
+        IDLE,
+        /** the last run left failed or cancelled work for the next run */
+        PENDING,
+        /** Graph answered 429/503 during the last run */
+        THROTTLED,
+        /** the last run failed */
+        FAILED,
+        /** the interval was raised to keep a gap after a long run */
+        LONG_RUN
+    }
+
+    public record Decision(Duration interval, Reason reason) {
+    }
+
+    private final SyncProperties syncProperties;
+    private final CacheProperties cacheProperties;
+    private final EntraCache cache;
+    private final AtomicLong deferredRefreshes = new AtomicLong();
+    private final AtomicLong delayedSyncs = new AtomicLong();
+    private volatile Decision decision;
+    private volatile Instant lastFinishedAt;
+    private volatile Instant nextSyncAt;
+    private volatile Duration lastRunDuration = Duration.ZERO;
+    private volatile long lastThrottled;
+    private volatile boolean refreshDeferred;
+
+    public AdaptiveSyncSchedule(SyncProperties syncProperties, CacheProperties cacheProperties, EntraCache cache) {
+        this.syncProperties = syncProperties;
+        this.cacheProperties = cacheProperties;
+        this.cache = cache;
+        this.decision = new Decision(clamp(syncProperties.getInterval()), Reason.CONFIGURED);
+    }
+
+    public Decision decision() {
+        return decision;
+    }
+
+    public Duration lastRunDuration() {
+        return lastRunDuration;
+    }
+
+    public long lastThrottled() {
+        return lastThrottled;
+    }
+
+    public long deferredRefreshes() {
+        return deferredRefreshes.get();
+    }
+
+    public long delayedSyncs() {
+        return delayedSyncs.get();
+    }
+
+    /**
+     * Records a scheduled sync that was skipped, because a run was in progress or the first cache refresh was.
+     */
+    public void recordSyncDelayed() {
+        delayedSyncs.incrementAndGet();
+    }
+
+    /**
+     * When the last run of any trigger finished, or null before the first one did.
+     */
+    public Instant lastFinishedAt() {
+        return lastFinishedAt;
+    }
+
+    /**
+     * True while the cache has neither been restored from a snapshot nor fetched from Graph.
+     */
+    public boolean isCacheCold() {
+        return cache.getVersion() == 0;
+    }
+
+    /**
+     * When the next scheduled sync is due, or null before it has been scheduled.
+     */
+    public Instant nextSyncAt() {
+        return nextSyncAt;
+    }
+
+    /**
+     * Schedules the next sync one interval after the later of the last scheduled execution and the last finished
+     * run, so a manual or webhook run also pushes the scheduled one out.
+     */
+    public Instant scheduleNextSync(Instant lastCompletion) {
+        Instant base = lastCompletion;
+        Instant finished = lastFinishedAt;
+        if (finished != null && finished.isAfter(base)) base = finished;
+        Instant next = base.plus(decision.interval());
+        nextSyncAt = next;
+        return next;
+    }
+
+    /**
+     * Records a finished run of any trigger and moves the interval.
+     *
+     * @param throttled Graph throttling responses retried during the run
+     */
+    public synchronized Decision onRunFinished(SyncJob.Status status, long throttled) {
+        Instant finishedAt = status.finishedAt() != null ? status.finishedAt() : Instant.now();
+        Duration took = Duration.between(status.startedAt(), finishedAt);
+        lastFinishedAt = finishedAt;
+        lastRunDuration = took;
+        lastThrottled = throttled;
+
+        Decision next = syncProperties.isAdaptiveInterval()
+                ? next(decision.interval(), status, throttled, took)
+                : new Decision(clamp(syncProperties.getInterval()), Reason.CONFIGURED);
+        if (!next.equals(decision)) {
+            log.info("Sync interval {} -> {} reason={} added={} removed={} failed={} throttled={} tookMs={}",
+                    decision.interval(), next.interval(), next.reason(), status.added(), status.removed(),
+                    status.failed(), throttled, took.toMillis());
+        }
+        decision = next;
+        return next;
+    }
+
+    Decision next(Duration current, SyncJob.Status status, long throttled, Duration took) {
+        Duration interval;
+        Reason reason;
+        if (throttled > 0) {
+            interval = current.multipliedBy(2);
+            reason = Reason.THROTTLED;
+        } else if (status.state() == SyncJob.State.FAILED) {
+            interval = current.multipliedBy(2);
+            reason = Reason.FAILED;
+        } else if (status.added() + status.removed() > 0) {
+            interval = current.dividedBy(2);
+            reason = Reason.CHANGES;
+        } else if (status.failed() > 0 || status.state() == SyncJob.State.CANCELLED) {
+            interval = current;
+            reason = Reason.PENDING;
+        } else {
+            interval = current.plus(current.dividedBy(2));
+            reason = Reason.IDLE;
+        }
+
+        Duration floor = took.multipliedBy(LONG_RUN_FACTOR);
+        if (interval.compareTo(floor) < 0) {
+            interval = floor;
+            reason = Reason.LONG_RUN;
+        }
+        return new Decision(clamp(interval), reason);
+    }
+
+    /**
+     * True if a full cache refresh may start now: the cache is cold, or the first sync has run, no sync is running
+     * and the next one is at least a third of the interval away.
+     */
+    public boolean cacheRefreshWindowOpen(boolean syncRunning, Instant now) {
+        boolean open = isCacheCold() || (!syncRunning && isClearOfNextSync(now));
+        refreshDeferred = !open;
+        if (!open) deferredRefreshes.incrementAndGet();
+        return open;
+    }
+
+    private boolean isClearOfNextSync(Instant now) {
+        Instant nextSync = nextSyncAt;
+        if (nextSync == null) return false;
+        if (!now.isBefore(nextSync)) return false;
+        return Duration.between(now, nextSync).compareTo(decision.interval().dividedBy(3)) >= 0;
+    }
+
+    /**
+     * Next cache refresh: the configured interval after the last one, or half a sync interval later if the last
+     * attempt was deferred, which lands it in the following gap between runs. The first refresh runs at once on a
+     * cold cache and when the snapshot is due on a restored one.
+     */
+    public Instant nextCacheRefreshAt(Instant lastCompletion, Instant now) {
+        if (lastCompletion == null) {
+            if (isCacheCold()) return now;
+            Instant due = cache.getLastRefresh().plus(cacheProperties.getRefreshInterval());
+            return due.isAfter(now) ? due : now;
+        }
+        if (refreshDeferred) {
+            Duration retry = decision.interval().dividedBy(2);
+            return lastCompletion.plus(retry.compareTo(MIN_REFRESH_RETRY) < 0 ? MIN_REFRESH_RETRY : retry);
+        }
+        return lastCompletion.plus(cacheProperties.getRefreshInterval());
+    }
+
+    private Duration clamp(Duration interval) {
+        Duration min = syncProperties.getMinInterval();
+        Duration max = syncProperties.getMaxInterval();
+        if (interval.compareTo(min) < 0) return min;
+        if (interval.compareTo(max) > 0) return max;
+        return interval;
+    }
+}
@@ -0,0 +1,311 @@
+package no.novari.qliktosharepoint.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.qliktosharepoint.config.SyncProperties;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of what the sync last applied per user: the Entra user id and the group names the user was
+ * put in, plus users whose Graph operations failed. Lets {@link UserSyncService} limit a run to the users whose
+ * desired groups changed.
+ * <p>
+ * One record per line, prefixed with the CRC32 of the rest of the line; a line with a bad checksum (a torn write)
+ * ends the replay, and the file is rewritten from the records before it so later appends do not land behind the
+ * torn line. Records: {@code B} full run at epoch millis, {@code A} applied, {@code F} failed, {@code D}
+ * forgotten. A full run rewrites the file; incremental runs append and the file is compacted once the appended
+ * records outnumber the live ones.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class AppliedStateJournal {
+
+    private static final int MIN_COMPACTION_RECORDS = 10_000;
+
+    private final SyncProperties syncProperties;
+
+    private final Map<String, Entry> appliedByEmail = new HashMap<>();
+    private final Set<String> failedEmails = new HashSet<>();
+    private Instant lastFullRun;
+    private int appendedSinceCompaction;
+    private BufferedWriter writer;
+
+    public record Entry(String userId, Set<String> groupNames) {
+    }
+
+    public boolean isEnabled() {
+        return syncProperties.isJournalEnabled();
+    }
+
+    @PostConstruct
+    public synchronized void load() {
+        if (!isEnabled()) return;
+        Path file = syncProperties.getJournalFile();
+
+        int records = 0;
+        boolean corrupt = false;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> fields = decode(line);
+                if (fields == null || !replay(fields)) {
+                    log.warn("Applied-state journal {} has a corrupt record at line {} - ignoring the rest", file, records + 1);
+                    corrupt = true;
+                    break;
+                }
+                records++;
+            }
+        } catch (NoSuchFileException e) {
+            log.info("No applied-state journal at {} - first run will be a full run", file);
+            return;
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable applied-state journal {}: {}", file, e.getMessage());
+            clear();
+            return;
+        }
+
+        appendedSinceCompaction = Math.max(0, records - appliedByEmail.size() - failedEmails.size());
+        if (corrupt) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // appending behind the torn line would hide those records on the next load
+                clear();
+                log.error("Failed rewriting corrupt applied-state journal {} - next run will be a full run. Error {}",
+                        file, e.getMessage());
+                return;
+            }
+        }
+        log.info("Loaded applied-state journal users={} failed={} lastFullRun={} records={}",
+                appliedByEmail.size(), failedEmails.size(), lastFullRun, records);
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    public synchronized Entry get(String email) {
+        return appliedByEmail.get(email);
+    }
+
+    public synchronized boolean isFailed(String email) {
+        return failedEmails.contains(email);
+    }
+
+    public synchronized Set<String> emails() {
+        Set<String> emails = new HashSet<>(appliedByEmail.keySet());
+        emails.addAll(failedEmails);
+        return emails;
+    }
+
+    /**
+     * A full run is due when none has been journaled yet, when the cache was rebuilt after it, or when the last one
+     * is older than the configured interval.
+     */
+    public synchronized boolean isFullRunDue(Instant cacheBuiltAt, Instant now) {
+        if (!isEnabled() || lastFullRun == null) return true;
+        if (cacheBuiltAt != null && cacheBuiltAt.isAfter(lastFullRun)) return true;
+        return !now.isBefore(lastFullRun.plus(syncProperties.getFullRunInterval()));
+    }
+
+    /**
+     * Records the outcome of a run. A full run replaces the journal with its result; an incremental run only
+     * changes the given users.
+     */
+    public synchronized void commit(Map<String, Entry> applied, Set<String> failed, Set<String> forgotten, boolean fullRun) {
+        if (!isEnabled()) return;
+
+        if (fullRun) {
+            appliedByEmail.clear();
+            failedEmails.clear();
+            lastFullRun = Instant.now();
+        }
+        forgotten.forEach(email -> {
+            appliedByEmail.remove(email);
+            failedEmails.remove(email);
+        });
+        applied.forEach((email, entry) -> {
+            appliedByEmail.put(email, entry);
+            failedEmails.remove(email);
+        });
+        failedEmails.addAll(failed);
+
+        try {
+            if (fullRun || appendedSinceCompaction > Math.max(MIN_COMPACTION_RECORDS, 2 * appliedByEmail.size())) {
+                compact();
+                return;
+            }
+
+            BufferedWriter out = writer();
+            for (String email : forgotten) append(out, List.of("D", email));
+            for (Map.Entry<String, Entry> e : applied.entrySet()) append(out, appliedRecord(e.getKey(), e.getValue()));
+            for (String email : failed) append(out, List.of("F", email));
+            out.flush();
+            appendedSinceCompaction += forgotten.size() + applied.size() + failed.size();
+        } catch (IOException e) {
+            // the in-memory state is still right; the next full run rewrites the file
+            closeWriter();
+            log.error("Failed writing applied-state journal. Error {}", e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        closeWriter();
+        Path file = syncProperties.getJournalFile().toAbsolutePath();
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                if (lastFullRun != null) append(out, List.of("B", Long.toString(lastFullRun.toEpochMilli())));
+                for (Map.Entry<String, Entry> e : appliedByEmail.entrySet()) append(out, appliedRecord(e.getKey(), e.getValue()));
+                for (String email : failedEmails) append(out, List.of("F", email));
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        appendedSinceCompaction = 0;
+        log.debug("Compacted applied-state journal users={} failed={}", appliedByEmail.size(), failedEmails.size());
+    }
+
+    private boolean replay(List<String> fields) {
+        if (fields.size() < 2) return false;
+        switch (fields.getFirst()) {
+            case "B" -> {
+                try {
+                    lastFullRun = Instant.ofEpochMilli(Long.parseLong(fields.get(1)));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            case "A" -> {
+                if (fields.size() < 3) return false;
+                String email = fields.get(1);
+                appliedByEmail.put(email, new Entry(fields.get(2), Set.copyOf(fields.subList(3, fields.size()))));
+                failedEmails.remove(email);
+            }
+            case "F" -> failedEmails.add(fields.get(1));
+            case "D" -> {
+                appliedByEmail.remove(fields.get(1));
+                failedEmails.remove(fields.get(1));
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void clear() {
+        appliedByEmail.clear();
+        failedEmails.clear();
+        lastFullRun = null;
+    }
+
+    private BufferedWriter writer() throws IOException {
+        if (writer == null) {
+            Path file = syncProperties.getJournalFile().toAbsolutePath();
+            Files.createDirectories(file.getParent());
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        return writer;
+    }
+
+    private void closeWriter() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.debug("Failed closing applied-state journal: {}", e.getMessage());
+        }
+        writer = null;
+    }
+
+    private static List<String> appliedRecord(String email, Entry entry) {
+        List<String> fields = new ArrayList<>(3 + entry.groupNames().size());
+        fields.add("A");
+        fields.add(email);
+        fields.add(entry.userId());
+        fields.addAll(new TreeSet<>(entry.groupNames()));
+        return fields;
+    }
+
+    static void append(BufferedWriter out, List<String> fields) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (String field : fields) {
+            if (!body.isEmpty()) body.append('\t');
+            escape(field, body);
+        }
+        out.write(Long.toHexString(crc(body.toString())));
+        out.write('\t');
+        out.write(body.toString());
+        out.write('\n');
+    }
+
+    /**
+     * @return the fields of a journal line, or null if its checksum does not match
+     */
+    static List<String> decode(String line) {
+        int tab = line.indexOf('\t');
+        if (tab <= 0) return null;
+        String body = line.substring(tab + 1);
+        try {
+            if (Long.parseLong(line.substring(0, tab), 16) != crc(body)) return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\\' && i + 1 < body.length()) {
+                char next = body.charAt(++i);
+                field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static void escape(String field, StringBuilder out) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '\t' -> out.append("\\t");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+    }
+
+    private static long crc(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
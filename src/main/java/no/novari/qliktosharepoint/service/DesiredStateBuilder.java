@@ -0,0 +1,160 @@
+package no.novari.qliktosharepoint.service;
+
+import lombok.RequiredArgsConstructor;
+import no.novari.qliktosharepoint.config.GraphProperties;
+import no.novari.qliktosharepoint.config.QlikProperties;
+import no.novari.qliktosharepoint.qlik.QlikUser;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Turns the Qlik users into the desired group memberships per email. The import filters are compiled once per
+ * build into immutable hash lookups, group mappings are memoized per build by assigned-group signature, and large
+ * user lists are collected in parallel.
+ */
+@Component
+@RequiredArgsConstructor
+public class DesiredStateBuilder {
+
+    static final int PARALLEL_THRESHOLD = 5_000;
+
+    private final QlikToAadGroupMappingService mappingService;
+    private final QlikProperties qlikProperties;
+    private final GraphProperties graphProperties;
+
+    /**
+     * @param groupsByEmail      effective groups per normalized email; the sets may be shared and must not be
+     *                           modified
+     * @param displayNameByEmail the first non-blank Qlik name seen per email
+     * @param groupsToUse        the managed groups, or every group observed when none are configured
+     * @param mappingStats       group mapping memo hits and misses of this build
+     */
+    public record Result(Map<String, Set<String>> groupsByEmail,
+                         Map<String, String> displayNameByEmail,
+                         Set<String> groupsToUse,
+                         GroupMappingMemo.Stats mappingStats) {
+    }
+
+    /**
+     * Filters compiled from configuration: managed group names and lower-cased excluded email domains.
+     */
+    record Filters(Set<String> managedGroupNames, Set<String> excludedDomains) {
+
+        static Filters compile(List<String> groupMappings, List<String> excludedEmailDomains) {
+            return new Filters(normalized(groupMappings, false), normalized(excludedEmailDomains, true));
+        }
+
+        private static Set<String> normalized(List<String> values, boolean lowerCase) {
+            if (values == null) return Set.of();
+            return values.stream()
+                    .filter(Objects::nonNull)
+                    .map(String::trim)
+                    .filter(s -> !s.isBlank())
+                    .map(s -> lowerCase ? s.toLowerCase(Locale.ROOT) : s)
+                    .collect(Collectors.toUnmodifiableSet());
+        }
+
+        boolean isExcludedEmail(String email) {
+            if (excludedDomains.isEmpty()) return false;
+            int atIdx = email.lastIndexOf('@');
+            if (atIdx < 0 || atIdx == email.length() - 1) return false;
+            return excludedDomains.contains(email.substring(atIdx + 1));
+        }
+
+        /**
+         * @return the managed subset of the target groups; the target set itself when all of them are managed
+         */
+        Set<String> effectiveGroups(Set<String> targetGroupNames) {
+            if (managedGroupNames.isEmpty() || managedGroupNames.containsAll(targetGroupNames)) return targetGroupNames;
+
+            Set<String> effective = new HashSet<>();
+            for (String groupName : targetGroupNames) {
+                if (managedGroupNames.contains(groupName)) effective.add(groupName);
+            }
+            return effective;
+        }
+    }
+
+    public Result build(List<QlikUser> users) {
+        return build(users, newMemo());
+    }
+
+    /**
+     * Builds one slice of the users, e.g. a page of a streamed fetch, sharing the mapping memo across slices.
+     * A duplicate email in another slice is not merged; the caller sees it once per slice.
+     */
+    Result build(List<QlikUser> users, GroupMappingMemo memo) {
+        Filters filters = Filters.compile(graphProperties.getGroupMappings(), qlikProperties.getExcludedEmailDomains());
+
+        Stream<QlikUser> stream = users.size() >= PARALLEL_THRESHOLD ? users.parallelStream() : users.stream();
+        Accumulator acc = stream.collect(Collector.of(
+                () -> new Accumulator(filters, memo),
+                Accumulator::accept,
+                Accumulator::combine));
+
+        Set<String> groupsToUse = filters.managedGroupNames().isEmpty()
+                ? acc.observedGroupNames
+                : filters.managedGroupNames();
+        return new Result(acc.groupsByEmail, acc.displayNameByEmail, groupsToUse, memo.stats());
+    }
+
+    GroupMappingMemo newMemo() {
+        return new GroupMappingMemo(mappingService);
+    }
+
+    /**
+     * Mutable per-thread container. The collector is not UNORDERED, so {@link #combine} always receives the
+     * later users on the right and the first display name per email wins, as in a sequential pass.
+     */
+    private static final class Accumulator {
+        private final Filters filters;
+        private final GroupMappingMemo memo;
+        private final Map<String, Set<String>> groupsByEmail = new HashMap<>();
+        private final Map<String, String> displayNameByEmail = new HashMap<>();
+        private final Set<String> observedGroupNames = new HashSet<>();
+
+        Accumulator(Filters filters, GroupMappingMemo memo) {
+            this.filters = filters;
+            this.memo = memo;
+        }
+
+        void accept(QlikUser u) {
+            if (!u.federated()) return;
+
+            String email = u.email();
+            if (email == null || filters.isExcludedEmail(email)) return;
+
+            Set<String> targetGroupNames = memo.resolve(u);
+            if (targetGroupNames.isEmpty()) return;
+
+            Set<String> effectiveGroups = filters.effectiveGroups(targetGroupNames);
+            if (effectiveGroups.isEmpty()) return;
+
+            observedGroupNames.addAll(effectiveGroups);
+            groupsByEmail.merge(email, effectiveGroups, Accumulator::union);
+
+            if (u.name() != null && !u.name().isBlank()) {
+                displayNameByEmail.putIfAbsent(email, u.name());
+            }
+        }
+
+        Accumulator combine(Accumulator right) {
+            right.groupsByEmail.forEach((email, groups) -> groupsByEmail.merge(email, groups, Accumulator::union));
+            right.displayNameByEmail.forEach(displayNameByEmail::putIfAbsent);
+            observedGroupNames.addAll(right.observedGroupNames);
+            return this;
+        }
+
+        // the sets are shared through the mapping memo, so a duplicate email gets a fresh set
+        private static Set<String> union(Set<String> a, Set<String> b) {
+            if (a.containsAll(b)) return a;
+            Set<String> merged = new HashSet<>(a);
+            merged.addAll(b);
+            return merged;
+        }
+    }
+}
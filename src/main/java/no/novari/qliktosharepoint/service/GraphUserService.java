@@ -8,6 +8,8 @@ import com.microsoft.kiota.ApiException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import no.novari.qliktosharepoint.cache.EntraCache;
+import no.novari.qliktosharepoint.cache.InviteFailure;
+import no.novari.qliktosharepoint.cache.InviteFailureReason;
 import no.novari.qliktosharepoint.config.GraphProperties;
 import okhttp3.*;
 import org.springframework.stereotype.Service;
@@ -74,7 +76,17 @@ public class GraphUserService {
             return cachedUserId;
         }
 
-        User invited = inviteGuestUser(normalizedEmail, displayName);
+        User invited;
+        try {
+            invited = inviteGuestUser(normalizedEmail, displayName);
+        } catch (GuestInviteRejectedException e) {
+            InviteFailure failure = entraCache.recordInviteFailure(normalizedEmail, e.getReason(), e.getMessage());
+            if (failure != null) {
+                log.warn("Invite guest rejected email={} reason={} failures={} retryAfter={}",
+                        normalizedEmail, failure.reason(), failure.failures(), failure.retryAfter());
+            }
+            throw e;
+        }
 
         String userId = invited != null ? invited.getId() : null;
         if (userId == null || userId.isBlank()) {
@@ -109,7 +121,8 @@ public class GraphUserService {
                 if (attempt == maxAttempts) {
                     log.error("Invite guest FAILED after retries email={} lastStatus={} lastBody={}",
                             email, te.statusCode, te.responseBody);
-                    throw new RuntimeException("Invite guest failed after retries email=" + email, te);
+                    throw new GuestInviteRejectedException(InviteFailureReason.TRANSIENT, te.statusCode,
+                            "Invite guest failed after retries email=" + email, te);
                 }
 
                 long sleepMs = backoffMs(baseBackoffMs, attempt);
@@ -156,7 +169,8 @@ public class GraphUserService {
                 }
 
                 if (!resp.isSuccessful()) {
-                    throw new RuntimeException("Invite guest failed status=" + resp.code() + " email=" + email + " body=" + respBody);
+                    throw new GuestInviteRejectedException(classifyRejection(resp.code(), respBody), resp.code(),
+                            "Invite guest failed status=" + resp.code() + " email=" + email + " body=" + respBody);
                 }
 
                 JsonNode json = objectMapper.readTree(respBody);
@@ -178,14 +192,28 @@ public class GraphUserService {
         } catch (IOException ioe) {
             throw new GraphThrottleOrTransientException(0, 0, "IO error: " + ioe.getMessage(), ioe);
 
-        } catch (GraphThrottleOrTransientException te) {
-            throw te;
+        } catch (GraphThrottleOrTransientException | GuestInviteRejectedException e) {
+            throw e;
 
         } catch (Exception e) {
             throw new RuntimeException("Invite guest failed (unexpected) email=" + email + " msg=" + e.getMessage(), e);
         }
     }
 
+    static InviteFailureReason classifyRejection(int statusCode, String responseBody) {
+        String body = responseBody == null ? "" : responseBody.toLowerCase();
+
+        if (body.contains("domain") && (body.contains("not allowed") || body.contains("blocked")
+                || body.contains("denied") || body.contains("policy"))) {
+            return InviteFailureReason.BLOCKED_DOMAIN;
+        }
+        if (statusCode == 401 || statusCode == 403) return InviteFailureReason.FORBIDDEN;
+        if (statusCode == 400 && (body.contains("email") || body.contains("address"))) {
+            return InviteFailureReason.INVALID_ADDRESS;
+        }
+        return InviteFailureReason.UNKNOWN;
+    }
+
     private String acquireToken() {
         var tok = graphCredential.getToken(new com.azure.core.credential.TokenRequestContext().addScopes(GRAPH_SCOPE))
                 .block(java.time.Duration.ofSeconds(30));
@@ -0,0 +1,58 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.qlik.QlikUser;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-run memo of {@link QlikToAadGroupMappingService#resolveTargetAadGroupNames}, keyed by the canonical group
+ * list of a user ({@link QlikUser#groupNames()}). Users with the same groups share one immutable result set, so
+ * mapping work scales with the number of distinct group combinations rather than the number of users. Safe for
+ * parallel use.
+ */
+final class GroupMappingMemo {
+
+    private final QlikToAadGroupMappingService mappingService;
+    private final Map<List<String>, Set<String>> bySignature = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    record Stats(long hits, long misses, int distinct) {
+        double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    GroupMappingMemo(QlikToAadGroupMappingService mappingService) {
+        this.mappingService = mappingService;
+    }
+
+    Set<String> resolve(QlikUser user) {
+        List<String> signature = user.groupNames();
+
+        Set<String> cached = bySignature.get(signature);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        // computeIfAbsent maps each signature once, even when parallel callers miss at the same time
+        boolean[] computed = new boolean[1];
+        Set<String> shared = bySignature.computeIfAbsent(signature, _ -> {
+            computed[0] = true;
+            Set<String> resolved = mappingService.resolveTargetAadGroupNames(user);
+            return resolved == null || resolved.isEmpty() ? Set.of() : Set.copyOf(resolved);
+        });
+        (computed[0] ? misses : hits).increment();
+        return shared;
+    }
+
+    Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), bySignature.size());
+    }
+}
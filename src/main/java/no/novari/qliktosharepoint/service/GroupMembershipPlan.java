@@ -0,0 +1,22 @@
+package no.novari.qliktosharepoint.service;
+
+import java.util.Set;
+
+/**
+ * Immutable add/remove plan for one group, computed by {@link MembershipPlanner}.
+ */
+public record GroupMembershipPlan(String groupName,
+                                  String groupId,
+                                  Set<String> toAdd,
+                                  Set<String> toRemove,
+                                  int desiredCount,
+                                  int currentCount) {
+
+    public int unchangedCount() {
+        return desiredCount - toAdd.size();
+    }
+
+    public boolean isNoop() {
+        return toAdd.isEmpty() && toRemove.isEmpty();
+    }
+}
@@ -0,0 +1,198 @@
+package no.novari.qliktosharepoint.service;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches Qlik group names against the mapping rules of all target groups in one pass over the name.
+ * <p>
+ * Rule syntax: {@code re:<regex>} is a full-match regular expression; a pattern with a single trailing {@code *} is
+ * a prefix, which may span several {@code _}-separated segments; any other {@code *} (any run of characters) or
+ * {@code ?} (one character) makes it a glob; anything else is an exact name. Matching is case-sensitive.
+ * <p>
+ * Prefixes, exact names and the literal heads of globs share one trie; glob tails are checked at the node where
+ * their head ends. Regexes run on reused per-thread matchers. Matching a name does not allocate.
+ */
+final class GroupNameMatcher {
+
+    static final String REGEX_PREFIX = "re:";
+
+    private static final int[] NO_TARGETS = new int[0];
+    private static final Glob[] NO_GLOBS = new Glob[0];
+
+    private final List<String> targets;
+    private final Node root;
+    private final Pattern[] regexes;
+    private final int[] regexTargets;
+    private final ThreadLocal<Matcher[]> matchers;
+
+    private record Glob(String pattern, int tailFrom, int target) {
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private int[] prefixTargets = NO_TARGETS;
+        private int[] exactTargets = NO_TARGETS;
+        private Glob[] globs = NO_GLOBS;
+
+        Node child(char c) {
+            int idx = Arrays.binarySearch(keys, c);
+            return idx >= 0 ? children[idx] : null;
+        }
+
+        Node childOrCreate(char c) {
+            int idx = Arrays.binarySearch(keys, c);
+            if (idx >= 0) return children[idx];
+
+            int at = -idx - 1;
+            char[] k = new char[keys.length + 1];
+            Node[] ch = new Node[children.length + 1];
+            System.arraycopy(keys, 0, k, 0, at);
+            System.arraycopy(children, 0, ch, 0, at);
+            System.arraycopy(keys, at, k, at + 1, keys.length - at);
+            System.arraycopy(children, at, ch, at + 1, children.length - at);
+            k[at] = c;
+            ch[at] = new Node();
+            keys = k;
+            children = ch;
+            return ch[at];
+        }
+    }
+
+    private GroupNameMatcher(List<String> targets, Node root, Pattern[] regexes, int[] regexTargets) {
+        this.targets = targets;
+        this.root = root;
+        this.regexes = regexes;
+        this.regexTargets = regexTargets;
+        this.matchers = ThreadLocal.withInitial(() -> {
+            Matcher[] m = new Matcher[regexes.length];
+            for (int i = 0; i < regexes.length; i++) m[i] = regexes[i].matcher("");
+            return m;
+        });
+    }
+
+    /**
+     * @param patternsByTarget rule patterns per target group name, in the order the targets are indexed
+     * @throws IllegalArgumentException if a regex rule does not compile
+     */
+    static GroupNameMatcher compile(Map<String, List<String>> patternsByTarget) {
+        List<String> targets = List.copyOf(patternsByTarget.keySet());
+        Node root = new Node();
+        List<Pattern> regexes = new ArrayList<>();
+        List<Integer> regexTargets = new ArrayList<>();
+
+        for (int target = 0; target < targets.size(); target++) {
+            for (String pattern : patternsByTarget.get(targets.get(target))) {
+                if (pattern.startsWith(REGEX_PREFIX)) {
+                    try {
+                        regexes.add(Pattern.compile(pattern.substring(REGEX_PREFIX.length())));
+                    } catch (PatternSyntaxException e) {
+                        throw new IllegalArgumentException("Invalid group mapping regex '" + pattern + "'", e);
+                    }
+                    regexTargets.add(target);
+                    continue;
+                }
+
+                int wildcard = firstWildcard(pattern);
+                if (wildcard < 0) {
+                    Node node = insert(root, pattern, pattern.length());
+                    node.exactTargets = append(node.exactTargets, target);
+                } else if (wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '*') {
+                    Node node = insert(root, pattern, wildcard);
+                    node.prefixTargets = append(node.prefixTargets, target);
+                } else {
+                    Node node = insert(root, pattern, wildcard);
+                    Glob[] globs = Arrays.copyOf(node.globs, node.globs.length + 1);
+                    globs[globs.length - 1] = new Glob(pattern, wildcard, target);
+                    node.globs = globs;
+                }
+            }
+        }
+
+        return new GroupNameMatcher(targets, root, regexes.toArray(Pattern[]::new),
+                regexTargets.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    int targetCount() {
+        return targets.size();
+    }
+
+    String targetName(int target) {
+        return targets.get(target);
+    }
+
+    /**
+     * Sets the index of every target whose rules match {@code name}.
+     */
+    void matchInto(String name, BitSet hits) {
+        Node node = root;
+        int len = name.length();
+        for (int i = 0; ; i++) {
+            for (int target : node.prefixTargets) hits.set(target);
+            for (Glob glob : node.globs) {
+                if (globMatches(glob.pattern(), glob.tailFrom(), name, i)) hits.set(glob.target());
+            }
+            if (i == len) {
+                for (int target : node.exactTargets) hits.set(target);
+                break;
+            }
+            node = node.child(name.charAt(i));
+            if (node == null) break;
+        }
+
+        if (regexes.length > 0) {
+            Matcher[] m = matchers.get();
+            for (int k = 0; k < m.length; k++) {
+                if (m[k].reset(name).matches()) hits.set(regexTargets[k]);
+            }
+        }
+    }
+
+    private static Node insert(Node root, String pattern, int length) {
+        Node node = root;
+        for (int i = 0; i < length; i++) node = node.childOrCreate(pattern.charAt(i));
+        return node;
+    }
+
+    private static int[] append(int[] values, int value) {
+        int[] out = Arrays.copyOf(values, values.length + 1);
+        out[values.length] = value;
+        return out;
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Iterative wildcard match of {@code p} from {@code pi} against {@code s} from {@code si}, backtracking only to
+     * the last {@code *}.
+     */
+    static boolean globMatches(String p, int pi, String s, int si) {
+        int star = -1;
+        int mark = 0;
+        while (si < s.length()) {
+            if (pi < p.length() && p.charAt(pi) == '*') {
+                star = pi++;
+                mark = si;
+            } else if (pi < p.length() && (p.charAt(pi) == '?' || p.charAt(pi) == s.charAt(si))) {
+                pi++;
+                si++;
+            } else if (star >= 0) {
+                pi = star + 1;
+                si = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (pi < p.length() && p.charAt(pi) == '*') pi++;
+        return pi == p.length();
+    }
+}
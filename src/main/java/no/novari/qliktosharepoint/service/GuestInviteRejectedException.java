@@ -0,0 +1,32 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.cache.InviteFailureReason;
+
+/**
+ * A guest invitation that failed without being retryable within the current attempt.
+ */
+public class GuestInviteRejectedException extends RuntimeException {
+
+    private final InviteFailureReason reason;
+    private final int statusCode;
+
+    public GuestInviteRejectedException(InviteFailureReason reason, int statusCode, String message) {
+        super(message);
+        this.reason = reason;
+        this.statusCode = statusCode;
+    }
+
+    public GuestInviteRejectedException(InviteFailureReason reason, int statusCode, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+        this.statusCode = statusCode;
+    }
+
+    public InviteFailureReason getReason() {
+        return reason;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,137 @@
+package no.novari.qliktosharepoint.service;
+
+import com.microsoft.graph.models.User;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.ApiException;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.qliktosharepoint.cache.EntraCache;
+import no.novari.qliktosharepoint.config.CacheProperties;
+import no.novari.qliktosharepoint.config.GuestResolutionMode;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Demand-driven guest resolution: looks up only the emails a sync run needs, instead of paging every guest in the
+ * tenant. Active when {@code novari.cache.guest-resolution} is {@link GuestResolutionMode#DEMAND}.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class GuestLookupService {
+
+    // Graph caps the number of values in an "in" filter on directory objects at 15
+    private static final int MAX_CHUNK_SIZE = 15;
+    private static final int MAX_PARALLEL_LOOKUPS = 4;
+
+    private final GraphServiceClient graph;
+    private final CacheProperties cacheProperties;
+    private final EntraCache cache;
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_PARALLEL_LOOKUPS);
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean isEnabled() {
+        return cacheProperties.getGuestResolution() == GuestResolutionMode.DEMAND;
+    }
+
+    /**
+     * Makes sure the cache has an entry younger than the guest TTL for each email that exists as a guest in Entra.
+     * Cache misses and expired entries are looked up in chunks; expired entries that are no longer found are
+     * evicted so the sync invites them again. A chunk that fails leaves its entries untouched.
+     */
+    public void resolve(Collection<String> emails) {
+        if (!isEnabled() || emails.isEmpty()) return;
+
+        Instant staleBefore = Instant.now().minus(cacheProperties.getGuestTtl());
+        List<String> toLookUp = emails.stream()
+                .filter(email -> {
+                    Instant verifiedAt = cache.getGuestVerifiedAt(email);
+                    return verifiedAt == null || verifiedAt.isBefore(staleBefore);
+                })
+                .toList();
+
+        if (toLookUp.isEmpty()) {
+            log.debug("Guest lookup: all {} emails fresh in cache", emails.size());
+            return;
+        }
+
+        int chunkSize = Math.clamp(cacheProperties.getGuestLookupChunkSize(), 1, MAX_CHUNK_SIZE);
+        AtomicInteger found = new AtomicInteger();
+        AtomicInteger evicted = new AtomicInteger();
+        AtomicInteger failedChunks = new AtomicInteger();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int from = 0; from < toLookUp.size(); from += chunkSize) {
+            List<String> chunk = toLookUp.subList(from, Math.min(from + chunkSize, toLookUp.size()));
+            futures.add(CompletableFuture.runAsync(() -> {
+                Map<String, String> idByEmail;
+                try {
+                    idByEmail = lookUp(chunk);
+                } catch (RuntimeException e) {
+                    failedChunks.incrementAndGet();
+                    log.error("Guest lookup failed for {} emails status={} msg={}", chunk.size(),
+                            e instanceof ApiException api ? api.getResponseStatusCode() : null, e.getMessage());
+                    return;
+                }
+
+                for (String email : chunk) {
+                    String userId = idByEmail.get(email);
+                    if (userId != null) {
+                        cache.putGuest(email, userId);
+                        found.incrementAndGet();
+                    } else if (cache.getGuestIdByEmail(email) != null) {
+                        cache.evictGuest(email);
+                        evicted.incrementAndGet();
+                    }
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+        log.info("Guest lookup: requested={} lookedUp={} found={} evicted={} failedChunks={}",
+                emails.size(), toLookUp.size(), found.get(), evicted.get(), failedChunks.get());
+    }
+
+    private Map<String, String> lookUp(List<String> emails) {
+        String values = emails.stream()
+                .map(email -> "'" + email.replace("'", "''") + "'")
+                .collect(Collectors.joining(","));
+        String filter = "userType eq 'Guest' and mail in (" + values + ")";
+
+        Map<String, String> idByEmail = new HashMap<>();
+        String next = null;
+        do {
+            var page = (next == null)
+                    ? graph.users().get(req -> {
+                req.queryParameters.filter = filter;
+                req.queryParameters.select = new String[]{"id", "mail", "userType"};
+                req.queryParameters.top = MAX_CHUNK_SIZE;
+            })
+                    : graph.users().withUrl(next).get();
+
+            if (page == null || page.getValue() == null) break;
+
+            for (User u : page.getValue()) {
+                if (u.getMail() != null && u.getId() != null && !u.getId().isBlank()) {
+                    idByEmail.put(u.getMail().toLowerCase(), u.getId());
+                }
+            }
+
+            next = page.getOdataNextLink();
+        } while (next != null);
+
+        return idByEmail;
+    }
+}
@@ -0,0 +1,55 @@
+package no.novari.qliktosharepoint.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sliding window of tasks in flight on an executor. {@link #submit(Runnable)} blocks the caller until a slot is free,
+ * so work is fed as earlier tasks finish instead of being queued up front. Never submit from a task running on the
+ * same executor, or the window can starve itself.
+ */
+public final class InFlightWindow {
+
+    private final Executor executor;
+    private final Semaphore slots;
+    private final int capacity;
+
+    public InFlightWindow(Executor executor, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        this.executor = executor;
+        this.capacity = capacity;
+        this.slots = new Semaphore(capacity);
+    }
+
+    public CompletableFuture<Void> submit(Runnable task) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for in-flight slot", e);
+        }
+
+        try {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    task.run();
+                } finally {
+                    slots.release();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    public int inFlight() {
+        return capacity - slots.availablePermits();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,85 @@
+package no.novari.qliktosharepoint.service;
+
+import lombok.RequiredArgsConstructor;
+import no.novari.qliktosharepoint.cache.EntraCache;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+@Component
+@RequiredArgsConstructor
+public class MembershipPlanner {
+
+    private final EntraCache cache;
+
+    /**
+     * Diffs the desired members of a group against the cached members as bitmaps of user ordinals.
+     * Adds are desired AND-NOT current, removes are current AND-NOT desired.
+     */
+    public GroupMembershipPlan plan(String groupName, String groupId, Collection<String> desiredUserIds) {
+        return plan(groupName, groupId, cache.toBitmap(desiredUserIds));
+    }
+
+    /**
+     * As {@link #plan(String, String, Collection)}, with the desired members already given as user ordinals.
+     */
+    public GroupMembershipPlan plan(String groupName, String groupId, RoaringBitmap desired) {
+        RoaringBitmap current = cache.memberBitmap(groupId);
+
+        return new GroupMembershipPlan(
+                groupName,
+                groupId,
+                decode(RoaringBitmap.andNot(desired, current)),
+                decode(RoaringBitmap.andNot(current, desired)),
+                desired.getCardinality(),
+                current.getCardinality()
+        );
+    }
+
+    /**
+     * Plans only the given users instead of the whole group: desired users that are not cached members are added,
+     * removal candidates that are cached members and no longer desired are removed. Counts cover those users only.
+     */
+    public GroupMembershipPlan planIncremental(String groupName, String groupId,
+                                               Collection<String> desiredUserIds,
+                                               Collection<String> removalCandidates) {
+        Set<String> toAdd = new HashSet<>();
+        for (String userId : desiredUserIds) {
+            if (!cache.isMember(groupId, userId)) toAdd.add(userId);
+        }
+
+        Set<String> toRemove = new HashSet<>();
+        int current = desiredUserIds.size() - toAdd.size();
+        for (String userId : removalCandidates) {
+            if (desiredUserIds.contains(userId) || !cache.isMember(groupId, userId)) continue;
+            toRemove.add(userId);
+            current++;
+        }
+
+        return new GroupMembershipPlan(
+                groupName,
+                groupId,
+                Collections.unmodifiableSet(toAdd),
+                Collections.unmodifiableSet(toRemove),
+                desiredUserIds.size(),
+                current
+        );
+    }
+
+    private Set<String> decode(RoaringBitmap ordinals) {
+        if (ordinals.isEmpty()) return Set.of();
+
+        Set<String> userIds = new HashSet<>(Math.max(16, (int) (ordinals.getCardinality() / 0.75f) + 1));
+        IntIterator it = ordinals.getIntIterator();
+        while (it.hasNext()) {
+            String userId = cache.userIdOf(it.next());
+            if (userId != null) userIds.add(userId);
+        }
+        return Collections.unmodifiableSet(userIds);
+    }
+}
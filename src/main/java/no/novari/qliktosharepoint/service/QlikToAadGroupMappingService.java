@@ -4,8 +4,7 @@ import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import no.novari.qliktosharepoint.config.GraphProperties;
-import no.novari.qliktosharepoint.qlik.AssignedGroupDto;
-import no.novari.qliktosharepoint.qlik.QlikUserDto;
+import no.novari.qliktosharepoint.qlik.QlikUser;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
@@ -16,7 +15,8 @@ import java.util.*;
 public class QlikToAadGroupMappingService {
 
     private final GraphProperties graphProperties;
-    private final Map<String, String> prefixToAadGroupName = new HashMap<>();
+    private final ThreadLocal<BitSet> hits = ThreadLocal.withInitial(BitSet::new);
+    private GroupNameMatcher matcher = GroupNameMatcher.compile(Map.of());
 
     @PostConstruct
     public void init() {
@@ -25,47 +25,70 @@ public class QlikToAadGroupMappingService {
             return;
         }
 
+        Map<String, List<String>> explicitRules = graphProperties.getGroupMappingRules() != null
+                ? graphProperties.getGroupMappingRules()
+                : Map.of();
+        Map<String, List<String>> patternsByAadGroupName = new LinkedHashMap<>();
+        Map<String, String> aadGroupNameByPrefix = new HashMap<>();
+
         for (String aadGroupName : graphProperties.getGroupMappings()) {
+            List<String> rules = explicitRules.get(aadGroupName);
+            if (rules != null && !rules.isEmpty()) {
+                patternsByAadGroupName.put(aadGroupName, List.copyOf(rules));
+                log.debug("Configured mapping: rules {} -> AAD group '{}'", rules, aadGroupName);
+                continue;
+            }
+
             int idx = aadGroupName.indexOf('_');
             if (idx <= 0) {
                 log.warn("Group mapping '{}' does not contain '_' – skipping", aadGroupName);
                 continue;
             }
             String prefix = aadGroupName.substring(aadGroupName.startsWith("Qlik-") ? 5 : 0, idx + 1);
-            prefixToAadGroupName.put(prefix, aadGroupName);
+            // one AAD group per derived prefix, the last one listed wins
+            String previous = aadGroupNameByPrefix.put(prefix, aadGroupName);
+            if (previous != null && !previous.equals(aadGroupName)) {
+                patternsByAadGroupName.remove(previous);
+                log.warn("Group mappings '{}' and '{}' share prefix '{}' – using '{}'",
+                        previous, aadGroupName, prefix, aadGroupName);
+            }
+            patternsByAadGroupName.put(aadGroupName, List.of(prefix + "*"));
             log.debug("Configured mapping: prefix '{}' -> AAD group '{}'", prefix, aadGroupName);
         }
-    }
 
-    public Set<String> resolveTargetAadGroupNames(QlikUserDto user) {
-        if (user.getAssignedGroups() == null || user.getAssignedGroups().isEmpty()) {
-            return Collections.emptySet();
+        for (String aadGroupName : explicitRules.keySet()) {
+            if (!patternsByAadGroupName.containsKey(aadGroupName)) {
+                log.warn("Group mapping rules for '{}' ignored - group is not in graph.group-mappings", aadGroupName);
+            }
         }
 
-        Set<String> result = new HashSet<>();
+        matcher = GroupNameMatcher.compile(patternsByAadGroupName);
+    }
 
-        for (AssignedGroupDto group : user.getAssignedGroups()) {
-            String name = group.getName();
-            if (name == null) {
-                continue;
-            }
+    public Set<String> resolveTargetAadGroupNames(QlikUser user) {
+        if (user.groupNames().isEmpty()) {
+            return Collections.emptySet();
+        }
 
-            int idx = name.indexOf('_');
-            if (idx <= 0) {
-                continue;
-            }
+        BitSet matched = hits.get();
+        matched.clear();
+        for (String name : user.groupNames()) {
+            matcher.matchInto(name, matched);
+        }
 
-            String prefix = name.substring(0, idx + 1);
-            String aadGroupName = prefixToAadGroupName.get(prefix);
-            if (aadGroupName != null) {
-                result.add(aadGroupName);
-            }
+        if (matched.isEmpty()) {
+            return Collections.emptySet();
         }
 
-        if (!result.isEmpty()) {
-            log.debug("User {} ({}) will be mapped to AAD groups: {}",
-                    user.getName(), user.getEmail(), result);
+        String[] names = new String[matched.cardinality()];
+        int n = 0;
+        for (int target = matched.nextSetBit(0); target >= 0; target = matched.nextSetBit(target + 1)) {
+            names[n++] = matcher.targetName(target);
         }
+        Set<String> result = Set.of(names);
+
+        log.debug("User {} ({}) will be mapped to AAD groups: {}",
+                user.name(), user.email(), result);
 
         return result;
     }
@@ -0,0 +1,76 @@
+package no.novari.qliktosharepoint.service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Graph operations a sync run had planned but did not start before its time budget ran out.
+ * The next run submits these ahead of everything else.
+ */
+public record SyncCarryOver(Set<String> emailsToInvite,
+                            Set<String> groupIdsToPlan,
+                            Map<String, Set<String>> addsByGroupId,
+                            Map<String, Set<String>> removesByGroupId) {
+
+    public static SyncCarryOver empty() {
+        return new SyncCarryOver(Set.of(), Set.of(), Map.of(), Map.of());
+    }
+
+    public boolean isEmpty() {
+        return emailsToInvite.isEmpty() && groupIdsToPlan.isEmpty() && addsByGroupId.isEmpty() && removesByGroupId.isEmpty();
+    }
+
+    public int adds() {
+        return addsByGroupId.values().stream().mapToInt(Set::size).sum();
+    }
+
+    public int removes() {
+        return removesByGroupId.values().stream().mapToInt(Set::size).sum();
+    }
+
+    static final class Builder {
+        private final Set<String> emailsToInvite = ConcurrentHashMap.newKeySet();
+        private final Set<String> groupIdsToPlan = ConcurrentHashMap.newKeySet();
+        private final Map<String, Set<String>> addsByGroupId = new ConcurrentHashMap<>();
+        private final Map<String, Set<String>> removesByGroupId = new ConcurrentHashMap<>();
+
+        void invite(String email) {
+            emailsToInvite.add(email);
+        }
+
+        void plan(String groupId) {
+            groupIdsToPlan.add(groupId);
+        }
+
+        void add(String groupId, String userId) {
+            addsByGroupId.computeIfAbsent(groupId, _ -> ConcurrentHashMap.newKeySet()).add(userId);
+        }
+
+        void remove(String groupId, String userId) {
+            removesByGroupId.computeIfAbsent(groupId, _ -> ConcurrentHashMap.newKeySet()).add(userId);
+        }
+
+        void carry(SyncCarryOver previous) {
+            emailsToInvite.addAll(previous.emailsToInvite());
+            groupIdsToPlan.addAll(previous.groupIdsToPlan());
+            previous.addsByGroupId().forEach((groupId, userIds) -> userIds.forEach(userId -> add(groupId, userId)));
+            previous.removesByGroupId().forEach((groupId, userIds) -> userIds.forEach(userId -> remove(groupId, userId)));
+        }
+
+        SyncCarryOver build() {
+            return new SyncCarryOver(
+                    Set.copyOf(emailsToInvite),
+                    Set.copyOf(groupIdsToPlan),
+                    copy(addsByGroupId),
+                    copy(removesByGroupId)
+            );
+        }
+
+        private static Map<String, Set<String>> copy(Map<String, Set<String>> source) {
+            return source.entrySet().stream()
+                    .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> Set.copyOf(e.getValue())));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package no.novari.qliktosharepoint.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One sync run as seen from outside: phase, live counters and the cancel flag. The run updates the counters from
+ * its worker threads; {@link #status()} reads them without locking, so a status is consistent per field only.
+ */
+public final class SyncJob {
+
+    public enum Phase { QUEUED, FETCHING, PLANNING, RESOLVING_GUESTS, APPLYING, RECONCILING, FINISHED }
+
+    public enum State { RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    /**
+     * Graph operations are invites, adds and removes. {@code plannedOps} grows as groups are planned, so the ETA
+     * only covers the work known so far.
+     */
+    public static final class Counters {
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        final AtomicInteger plannedOps = new AtomicInteger();
+        final AtomicInteger completedOps = new AtomicInteger();
+    }
+
+    public record Status(String runId,
+                         String trigger,
+                         State state,
+                         Phase phase,
+                         Instant startedAt,
+                         Instant finishedAt,
+                         int usersFound,
+                         int added,
+                         int removed,
+                         int skipped,
+                         int failed,
+                         int plannedOps,
+                         int completedOps,
+                         double opsPerSecond,
+                         Long etaSeconds) {
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String trigger;
+    private final Counters counters = new Counters();
+    private final Instant startedAt = Instant.now();
+    private final long startedNanos = System.nanoTime();
+    private volatile Phase phase = Phase.QUEUED;
+    private volatile State state = State.RUNNING;
+    private volatile Instant finishedAt;
+    private volatile int usersFound;
+    private volatile boolean cancelRequested;
+
+    public SyncJob(String trigger) {
+        this.trigger = trigger;
+    }
+
+    /**
+     * A job for runs nobody observes, e.g. direct calls in tests.
+     */
+    static SyncJob detached() {
+        return new SyncJob("direct");
+    }
+
+    public String id() {
+        return id;
+    }
+
+    Counters counters() {
+        return counters;
+    }
+
+    void phase(Phase phase) {
+        this.phase = phase;
+    }
+
+    void usersFound(int usersFound) {
+        this.usersFound = usersFound;
+    }
+
+    /**
+     * Asks the run to stop. The run treats it like an exhausted budget: nothing new is submitted, operations in
+     * flight finish and deferred work is carried over to the next run.
+     *
+     * @return false if the run already finished
+     */
+    public boolean cancel() {
+        if (state != State.RUNNING) return false;
+        cancelRequested = true;
+        return true;
+    }
+
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    public boolean isFinished() {
+        return state != State.RUNNING;
+    }
+
+    void finish(boolean failed) {
+        finishedAt = Instant.now();
+        phase = Phase.FINISHED;
+        state = failed ? State.FAILED : cancelRequested ? State.CANCELLED : State.SUCCEEDED;
+    }
+
+    public Status status() {
+        Instant end = finishedAt;
+        Duration elapsed = end != null
+                ? Duration.between(startedAt, end)
+                : Duration.ofNanos(System.nanoTime() - startedNanos);
+        int planned = counters.plannedOps.get();
+        int completed = counters.completedOps.get();
+
+        double seconds = Math.max(elapsed.toMillis(), 1) / 1000.0;
+        double opsPerSecond = completed / seconds;
+        Long eta = end == null && opsPerSecond > 0
+                ? (long) Math.ceil(Math.max(0, planned - completed) / opsPerSecond)
+                : null;
+
+        return new Status(id, trigger, state, phase, startedAt, end, usersFound,
+                counters.added.get(), counters.removed.get(), counters.skipped.get(), counters.failed.get(),
+                planned, completed, Math.round(opsPerSecond * 10) / 10.0, eta);
+    }
+}
@@ -0,0 +1,61 @@
+package no.novari.qliktosharepoint.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Publishes the decisions of {@link AdaptiveSyncSchedule} to Micrometer, available under
+ * {@code /actuator/metrics/sync.schedule.*}. {@code sync.schedule.reason} is 1 for the reason behind the current
+ * interval and 0 for the others.
+ */
+@Component
+@RequiredArgsConstructor
+public class SyncScheduleMetrics implements MeterBinder {
+
+    private final AdaptiveSyncSchedule schedule;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("sync.schedule.interval", schedule, s -> s.decision().interval().toMillis() / 1000.0)
+                .description("Delay before the next scheduled sync")
+                .baseUnit("seconds")
+                .register(registry);
+        for (AdaptiveSyncSchedule.Reason reason : AdaptiveSyncSchedule.Reason.values()) {
+            Gauge.builder("sync.schedule.reason", schedule, s -> s.decision().reason() == reason ? 1 : 0)
+                    .description("Reason for the current sync interval")
+                    .tags("reason", reason.name().toLowerCase())
+                    .register(registry);
+        }
+        Gauge.builder("sync.schedule.next", schedule, SyncScheduleMetrics::secondsUntilNextSync)
+                .description("Time until the next scheduled sync")
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("sync.schedule.last.run.duration", schedule, s -> s.lastRunDuration().toMillis() / 1000.0)
+                .description("Duration of the last finished sync run")
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("sync.schedule.last.run.throttled", schedule, AdaptiveSyncSchedule::lastThrottled)
+                .description("Graph calls retried after throttling in the last sync run")
+                .register(registry);
+        FunctionCounter.builder("sync.schedule.cache.refresh.deferred", schedule,
+                        AdaptiveSyncSchedule::deferredRefreshes)
+                .description("Entra cache refreshes postponed to a gap between sync runs")
+                .register(registry);
+        FunctionCounter.builder("sync.schedule.sync.delayed", schedule, AdaptiveSyncSchedule::delayedSyncs)
+                .description("Scheduled syncs skipped while a run or the first Entra cache refresh was in progress")
+                .register(registry);
+    }
+
+    private static double secondsUntilNextSync(AdaptiveSyncSchedule schedule) {
+        Instant next = schedule.nextSyncAt();
+        if (next == null) return Double.NaN;
+        return Math.max(0, Duration.between(Instant.now(), next).toMillis()) / 1000.0;
+    }
+}
@@ -0,0 +1,36 @@
+package no.novari.qliktosharepoint.service;
+
+import java.util.Set;
+
+/**
+ * Outcome of a targeted sync of one Qlik user, see {@link UserSyncService#syncUser(String)}.
+ *
+ * @param added     groups the user was added to
+ * @param unchanged groups the user already was a member of
+ * @param failed    groups that could not be resolved or written
+ */
+public record UserSyncResult(Outcome outcome,
+                             String qlikUserId,
+                             String email,
+                             String userId,
+                             Set<String> added,
+                             Set<String> unchanged,
+                             Set<String> failed,
+                             long tookMs) {
+
+    public enum Outcome {
+        SYNCED,
+        PARTIAL,
+        NOT_FOUND,
+        INACTIVE,
+        FILTERED,
+        INVITE_SUPPRESSED,
+        QLIK_UNAVAILABLE,
+        FAILED
+    }
+
+    static UserSyncResult of(Outcome outcome, String qlikUserId, String email, long startedNanos) {
+        return new UserSyncResult(outcome, qlikUserId, email, null, Set.of(), Set.of(), Set.of(),
+                (System.nanoTime() - startedNanos) / 1_000_000);
+    }
+}
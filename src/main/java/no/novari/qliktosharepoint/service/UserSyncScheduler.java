@@ -1,31 +1,174 @@
 package no.novari.qliktosharepoint.service;
 
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import no.novari.qliktosharepoint.cache.EntraCacheRefresher;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Owns the single-run guard for sync runs. Scheduled runs execute on the scheduler thread; manual runs are
+ * submitted as jobs on a background thread. Both register a {@link SyncJob}, so a manual trigger while a run is in
+ * progress gets that run back instead of starting a second one.
+ * <p>
+ * Scheduled runs and the full Entra cache refresh are triggered from {@link AdaptiveSyncSchedule}, which sets the
+ * sync interval from the outcome of the last run and keeps the cache refresh out of the way of sync runs. The
+ * refresh runs on its own thread, so a long Graph read never holds up the scheduler; only on a cold cache do
+ * scheduled runs wait for it.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
-public class UserSyncScheduler {
+public class UserSyncScheduler implements SchedulingConfigurer {
+
+    private static final int RECENT_JOBS = 20;
+    private static final Duration INITIAL_DELAY = Duration.ofSeconds(5);
 
     private final UserSyncService userSyncService;
+    private final AdaptiveSyncSchedule schedule;
+    private final EntraCacheRefresher cacheRefresher;
     public final AtomicBoolean running = new AtomicBoolean(false);
+    private final ExecutorService jobExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final Map<String, SyncJob> recentJobs = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SyncJob> eldest) {
+            return size() > RECENT_JOBS;
+        }
+    };
+    private SyncJob current;
+
+    /**
+     * @param job     the started run, or the run already in progress
+     * @param started false if {@code job} was already running
+     */
+    public record Submission(SyncJob job, boolean started) {
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        refreshExecutor.shutdownNow();
+    }
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar registrar) {
+        registrar.addTriggerTask(this::scheduledRun, ctx -> ctx.lastCompletion() == null || schedule.lastFinishedAt() == null
+                ? Instant.now().plus(INITIAL_DELAY)
+                : schedule.scheduleNextSync(ctx.lastCompletion()));
+        registrar.addTriggerTask(this::scheduledCacheRefresh,
+                ctx -> schedule.nextCacheRefreshAt(ctx.lastCompletion(), Instant.now()));
+    }
 
-    @Scheduled(initialDelayString = "PT5S", fixedDelayString = "PT5M")
     public void scheduledRun() {
-        if (!running.compareAndSet(false, true)) {
+        if (refreshing.get() && schedule.isCacheCold()) {
+            log.info("Waiting for the first Entra cache refresh before syncing");
+            schedule.recordSyncDelayed();
+            return;
+        }
+        SyncJob job = tryStart("scheduled");
+        if (job == null) {
             log.warn("Previous sync still running - skipping this run");
+            schedule.recordSyncDelayed();
             return;
         }
+        run(job);
+    }
+
+    public void scheduledCacheRefresh() {
+        if (!schedule.cacheRefreshWindowOpen(running.get(), Instant.now())) {
+            log.info("Entra cache refresh deferred - sync running or due at {}", schedule.nextSyncAt());
+            return;
+        }
+        if (!refreshing.compareAndSet(false, true)) {
+            log.warn("Previous Entra cache refresh still running - skipping this one");
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    cacheRefresher.refreshCacheScheduled();
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.set(false);
+            throw e;
+        }
+    }
+
+    public boolean isCacheRefreshing() {
+        return refreshing.get();
+    }
+
+    /**
+     * Starts a sync in the background and returns at once.
+     */
+    public synchronized Submission submit(String trigger) {
+        SyncJob job = tryStart(trigger);
+        if (job == null) {
+            return new Submission(current, false);
+        }
+
+        try {
+            jobExecutor.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            release(job, true);
+            throw e;
+        }
+        log.info("Sync run {} submitted trigger={}", job.id(), trigger);
+        return new Submission(job, true);
+    }
+
+    public synchronized SyncJob job(String runId) {
+        return recentJobs.get(runId);
+    }
+
+    public synchronized SyncJob current() {
+        return current;
+    }
+
+    private synchronized SyncJob tryStart(String trigger) {
+        if (!running.compareAndSet(false, true)) return null;
+        current = new SyncJob(trigger);
+        recentJobs.put(current.id(), current);
+        return current;
+    }
+
+    private synchronized void release(SyncJob job, boolean failed) {
+        job.finish(failed);
+        if (current == job) current = null;
+        running.set(false);
+    }
+
+    private void run(SyncJob job) {
+        boolean failed = true;
+        long throttledBefore = userSyncService.throttledRetries();
         try {
-            userSyncService.syncAll();
+            userSyncService.syncAll(job);
+            failed = false;
+        } catch (RuntimeException e) {
+            log.error("Sync run {} FAILED cause={}", job.id(), e.toString(), e);
         } finally {
-            running.set(false);
+            release(job, failed);
+            SyncJob.Status status = job.status();
+            schedule.onRunFinished(status, userSyncService.throttledRetries() - throttledBefore);
+            log.debug("Sync run {} finished state={} added={} removed={} failed={}",
+                    job.id(), status.state(), status.added(), status.removed(), status.failed());
         }
     }
 }
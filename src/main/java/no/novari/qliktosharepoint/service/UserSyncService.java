@@ -3,36 +3,82 @@ package no.novari.qliktosharepoint.service;
 import com.microsoft.kiota.ApiException;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import no.novari.qliktosharepoint.cache.EntraCache;
-import no.novari.qliktosharepoint.config.GraphProperties;
+import no.novari.qliktosharepoint.cache.InviteFailure;
 import no.novari.qliktosharepoint.config.QlikProperties;
+import no.novari.qliktosharepoint.config.SyncProperties;
 import no.novari.qliktosharepoint.qlik.QlikUserClient;
-import no.novari.qliktosharepoint.qlik.QlikUserDto;
+import no.novari.qliktosharepoint.qlik.QlikUser;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class UserSyncService {
 
+    private static final long PROGRESS_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long BUDGET_GRACE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // identity marker closing a user stream; never a real page
+    private static final List<QlikUser> STREAM_END = Collections.unmodifiableList(new ArrayList<>());
+
     private final QlikUserClient qlikUserClient;
     private final GraphUserService graphUserService;
+    private final GuestLookupService guestLookup;
     private final GraphGroupService graphGroupService;
-    private final QlikToAadGroupMappingService mappingService;
+    private final DesiredStateBuilder desiredStateBuilder;
+    private final MembershipPlanner planner;
     private final QlikProperties qlikProperties;
-    private final GraphProperties graphProperties;
+    private final SyncProperties syncProperties;
     private final EntraCache entraCache;
+    private final AppliedStateJournal journal;
     private final ExecutorService executor = Executors.newFixedThreadPool(24);
-    private final Semaphore inviteLimit = new Semaphore(6);
-    private final Semaphore addLimit = new Semaphore(16);
+    private final ExecutorService streamExecutor = Executors.newSingleThreadExecutor();
+    private final Semaphore inviteLimit;
+    private final Semaphore writeLimit;
+    private final InFlightWindow window;
+    private final AtomicReference<SyncCarryOver> carryOver = new AtomicReference<>(SyncCarryOver.empty());
+    private final AtomicReference<AppliedState> lastApplied = new AtomicReference<>();
+    private final LongAdder throttledRetries = new LongAdder();
+
+    public UserSyncService(QlikUserClient qlikUserClient,
+                           GraphUserService graphUserService,
+                           GuestLookupService guestLookup,
+                           GraphGroupService graphGroupService,
+                           DesiredStateBuilder desiredStateBuilder,
+                           MembershipPlanner planner,
+                           QlikProperties qlikProperties,
+                           SyncProperties syncProperties,
+                           EntraCache entraCache,
+                           AppliedStateJournal journal) {
+        this.qlikUserClient = qlikUserClient;
+        this.graphUserService = graphUserService;
+        this.guestLookup = guestLookup;
+        this.graphGroupService = graphGroupService;
+        this.desiredStateBuilder = desiredStateBuilder;
+        this.planner = planner;
+        this.qlikProperties = qlikProperties;
+        this.syncProperties = syncProperties;
+        this.entraCache = entraCache;
+        this.journal = journal;
+        this.inviteLimit = new Semaphore(syncProperties.getMaxConcurrentInvites());
+        this.writeLimit = new Semaphore(syncProperties.getMaxConcurrentWrites());
+        this.window = new InFlightWindow(executor, syncProperties.getMaxInFlight());
+    }
 
     @PostConstruct
     public void logConfigAtStartup() {
@@ -47,82 +93,400 @@ public class UserSyncService {
     @PreDestroy
     public void shutdown() {
         executor.shutdown();
+        streamExecutor.shutdownNow();
+    }
+
+    /**
+     * Graph calls retried after a 429 or 503 since startup.
+     */
+    public long throttledRetries() {
+        return throttledRetries.sum();
+    }
+
+    /**
+     * Work the last run deferred because its budget ran out or it was cancelled.
+     */
+    SyncCarryOver carryOver() {
+        return carryOver.get();
     }
 
     public void syncAll() {
-        List<QlikUserDto> users = qlikUserClient.getAllUsers();
-        if (users == null) {
-            log.warn("Skipping sync/reconcile because Qlik fetch failed. Will retry next run.");
+        syncAll(SyncJob.detached());
+    }
+
+    /**
+     * Runs one sync, reporting phase and counters to the job. A cancel request on the job stops the run like an
+     * exhausted budget.
+     *
+     * @throws IllegalStateException if the Qlik users could not be fetched completely
+     */
+    public void syncAll(SyncJob job) {
+        if (syncProperties.isStreamingEnabled()) {
+            syncStreamed(job);
             return;
         }
 
-        Set<String> managedGroupNames = getManagedGroupNamesFromConfig();
-        Desired desired = buildDesired(users, managedGroupNames);
+        job.phase(SyncJob.Phase.FETCHING);
+        List<QlikUser> users = qlikUserClient.getAllUsers();
+        if (users == null) {
+            throw new IllegalStateException("Qlik user fetch failed - sync/reconcile skipped");
+        }
+
+        job.phase(SyncJob.Phase.PLANNING);
+        Desired desired = buildDesired(users);
 
         int usersFound = desired.desiredGroupsByEmail.size();
         int groupsFound = desired.groupsToUse.size();
+        job.usersFound(usersFound);
 
         if (usersFound == 0) {
             log.info("No users to sync after filters. Done. usersFound=0 groupsFound={}", groupsFound);
             return;
         }
 
+        job.phase(SyncJob.Phase.RESOLVING_GUESTS);
+        guestLookup.resolve(desired.desiredGroupsByEmail.keySet());
+        if (job.isCancelRequested()) {
+            log.info("Sync run {} cancelled before applying changes", job.id());
+            return;
+        }
+
+        AppliedState applied = lastApplied.get();
+        if (applied != null && carryOver.get().isEmpty()
+                && applied.covers(desired.fingerprint, entraCache.getModCount(), Instant.now())) {
+            log.debug("Desired state and cache unchanged since {} - skipping sync run", applied.appliedAt());
+            return;
+        }
+
         Map<String, String> groupIdByName = resolveGroupIdsFromCache(desired.groupsToUse);
-        Map<String, String> userIdByEmail = ensureGuestsAsync(desired.desiredGroupsByEmail.keySet(), desired.displayNameByEmail);
+        if (groupIdByName.isEmpty()) {
+            log.warn("No groupIds resolved from cache, memberships and reconcile skipped.");
+        }
 
-        AtomicInteger added = new AtomicInteger();
-        AtomicInteger skipped = new AtomicInteger();
-        AtomicInteger failed = new AtomicInteger();
+        boolean cleanup = qlikProperties.isCleanupRemoveMemberships();
+        if (!cleanup) {
+            log.warn("Cleanup/reconcile disabled by config. To allow cleanup, enable this in config");
+        }
 
-        runMembershipsAsync(desired.desiredGroupsByEmail, userIdByEmail, groupIdByName, added, skipped, failed);
+        SyncCarryOver previous = carryOver.getAndSet(SyncCarryOver.empty());
+        boolean fullRun = !previous.isEmpty() || journal.isFullRunDue(entraCache.getLastRefresh(), Instant.now());
 
-        if (qlikProperties.isCleanupRemoveMemberships()) {
-            Map<String, Set<String>> desiredMembersByGroupId = buildDesiredMembersByGroupId(desired.desiredGroupsByEmail, userIdByEmail, groupIdByName);
-            reconcileGroups(desired.groupsToUse, desiredMembersByGroupId, groupIdByName);
+        SyncRun run;
+        Increment increment = null;
+        if (fullRun) {
+            run = new SyncRun(desired, groupIdByName, null, cleanup, previous, job);
         } else {
+            increment = increment(desired, groupIdByName);
+            if (increment.desired.desiredGroupsByEmail.isEmpty() && increment.removalCandidatesByGroupId.isEmpty()) {
+                journal.commit(Map.of(), Set.of(), increment.forgettable(), false);
+                lastApplied.set(AppliedState.of(desired.fingerprint, entraCache.getModCount(),
+                        syncProperties.getMaxSkipAge(), null));
+                log.debug("Incremental sync: no changed users since last applied state. departed={}",
+                        increment.forgettable().size());
+                return;
+            }
+            log.info("Incremental sync: changed={} departed={} groups={}",
+                    increment.desired.desiredGroupsByEmail.size(), increment.departed.size(),
+                    increment.groupIdByName.size());
+            run = new SyncRun(increment.desired, increment.groupIdByName, increment.removalCandidatesByGroupId,
+                    cleanup, previous, job);
+        }
+        job.phase(SyncJob.Phase.APPLYING);
+        run.execute();
+        recordApplied(run, increment);
+
+        SyncCarryOver next = run.next.build();
+        carryOver.set(next);
+        lastApplied.set(run.counters.failed.get() == 0 && next.isEmpty()
+                ? AppliedState.of(desired.fingerprint, entraCache.getModCount(), syncProperties.getMaxSkipAge(),
+                run.nextInviteRetryAt)
+                : null);
+        if (!next.isEmpty()) {
+            log.warn("Sync run {}. Carried over invites={} groups={} adds={} removes={}",
+                    job.isCancelRequested() ? "cancelled" : "budget " + syncProperties.getRunBudget() + " exhausted",
+                    next.emailsToInvite().size(), next.groupIdsToPlan().size(), next.adds(), next.removes());
+        }
+
+        SyncJob.Counters counters = run.counters;
+        if (counters.removed.get() > 0) {
+            log.info("Reconcile finished. Removed {} members", counters.removed.get());
+        } else {
+            log.debug("Reconcile finished. No members removed");
+        }
+
+        log.info("Sync summary mode={} usersFound={} groupsFound={} added={} skipped={} failed={}",
+                fullRun ? "full" : "incremental", usersFound, groupsFound,
+                counters.added.get(), counters.skipped.get(), counters.failed.get());
+    }
+
+    /**
+     * Full run as a stream: Qlik pages are mapped, resolved and written while later pages are still being fetched,
+     * and removals are planned once the last page is through. The desired state is never held as a whole: the page
+     * queue and the in-flight window are bounded, and one bitmap of desired user ordinals per group is kept for
+     * reconcile. The Qlik audit filter is still scanned up front, see {@link QlikUserClient#streamAllUsers}.
+     * Adds carried over from the previous run go out before the first page.
+     */
+    private void syncStreamed(SyncJob job) {
+        boolean cleanup = qlikProperties.isCleanupRemoveMemberships();
+        if (!cleanup) {
             log.warn("Cleanup/reconcile disabled by config. To allow cleanup, enable this in config");
         }
 
-        log.info("Sync summary usersFound={} groupsFound={} added={} skipped={} failed={}",
-                usersFound, groupsFound, added.get(), skipped.get(), failed.get());
+        StreamingRun run = new StreamingRun(cleanup, carryOver.getAndSet(SyncCarryOver.empty()), job);
+        run.execute();
+        lastApplied.set(null);
+
+        SyncCarryOver next = run.carryOver();
+        carryOver.set(next);
+        if (!next.isEmpty()) {
+            log.warn("Sync run {}. Carried over invites={} groups={} adds={} removes={}",
+                    job.isCancelRequested() ? "cancelled"
+                            : run.cutOff ? "budget " + syncProperties.getRunBudget() + " exhausted" : "incomplete",
+                    next.emailsToInvite().size(), next.groupIdsToPlan().size(), next.adds(), next.removes());
+        }
+
+        SyncJob.Counters counters = run.counters;
+        log.info("Sync summary mode=streamed usersFound={} groupsFound={} added={} skipped={} removed={} failed={} firstWriteAfterMs={}",
+                run.usersFound, run.groupIdByName.size(), counters.added.get(), counters.skipped.get(),
+                counters.removed.get(), counters.failed.get(), run.firstWriteAfterMillis());
+        if (run.fetchFailed) {
+            throw new IllegalStateException("Qlik user stream incomplete - reconcile skipped");
+        }
     }
 
-    private Desired buildDesired(List<QlikUserDto> users, Set<String> managedGroupNames) {
-        Set<String> observedGroupNames = new HashSet<>();
+    /**
+     * Syncs one Qlik user outside the scheduled runs: point lookups of the user and its audit activity, then guest
+     * resolution and group adds for that user only, on the calling thread. Removals are left to the regular runs.
+     * An audit lookup that fails counts as active.
+     */
+    public UserSyncResult syncUser(String idOrEmail) {
+        long start = System.nanoTime();
+
+        List<QlikUser> found = qlikUserClient.findUsers(idOrEmail);
+        if (found == null) {
+            return UserSyncResult.of(UserSyncResult.Outcome.QLIK_UNAVAILABLE, null, null, start);
+        }
+        if (found.isEmpty()) {
+            return UserSyncResult.of(UserSyncResult.Outcome.NOT_FOUND, null, null, start);
+        }
+
+        QlikUser user = found.getFirst();
+        Boolean active = qlikUserClient.hasRecentActivity(user.id());
+        if (Boolean.FALSE.equals(active)) {
+            return UserSyncResult.of(UserSyncResult.Outcome.INACTIVE, user.id(), user.email(), start);
+        }
+        if (active == null) {
+            log.warn("Audit lookup failed for Qlik user {} - syncing it as active", user.id());
+        }
 
-        Map<String, Set<String>> desiredGroupsByEmail = new HashMap<>();
-        Map<String, String> displayNameByEmail = new HashMap<>();
+        DesiredStateBuilder.Result desired = desiredStateBuilder.build(List.of(user));
+        String email = user.email();
+        Set<String> groupNames = email == null ? null : desired.groupsByEmail().get(email);
+        if (groupNames == null) {
+            return UserSyncResult.of(UserSyncResult.Outcome.FILTERED, user.id(), email, start);
+        }
 
-        for (QlikUserDto u : users) {
-            if (!isFederatedUser(u)) continue;
+        guestLookup.resolve(List.of(email));
+        String userId = entraCache.getGuestIdByEmail(email);
+        if (userId == null || userId.isBlank()) {
+            if (entraCache.getActiveInviteFailure(email) != null) {
+                return UserSyncResult.of(UserSyncResult.Outcome.INVITE_SUPPRESSED, user.id(), email, start);
+            }
+            String displayName = desired.displayNameByEmail().getOrDefault(email, email);
+            try {
+                userId = withRetry("ensureGuest", email, () -> graphUserService.ensureGuestUserId(email, displayName));
+                entraCache.putGuest(email, userId);
+            } catch (RuntimeException e) {
+                log.error("FAILED ensure guest email={} msg={}", email, unwrap(e).getMessage());
+                return UserSyncResult.of(UserSyncResult.Outcome.FAILED, user.id(), email, start);
+            }
+        }
 
-            String email = normalizeEmail(u.getEmail());
-            if (email == null) continue;
-            if (isExcludedDomain(email)) continue;
+        Set<String> added = new TreeSet<>();
+        Set<String> unchanged = new TreeSet<>();
+        Set<String> failed = new TreeSet<>();
+        for (String groupName : groupNames) {
+            String groupId = entraCache.getGroupIdByDisplayName(groupName);
+            if (groupId == null || groupId.isBlank()) {
+                log.warn("Missing groupId in cache for groupName='{}' (will be skipped)", groupName);
+                failed.add(groupName);
+                continue;
+            }
+            if (entraCache.isMember(groupId, userId)) {
+                unchanged.add(groupName);
+                continue;
+            }
 
-            Set<String> targetGroupNames = mappingService.resolveTargetAadGroupNames(u);
-            if (targetGroupNames == null || targetGroupNames.isEmpty()) continue;
+            String memberId = userId;
+            acquire(writeLimit);
+            try {
+                withRetry("ensureMembership", "userId=" + memberId + " group=" + groupName, () -> {
+                    graphGroupService.addUserToGroup(memberId, groupId);
+                    return null;
+                });
+                added.add(groupName);
+            } catch (RuntimeException e) {
+                failed.add(groupName);
+            } finally {
+                writeLimit.release();
+            }
+        }
 
-            Set<String> effectiveGroups = managedGroupNames.isEmpty()
-                    ? new HashSet<>(targetGroupNames)
-                    : targetGroupNames.stream().filter(managedGroupNames::contains).collect(Collectors.toSet());
+        long tookMs = (System.nanoTime() - start) / 1_000_000;
+        UserSyncResult.Outcome outcome = failed.isEmpty() ? UserSyncResult.Outcome.SYNCED
+                : added.isEmpty() && unchanged.isEmpty() ? UserSyncResult.Outcome.FAILED
+                : UserSyncResult.Outcome.PARTIAL;
+        log.info("Targeted sync qlikUserId={} email={} outcome={} added={} unchanged={} failed={} tookMs={}",
+                user.id(), email, outcome, added, unchanged, failed, tookMs);
+        return new UserSyncResult(outcome, user.id(), email, userId, added, unchanged, failed, tookMs);
+    }
 
-            if (effectiveGroups.isEmpty()) continue;
+    /**
+     * Narrows a run to the users whose desired groups, guest id or last outcome differ from the journal, or whose
+     * journaled memberships are no longer in the cache (removed outside the sync, or dropped by the verifier), and
+     * collects the users to consider for removal: journaled users that lost a group or left the desired state.
+     */
+    private Increment increment(Desired desired, Map<String, String> groupIdByName) {
+        Map<String, Set<String>> changed = new HashMap<>();
+        Map<String, Set<String>> removalCandidatesByGroupId = new HashMap<>();
 
-            observedGroupNames.addAll(effectiveGroups);
+        for (Map.Entry<String, Set<String>> entry : desired.desiredGroupsByEmail.entrySet()) {
+            String email = entry.getKey();
+            AppliedStateJournal.Entry applied = journal.get(email);
+            String cachedId = entraCache.getGuestIdByEmail(email);
 
-            desiredGroupsByEmail.merge(email, effectiveGroups, (a, b) -> {
-                a.addAll(b);
-                return a;
-            });
+            if (applied != null && !journal.isFailed(email)
+                    && applied.userId().equals(cachedId) && applied.groupNames().equals(entry.getValue())
+                    && isStillMember(applied, groupIdByName)) {
+                continue;
+            }
+            changed.put(email, entry.getValue());
+
+            if (applied != null) {
+                boolean sameUser = cachedId == null || applied.userId().equals(cachedId);
+                for (String groupName : applied.groupNames()) {
+                    if (sameUser && entry.getValue().contains(groupName)) continue;
+                    addRemovalCandidate(removalCandidatesByGroupId, groupIdByName.get(groupName), applied.userId());
+                }
+            }
+        }
+
+        Map<String, AppliedStateJournal.Entry> departed = new HashMap<>();
+        Set<String> untracked = new HashSet<>();
+        for (String email : journal.emails()) {
+            if (desired.desiredGroupsByEmail.containsKey(email)) continue;
+            AppliedStateJournal.Entry applied = journal.get(email);
+            if (applied == null) {
+                untracked.add(email);
+                continue;
+            }
+            departed.put(email, applied);
+            for (String groupName : applied.groupNames()) {
+                addRemovalCandidate(removalCandidatesByGroupId, groupIdByName.get(groupName), applied.userId());
+            }
+        }
 
-            if (u.getName() != null && !u.getName().isBlank()) {
-                displayNameByEmail.putIfAbsent(email, u.getName());
+        Set<String> touchedGroupNames = new HashSet<>();
+        changed.values().forEach(touchedGroupNames::addAll);
+        Map<String, String> touchedGroupIdByName = new HashMap<>();
+        groupIdByName.forEach((groupName, groupId) -> {
+            if (touchedGroupNames.contains(groupName) || removalCandidatesByGroupId.containsKey(groupId)) {
+                touchedGroupIdByName.put(groupName, groupId);
             }
+        });
+
+        Desired narrowed = new Desired(changed, desired.displayNameByEmail, desired.groupsToUse, desired.fingerprint);
+        return new Increment(narrowed, touchedGroupIdByName, removalCandidatesByGroupId, departed, untracked);
+    }
+
+    private boolean isStillMember(AppliedStateJournal.Entry applied, Map<String, String> groupIdByName) {
+        for (String groupName : applied.groupNames()) {
+            String groupId = groupIdByName.get(groupName);
+            if (groupId != null && !entraCache.isMember(groupId, applied.userId())) return false;
         }
+        return true;
+    }
 
-        Set<String> groupsToUse = !managedGroupNames.isEmpty() ? managedGroupNames : observedGroupNames;
-        return new Desired(desiredGroupsByEmail, displayNameByEmail, groupsToUse);
+    private static void addRemovalCandidate(Map<String, Set<String>> candidatesByGroupId, String groupId, String userId) {
+        if (groupId == null || groupId.isBlank()) return;
+        candidatesByGroupId.computeIfAbsent(groupId, _ -> new HashSet<>()).add(userId);
+    }
+
+    /**
+     * Journals the users of a finished run. A user counts as applied when it was resolved and none of its invite,
+     * group or membership operations failed or were deferred; a departed user is forgotten once its removals went
+     * through. Nothing is journaled for a run cut off with operations still in flight.
+     */
+    private void recordApplied(SyncRun run, Increment increment) {
+        if (!journal.isEnabled()) return;
+        if (!run.completed) {
+            log.warn("Sync run did not settle - applied-state journal left unchanged");
+            return;
+        }
+
+        Map<String, AppliedStateJournal.Entry> applied = new HashMap<>();
+        Set<String> failed = new HashSet<>();
+        for (Map.Entry<String, Set<String>> entry : run.desired.desiredGroupsByEmail.entrySet()) {
+            String email = entry.getKey();
+            String userId = run.userIdByEmail.get(email);
+            if (userId != null && !run.failedEmails.contains(email) && run.settled(userId, entry.getValue())) {
+                applied.put(email, new AppliedStateJournal.Entry(userId, Set.copyOf(entry.getValue())));
+            } else {
+                failed.add(email);
+            }
+        }
+
+        if (increment == null) {
+            journal.commit(applied, failed, Set.of(), true);
+            return;
+        }
+
+        Set<String> forgotten = increment.forgettable();
+        increment.departed.forEach((email, entry) -> {
+            if (!run.settled(entry.userId(), entry.groupNames())) forgotten.remove(email);
+        });
+        journal.commit(applied, failed, forgotten, false);
+    }
+
+    private Desired buildDesired(List<QlikUser> users) {
+        long start = System.nanoTime();
+        DesiredStateBuilder.Result result = desiredStateBuilder.build(users);
+        GroupMappingMemo.Stats mapping = result.mappingStats();
+        log.debug("Built desired state for {} Qlik users in {}ms. Group mapping lookups={} distinctSignatures={} hitRate={}",
+                users.size(), (System.nanoTime() - start) / 1_000_000, mapping.hits() + mapping.misses(),
+                mapping.distinct(), String.format("%.3f", mapping.hitRate()));
+
+        return new Desired(result.groupsByEmail(), result.displayNameByEmail(), result.groupsToUse(),
+                fingerprint(result.groupsByEmail(), result.groupsToUse()));
+    }
+
+    /**
+     * Order-independent SHA-256 of the desired state: managed groups, then each email with its groups, all sorted.
+     */
+    static String fingerprint(Map<String, Set<String>> desiredGroupsByEmail, Set<String> groupsToUse) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (String group : new TreeSet<>(groupsToUse)) {
+            sha.update(group.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+        }
+        sha.update((byte) 1);
+
+        for (String email : new TreeSet<>(desiredGroupsByEmail.keySet())) {
+            sha.update(email.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            for (String group : new TreeSet<>(desiredGroupsByEmail.get(email))) {
+                sha.update(group.getBytes(StandardCharsets.UTF_8));
+                sha.update((byte) 0);
+            }
+            sha.update((byte) 1);
+        }
+        return HexFormat.of().formatHex(sha.digest());
     }
 
     private Map<String, String> resolveGroupIdsFromCache(Set<String> groupsToUse) {
@@ -138,269 +502,761 @@ public class UserSyncService {
         return groupIdByName;
     }
 
-    private Map<String, String> ensureGuestsAsync(Set<String> emails, Map<String, String> displayNameByEmail) {
-        Map<String, String> userIdByEmail = new ConcurrentHashMap<>();
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
+    /**
+     * One sync run. The calling thread is the only feeder: it drains {@link #work} and pushes Graph operations
+     * through the {@link InFlightWindow}, blocking while the window is full. Completion callbacks only enqueue
+     * follow-up work, so the number of live futures stays bounded by the window size, not by the tenant size.
+     * <p>
+     * Once the run budget is spent no new Graph operation is started; what would have been submitted is recorded
+     * in {@link #next} and submitted first by the following run.
+     */
+    private final class SyncRun {
+
+        private final SyncJob.Counters counters;
+        private final BlockingQueue<Runnable> work = new LinkedBlockingQueue<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final Map<String, String> userIdByEmail = new ConcurrentHashMap<>();
+        private final Map<String, List<String>> emailsByGroupId = new HashMap<>();
+        private final Map<String, AtomicInteger> pendingGuestsByGroupId = new HashMap<>();
+
+        private final SyncCarryOver.Builder next = new SyncCarryOver.Builder();
+        private Instant nextInviteRetryAt;
+        private boolean completed;
+
+        // what did not get applied, for the applied-state journal
+        private final Set<String> failedEmails = ConcurrentHashMap.newKeySet();
+        private final Set<String> failedUserIds = ConcurrentHashMap.newKeySet();
+        private final Set<String> failedGroupIds = ConcurrentHashMap.newKeySet();
+
+        private final Desired desired;
+        private final Map<String, String> groupIdByName;
+        private final Map<String, Set<String>> removalCandidatesByGroupId;
+        private final boolean cleanup;
+        private final SyncCarryOver previous;
+        private final SyncJob job;
+        private final long deadline;
+
+        /**
+         * @param removalCandidatesByGroupId null for a full run, which diffs whole groups; otherwise the run only
+         *                                   plans its desired users plus these candidates
+         */
+        SyncRun(Desired desired, Map<String, String> groupIdByName, Map<String, Set<String>> removalCandidatesByGroupId,
+                boolean cleanup, SyncCarryOver previous, SyncJob job) {
+            this.desired = desired;
+            this.groupIdByName = groupIdByName;
+            this.removalCandidatesByGroupId = removalCandidatesByGroupId;
+            this.cleanup = cleanup;
+            this.previous = previous;
+            this.job = job;
+            this.counters = job.counters();
+            this.deadline = System.nanoTime() + syncProperties.getRunBudget().toNanos();
+        }
 
-        int cachedGuests = 0;
-        int toCreate = 0;
+        private boolean budgetExhausted() {
+            return System.nanoTime() - deadline > 0 || job.isCancelRequested();
+        }
 
-        for (String email : emails) {
-            String cachedId = entraCache.getGuestIdByEmail(email);
-            if (cachedId != null && !cachedId.isBlank()) {
-                userIdByEmail.put(email, cachedId);
-                cachedGuests++;
-                continue;
-            }
+        void execute() {
+            List<String> toInvite = new ArrayList<>();
+            int suppressed = 0;
+
+            for (Map.Entry<String, Set<String>> entry : desired.desiredGroupsByEmail.entrySet()) {
+                String email = entry.getKey();
 
-            toCreate++;
-            CompletableFuture<Void> f = CompletableFuture
-                    .supplyAsync(() -> {
-                        acquire(inviteLimit);
-                        try {
-                            String displayName = displayNameByEmail.getOrDefault(email, email);
-                            return withRetry("ensureGuest", email, () -> graphUserService.ensureGuestUserId(email, displayName));
-                        } finally {
-                            inviteLimit.release();
+                String cachedId = entraCache.getGuestIdByEmail(email);
+                boolean cached = cachedId != null && !cachedId.isBlank();
+                if (cached) {
+                    userIdByEmail.put(email, cachedId);
+                } else {
+                    InviteFailure failure = entraCache.getActiveInviteFailure(email);
+                    if (failure != null) {
+                        suppressed++;
+                        failedEmails.add(email);
+                        if (nextInviteRetryAt == null || failure.retryAfter().isBefore(nextInviteRetryAt)) {
+                            nextInviteRetryAt = failure.retryAfter();
                         }
-                    }, executor)
-                    .orTimeout(10, TimeUnit.MINUTES)
-                    .thenAccept(userId -> {
+                        continue;
+                    }
+                    toInvite.add(email);
+                }
+
+                for (String groupName : entry.getValue()) {
+                    String groupId = groupIdByName.get(groupName);
+                    if (groupId == null || groupId.isBlank()) {
+                        counters.failed.incrementAndGet();
+                        failedEmails.add(email);
+                        continue;
+                    }
+                    emailsByGroupId.computeIfAbsent(groupId, _ -> new ArrayList<>()).add(email);
+                    if (!cached) {
+                        pendingGuestsByGroupId.computeIfAbsent(groupId, _ -> new AtomicInteger()).incrementAndGet();
+                    }
+                }
+            }
+
+            int total = desired.desiredGroupsByEmail.size();
+            int cachedCount = total - toInvite.size() - suppressed;
+            if (!toInvite.isEmpty() || suppressed > 0) {
+                log.info("Guest resolution: cached={} created={} suppressed={} total={}",
+                        cachedCount, toInvite.size(), suppressed, total);
+            } else {
+                log.debug("Guest resolution: cached={} created=0 total={}", total, total);
+            }
+
+            outstanding.set(groupIdByName.size() + toInvite.size());
+            counters.plannedOps.addAndGet(toInvite.size());
+
+            List<Map.Entry<String, String>> readyGroups = groupIdByName.entrySet().stream()
+                    .filter(group -> !pendingGuestsByGroupId.containsKey(group.getValue()))
+                    .sorted(Comparator.comparing((Map.Entry<String, String> group) -> !isCarriedOver(group.getValue())))
+                    .toList();
+            for (Map.Entry<String, String> group : readyGroups) {
+                work.add(() -> applyGroup(group.getKey(), group.getValue()));
+            }
+            if (!toInvite.isEmpty()) {
+                toInvite.sort(Comparator.comparing((String email) -> !previous.emailsToInvite().contains(email)));
+                work.add(() -> submitAll(toInvite, this::inviteGuest, email -> {
+                    next.invite(email);
+                    failedEmails.add(email);
+                    onGuestSettled(email);
+                }, () -> {}));
+            }
+
+            completed = feed();
+        }
+
+        /**
+         * @return whether none of the user's operations in the given groups failed or was deferred
+         */
+        boolean settled(String userId, Set<String> groupNames) {
+            if (failedUserIds.contains(userId)) return false;
+            for (String groupName : groupNames) {
+                String groupId = groupIdByName.get(groupName);
+                if (groupId != null && failedGroupIds.contains(groupId)) return false;
+            }
+            return true;
+        }
+
+        private boolean isCarriedOver(String groupId) {
+            return previous.groupIdsToPlan().contains(groupId)
+                    || previous.addsByGroupId().containsKey(groupId)
+                    || previous.removesByGroupId().containsKey(groupId);
+        }
+
+        /**
+         * @return false if the run stopped with operations still outstanding
+         */
+        private boolean feed() {
+            long hardStop = deadline + BUDGET_GRACE_NANOS;
+            long nextReport = System.nanoTime() + PROGRESS_REPORT_INTERVAL_NANOS;
+
+            while (outstanding.get() > 0) {
+                if (System.nanoTime() - hardStop > 0) {
+                    log.warn("Sync run budget {} exhausted with operations still in flight. outstanding={} inFlight={} queuedWork={}",
+                            syncProperties.getRunBudget(), outstanding.get(), window.inFlight(), work.size());
+                    return false;
+                }
+
+                Runnable item;
+                try {
+                    item = work.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Sync pipeline interrupted. outstanding={}", outstanding.get());
+                    return false;
+                }
+
+                if (item != null) {
+                    try {
+                        item.run();
+                    } catch (RuntimeException e) {
+                        log.error("Sync pipeline work item FAILED cause={}", e.toString(), e);
+                    }
+                }
+
+                if (System.nanoTime() - nextReport > 0) {
+                    nextReport = System.nanoTime() + PROGRESS_REPORT_INTERVAL_NANOS;
+                    log.info("Sync progress outstanding={} inFlight={}/{} queuedWork={} added={} removed={} failed={}",
+                            outstanding.get(), window.inFlight(), window.capacity(), work.size(),
+                            counters.added.get(), counters.removed.get(), counters.failed.get());
+                }
+            }
+            return true;
+        }
+
+        private void submitAll(Collection<String> keys,
+                               Function<String, CompletableFuture<Void>> submitOne,
+                               Consumer<String> onSkipped,
+                               Runnable onDone) {
+            if (keys.isEmpty()) {
+                onDone.run();
+                return;
+            }
+
+            AtomicInteger remaining = new AtomicInteger(keys.size());
+            Runnable settle = () -> {
+                if (remaining.decrementAndGet() == 0) onDone.run();
+            };
+
+            for (String key : keys) {
+                if (budgetExhausted()) {
+                    onSkipped.accept(key);
+                    settle.run();
+                    continue;
+                }
+
+                CompletableFuture<Void> f;
+                try {
+                    f = submitOne.apply(key);
+                } catch (RuntimeException e) {
+                    f = CompletableFuture.failedFuture(e);
+                }
+                f.whenComplete((_, _) -> settle.run());
+            }
+        }
+
+        private static List<String> carriedFirst(Set<String> keys, Set<String> carried) {
+            if (carried.isEmpty()) return List.copyOf(keys);
+
+            List<String> ordered = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                if (carried.contains(key)) ordered.add(key);
+            }
+            for (String key : keys) {
+                if (!carried.contains(key)) ordered.add(key);
+            }
+            return ordered;
+        }
+
+        private CompletableFuture<Void> inviteGuest(String email) {
+            String displayName = desired.displayNameByEmail.getOrDefault(email, email);
+
+            CompletableFuture<Void> f;
+            try {
+                f = window.submit(() -> {
+                    acquire(inviteLimit);
+                    try {
+                        String userId = withRetry("ensureGuest", email, () -> graphUserService.ensureGuestUserId(email, displayName));
                         userIdByEmail.put(email, userId);
                         entraCache.putGuest(email, userId);
-                    })
-                    .whenComplete((_, ex) -> {
-                        if (ex == null) return;
-                        Throwable t = unwrap(ex);
-                        if (t instanceof TimeoutException) {
-                            log.warn("TIMEOUT ensure guest email={} timeout={}s", email, TimeUnit.MINUTES.toSeconds(10));
-                            return;
-                        }
-                        if (t instanceof ApiException ae) {
-                            Integer sc = ae.getResponseStatusCode();
-                            log.error("FAILED ensure guest email={} status={} msg={}", email, sc, ae.getMessage(), ae);
-                            return;
-                        }
-                        log.error("FAILED ensure guest email={} exType={} msg={}", email, t.getClass().getName(), t.getMessage(), t);
-                    });
+                    } finally {
+                        inviteLimit.release();
+                    }
+                }).orTimeout(10, TimeUnit.MINUTES);
+            } catch (RuntimeException e) {
+                f = CompletableFuture.failedFuture(e);
+            }
 
-            futures.add(f);
+            return f.whenComplete((_, ex) -> {
+                counters.completedOps.incrementAndGet();
+                try {
+                    if (ex != null) logGuestFailure(email, ex);
+                } finally {
+                    onGuestSettled(email);
+                }
+            });
         }
 
-        if (toCreate > 0) {
-            log.info("Guest phase: cached={} created={} total={}", cachedGuests, toCreate, emails.size());
-        } else {
-            log.debug("Guest phase: cached={} created=0 total={}", cachedGuests, emails.size());
+        private void logGuestFailure(String email, Throwable ex) {
+            counters.failed.incrementAndGet();
+            failedEmails.add(email);
+            Throwable t = unwrap(ex);
+            if (t instanceof TimeoutException) {
+                log.warn("TIMEOUT ensure guest email={} timeout={}s", email, TimeUnit.MINUTES.toSeconds(10));
+                return;
+            }
+            if (t instanceof ApiException ae) {
+                Integer sc = ae.getResponseStatusCode();
+                log.error("FAILED ensure guest email={} status={} msg={}", email, sc, ae.getMessage(), ae);
+                return;
+            }
+            log.error("FAILED ensure guest email={} exType={} msg={}", email, t.getClass().getName(), t.getMessage(), t);
         }
 
+        private void onGuestSettled(String email) {
+            for (String groupName : desired.desiredGroupsByEmail.getOrDefault(email, Set.of())) {
+                String groupId = groupIdByName.get(groupName);
+                if (groupId == null) continue;
 
-        try {
-            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                    .orTimeout(30, TimeUnit.MINUTES)
-                    .join();
-        } catch (Exception e) {
-            Throwable t = unwrap(e);
-            log.warn("Guest phase completed WITH ERRORS. cause={}", t.toString(), t);
+                AtomicInteger pending = pendingGuestsByGroupId.get(groupId);
+                if (pending != null && pending.decrementAndGet() == 0) {
+                    work.add(() -> applyGroup(groupName, groupId));
+                }
+            }
+            outstanding.decrementAndGet();
         }
 
-        return userIdByEmail;
-    }
+        private void applyGroup(String groupName, String groupId) {
+            if (budgetExhausted()) {
+                next.plan(groupId);
+                failedGroupIds.add(groupId);
+                outstanding.decrementAndGet();
+                return;
+            }
 
-    private void runMembershipsAsync(
-            Map<String, Set<String>> desiredGroupsByEmail,
-            Map<String, String> userIdByEmail,
-            Map<String, String> groupIdByName,
-            AtomicInteger added,
-            AtomicInteger skipped,
-            AtomicInteger failed
-    ) {
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
-
-        for (Map.Entry<String, Set<String>> entry : desiredGroupsByEmail.entrySet()) {
-            String email = entry.getKey();
-            String userId = userIdByEmail.get(email);
+            GroupMembershipPlan plan;
+            try {
+                Set<String> desiredUserIds = resolvedUserIds(emailsByGroupId.getOrDefault(groupId, List.of()));
+                plan = removalCandidatesByGroupId == null
+                        ? planner.plan(groupName, groupId, desiredUserIds)
+                        : planner.planIncremental(groupName, groupId, desiredUserIds,
+                        removalCandidatesByGroupId.getOrDefault(groupId, Set.of()));
+            } catch (RuntimeException e) {
+                log.error("FAILED planning group '{}' ({}) cause={}", groupName, groupId, e.toString(), e);
+                failedGroupIds.add(groupId);
+                outstanding.decrementAndGet();
+                return;
+            }
 
-            if (userId == null || userId.isBlank()) {
-                failed.incrementAndGet();
-                log.warn("Skipping membership for email={} because userId not resolved", email);
-                continue;
+            counters.skipped.addAndGet(plan.unchangedCount());
+            counters.plannedOps.addAndGet(plan.toAdd().size() + (cleanup ? plan.toRemove().size() : 0));
+            log.debug("Plan group '{}' ({}) desired={} current={} add={} remove={}",
+                    groupName, groupId, plan.desiredCount(), plan.currentCount(), plan.toAdd().size(), plan.toRemove().size());
+
+            List<String> adds = carriedFirst(plan.toAdd(), previous.addsByGroupId().getOrDefault(groupId, Set.of()));
+            submitAll(adds, userId -> addMember(plan, userId), userId -> {
+                next.add(groupId, userId);
+                failedUserIds.add(userId);
+            }, () -> {
+                if (cleanup && !plan.toRemove().isEmpty()) {
+                    List<String> removes = carriedFirst(plan.toRemove(), previous.removesByGroupId().getOrDefault(groupId, Set.of()));
+                    work.add(() -> submitAll(removes, userId -> removeMember(plan, userId), userId -> {
+                        next.remove(groupId, userId);
+                        failedUserIds.add(userId);
+                    }, outstanding::decrementAndGet));
+                } else {
+                    outstanding.decrementAndGet();
+                }
+            });
+        }
+
+        private Set<String> resolvedUserIds(List<String> emails) {
+            Set<String> userIds = new HashSet<>();
+            for (String email : emails) {
+                String userId = userIdByEmail.get(email);
+                if (userId != null && !userId.isBlank()) userIds.add(userId);
             }
+            return userIds;
+        }
 
-            CompletableFuture<Void> f = CompletableFuture.runAsync(() -> {
-                        for (String groupName : entry.getValue()) {
-                            String groupId = groupIdByName.get(groupName);
-                            if (groupId == null || groupId.isBlank()) {
-                                failed.incrementAndGet();
-                                continue;
-                            }
-
-                            Set<String> members = entraCache.getGroupMembers(groupId);
-                            if (members != null && members.contains(userId)) {
-                                skipped.incrementAndGet();
-                                continue;
-                            }
-
-                            acquire(addLimit);
-                            try {
-                                withRetry("ensureMembership", "userId=" + userId + " group=" + groupName, () -> {
-                                    graphGroupService.ensureUserInGroupsAsync(userId, List.of(groupName)).join();
-                                    return null;
-                                });
-
-                                entraCache.addMemberToGroup(groupId, userId);
-                                added.incrementAndGet();
-
-                            } catch (RuntimeException ex) {
-                                failed.incrementAndGet();
-                                throw ex;
-                            } finally {
-                                addLimit.release();
-                            }
-                        }
-                    }, executor)
-                    .orTimeout(10, TimeUnit.MINUTES)
-                    .whenComplete((_, ex) -> {
-                        if (ex == null) return;
+        private CompletableFuture<Void> addMember(GroupMembershipPlan plan, String userId) {
+            String groupName = plan.groupName();
+            String groupId = plan.groupId();
 
-                        Throwable t = unwrap(ex);
-                        if (t instanceof TimeoutException) {
-                            log.warn("TIMEOUT membership userId={} email={} timeout={}s",
-                                    userId, email, TimeUnit.MINUTES.toSeconds(10));
+            return write("ensureMembership", "userId=" + userId + " group=" + groupName,
+                    () -> graphGroupService.addUserToGroup(userId, groupId))
+                    .whenComplete((_, ex) -> {
+                        counters.completedOps.incrementAndGet();
+                        if (ex == null) {
+                            counters.added.incrementAndGet();
                             return;
                         }
-                        if (t instanceof ApiException ae) {
-                            Integer sc = ae.getResponseStatusCode();
-                            log.error("FAILED membership userId={} email={} status={} msg={}",
-                                    userId, email, sc, ae.getMessage(), ae);
+                        counters.failed.incrementAndGet();
+                        failedUserIds.add(userId);
+                        Throwable t = unwrap(ex);
+                        if (t instanceof TimeoutException) {
+                            log.warn("TIMEOUT membership userId={} group='{}' timeout={}s",
+                                    userId, groupName, TimeUnit.MINUTES.toSeconds(10));
                             return;
                         }
-                        log.error("FAILED membership userId={} email={} exType={} msg={}",
-                                userId, email, t.getClass().getName(), t.getMessage(), t);
+                        log.error("FAILED membership userId={} group='{}' exType={} msg={}",
+                                userId, groupName, t.getClass().getName(), t.getMessage());
                     });
-
-            futures.add(f);
         }
 
-        try {
-            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                    .orTimeout(40, TimeUnit.MINUTES)
+        private CompletableFuture<Void> removeMember(GroupMembershipPlan plan, String userId) {
+            String groupName = plan.groupName();
+            String groupId = plan.groupId();
+
+            return write("removeMembership", "userId=" + userId + " groupId=" + groupId,
+                    () -> graphGroupService.removeUserFromGroup(userId, groupId))
                     .whenComplete((_, ex) -> {
+                        counters.completedOps.incrementAndGet();
                         if (ex != null) {
+                            failedUserIds.add(userId);
                             Throwable t = unwrap(ex);
-                            log.warn("Membership phase completed WITH ERRORS. users={} cause={}",
-                                    desiredGroupsByEmail.size(), t.toString());
+                            log.error("FAILED to remove userId={} from group '{}' ({}). ErrorMessage={}",
+                                    userId, groupName, groupId, t.getMessage());
                         } else {
-                            log.debug("Membership phase completed OK. users={}", desiredGroupsByEmail.size());
+                            counters.removed.incrementAndGet();
+                            log.info("Removed userId={} from groupName={} - groupId={}",
+                                    userId, groupName, groupId);
                         }
-                        log.debug("Membership counters added={} skipped={} failed={}", added.get(), skipped.get(), failed.get());
-                    })
-                    .join();
-        } catch (Exception e) {
-            Throwable t = unwrap(e);
-            log.warn("Membership phase finished WITH ERRORS. cause={}", t.toString(), t);
+                    });
         }
     }
 
-    private Map<String, Set<String>> buildDesiredMembersByGroupId(
-            Map<String, Set<String>> desiredGroupsByEmail,
-            Map<String, String> userIdByEmail,
-            Map<String, String> groupIdByName
-    ) {
-        Map<String, Set<String>> desiredMembersByGroupId = new HashMap<>();
+    /**
+     * One streamed run. A single fetch thread parses Qlik pages into a bounded queue and blocks while it is full;
+     * the calling thread takes one page at a time, builds its desired state and submits invites and adds through
+     * the {@link InFlightWindow}. A full window therefore stalls the page queue, which in turn stalls the fetch.
+     * Follow-up work from completion callbacks (adds after an invite) goes through {@link #work}, so all run state
+     * is only touched by the calling thread.
+     * <p>
+     * Reconcile needs the complete desired state, so it runs after the stream ended and is skipped when the fetch
+     * failed or the run budget cut the stream short.
+     */
+    private final class StreamingRun {
+
+        private final SyncJob.Counters counters;
+        private final BlockingQueue<List<QlikUser>> pages =
+                new ArrayBlockingQueue<>(Math.max(1, syncProperties.getStreamQueuePages()));
+        private final BlockingQueue<Runnable> work = new LinkedBlockingQueue<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final GroupMappingMemo memo = desiredStateBuilder.newMemo();
+        private final Map<String, String> groupIdByName = new HashMap<>();
+        private final Set<String> unresolvedGroupNames = new HashSet<>();
+        private final Map<String, RoaringBitmap> desiredByGroupId = new HashMap<>();
+
+        private final boolean cleanup;
+        private final SyncCarryOver previous;
+        private final SyncCarryOver.Builder next = new SyncCarryOver.Builder();
+        private final SyncJob job;
+        private final long startedAt = System.nanoTime();
+        private final long deadline = startedAt + syncProperties.getRunBudget().toNanos();
+        private volatile boolean stopped;
+        private volatile boolean fetchComplete;
+        private boolean streamEnded;
+        private boolean cutOff;
+        private boolean fetchFailed;
+        private long firstWriteAt;
+        private int usersFound;
+
+        StreamingRun(boolean cleanup, SyncCarryOver previous, SyncJob job) {
+            this.cleanup = cleanup;
+            this.previous = previous;
+            this.job = job;
+            this.counters = job.counters();
+        }
 
-        for (Map.Entry<String, Set<String>> entry : desiredGroupsByEmail.entrySet()) {
-            String email = entry.getKey();
-            String userId = userIdByEmail.get(email);
-            if (userId == null || userId.isBlank()) continue;
+        private boolean budgetExhausted() {
+            return System.nanoTime() - deadline > 0 || job.isCancelRequested();
+        }
 
-            for (String groupName : entry.getValue()) {
-                String groupId = groupIdByName.get(groupName);
-                if (groupId != null && !groupId.isBlank()) {
-                    desiredMembersByGroupId.computeIfAbsent(groupId, _ -> new HashSet<>()).add(userId);
+        long firstWriteAfterMillis() {
+            return firstWriteAt == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstWriteAt - startedAt);
+        }
+
+        /**
+         * Work this run deferred. A run that did not get through the whole stream also passes on the previous
+         * carry-over, since the pages holding those users may not have been reached.
+         */
+        SyncCarryOver carryOver() {
+            if (cutOff || !streamEnded || !fetchComplete) next.carry(previous);
+            return next.build();
+        }
+
+        void execute() {
+            try {
+                streamExecutor.execute(this::produce);
+            } catch (RejectedExecutionException e) {
+                log.warn("Streamed sync not started - fetch executor is shut down");
+                return;
+            }
+            job.phase(SyncJob.Phase.APPLYING);
+            submitCarriedAdds();
+
+            boolean drained = feed();
+            stopped = true;
+            pages.clear();
+
+            if (!drained) return;
+            if (cutOff) {
+                log.warn("Sync run {} while streaming - reconcile skipped",
+                        job.isCancelRequested() ? "cancelled" : "budget " + syncProperties.getRunBudget() + " exhausted");
+                return;
+            }
+            if (!fetchComplete) {
+                fetchFailed = true;
+                return;
+            }
+            if (usersFound == 0) {
+                log.info("No users to sync after filters. Done. usersFound=0");
+                return;
+            }
+            if (!cleanup) return;
+
+            job.phase(SyncJob.Phase.RECONCILING);
+            reconcile();
+            if (feed() && counters.removed.get() > 0) {
+                log.info("Reconcile finished. Removed {} members", counters.removed.get());
+            }
+        }
+
+        private void produce() {
+            boolean complete = false;
+            try {
+                complete = qlikUserClient.streamAllUsers(page -> {
+                    if (!enqueue(page)) throw new CancellationException("sync run stopped");
+                });
+            } catch (CancellationException e) {
+                log.debug("Qlik user stream stopped by the sync run");
+            } catch (RuntimeException e) {
+                log.error("Qlik user stream FAILED cause={}", e.toString(), e);
+            } finally {
+                fetchComplete = complete;
+                enqueue(STREAM_END);
+            }
+        }
+
+        /**
+         * @return false if the run stopped before the page could be queued
+         */
+        private boolean enqueue(List<QlikUser> page) {
+            try {
+                while (!stopped) {
+                    if (pages.offer(page, 1, TimeUnit.SECONDS)) return true;
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return false;
         }
 
-        return desiredMembersByGroupId;
-    }
+        /**
+         * @return false if the run stopped with operations still outstanding
+         */
+        private boolean feed() {
+            long hardStop = deadline + BUDGET_GRACE_NANOS;
+            long nextReport = System.nanoTime() + PROGRESS_REPORT_INTERVAL_NANOS;
+
+            while (!streamEnded || outstanding.get() > 0 || !work.isEmpty()) {
+                if (System.nanoTime() - hardStop > 0) {
+                    log.warn("Sync run budget {} exhausted with operations still in flight. outstanding={} inFlight={} queuedPages={}",
+                            syncProperties.getRunBudget(), outstanding.get(), window.inFlight(), pages.size());
+                    return false;
+                }
 
-    private void reconcileGroups(Set<String> groupNamesToReconcile,
-                                 Map<String, Set<String>> desiredMembersByGroupId,
-                                 Map<String, String> groupIdByNameFromCache) {
+                try {
+                    Runnable item = work.poll();
+                    if (item != null) {
+                        item.run();
+                    } else if (!streamEnded) {
+                        List<QlikUser> page = pages.poll(200, TimeUnit.MILLISECONDS);
+                        if (page == STREAM_END) {
+                            streamEnded = true;
+                        } else if (page != null) {
+                            acceptPage(page);
+                        }
+                    } else {
+                        item = work.poll(1, TimeUnit.SECONDS);
+                        if (item != null) item.run();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Sync pipeline interrupted. outstanding={}", outstanding.get());
+                    return false;
+                } catch (RuntimeException e) {
+                    log.error("Sync pipeline work item FAILED cause={}", e.toString(), e);
+                }
 
-        if (groupNamesToReconcile == null || groupNamesToReconcile.isEmpty()) {
-            log.warn("No groups to reconcile.");
-            return;
+                if (System.nanoTime() - nextReport > 0) {
+                    nextReport = System.nanoTime() + PROGRESS_REPORT_INTERVAL_NANOS;
+                    log.info("Sync progress usersFound={} outstanding={} inFlight={}/{} queuedPages={} added={} removed={} failed={}",
+                            usersFound, outstanding.get(), window.inFlight(), window.capacity(), pages.size(),
+                            counters.added.get(), counters.removed.get(), counters.failed.get());
+                }
+            }
+            return true;
         }
 
-        Map<String, String> groupIdByName = new HashMap<>();
-        for (String groupName : groupNamesToReconcile) {
-            String groupId = groupIdByNameFromCache.get(groupName);
-            if (groupId != null) groupIdByName.put(groupName, groupId);
+        /**
+         * Adds the previous run did not get to, submitted before any page is read. Reconcile removes those no page
+         * asks for any more.
+         */
+        private void submitCarriedAdds() {
+            previous.addsByGroupId().forEach((groupId, userIds) -> {
+                for (String userId : userIds) {
+                    if (entraCache.isMember(groupId, userId)) {
+                        counters.skipped.incrementAndGet();
+                    } else {
+                        addMember(groupId, groupId, userId);
+                    }
+                }
+            });
         }
 
-        if (groupIdByName.isEmpty()) {
-            log.warn("No groupIds resolved from cache, reconcile skipped.");
-            return;
+        private void acceptPage(List<QlikUser> users) {
+            if (budgetExhausted()) {
+                // later pages are not fetched; this one is still mapped so its work is carried over
+                cutOff = true;
+                streamEnded = true;
+                stopped = true;
+            }
+
+            DesiredStateBuilder.Result page = desiredStateBuilder.build(users, memo);
+            if (page.groupsByEmail().isEmpty()) return;
+            usersFound += page.groupsByEmail().size();
+            job.usersFound(usersFound);
+
+            resolveGroupIds(page.groupsToUse());
+            if (!cutOff) guestLookup.resolve(page.groupsByEmail().keySet());
+
+            for (Map.Entry<String, Set<String>> entry : page.groupsByEmail().entrySet()) {
+                String email = entry.getKey();
+                String userId = entraCache.getGuestIdByEmail(email);
+                if (userId != null && !userId.isBlank()) {
+                    ensureMembers(userId, entry.getValue());
+                } else if (entraCache.getActiveInviteFailure(email) == null) {
+                    inviteGuest(email, page.displayNameByEmail().getOrDefault(email, email), entry.getValue());
+                }
+            }
         }
 
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        private void resolveGroupIds(Set<String> groupNames) {
+            for (String groupName : groupNames) {
+                if (groupIdByName.containsKey(groupName) || unresolvedGroupNames.contains(groupName)) continue;
+                String groupId = entraCache.getGroupIdByDisplayName(groupName);
+                if (groupId != null && !groupId.isBlank()) {
+                    groupIdByName.put(groupName, groupId);
+                } else {
+                    unresolvedGroupNames.add(groupName);
+                    log.warn("Missing groupId in cache for groupName='{}' (will be skipped)", groupName);
+                }
+            }
+        }
 
-        for (Map.Entry<String, String> entry : groupIdByName.entrySet()) {
-            String groupName = entry.getKey();
-            String groupId = entry.getValue();
+        private void ensureMembers(String userId, Set<String> groupNames) {
+            int ordinal = entraCache.ordinalOf(userId);
+            for (String groupName : groupNames) {
+                String groupId = groupIdByName.get(groupName);
+                if (groupId == null) {
+                    counters.failed.incrementAndGet();
+                    continue;
+                }
+                desiredByGroupId.computeIfAbsent(groupId, _ -> new RoaringBitmap()).add(ordinal);
 
-            Set<String> desired = desiredMembersByGroupId.getOrDefault(groupId, Set.of());
-            Set<String> current = Optional.ofNullable(entraCache.getGroupMembers(groupId))
-                    .map(HashSet::new)
-                    .orElseGet(HashSet::new);
+                // carried adds were already handled by submitCarriedAdds
+                if (previous.addsByGroupId().getOrDefault(groupId, Set.of()).contains(userId)) continue;
 
-            Set<String> toRemove = new HashSet<>(current);
-            toRemove.removeAll(desired);
+                if (entraCache.isMember(groupId, userId)) {
+                    counters.skipped.incrementAndGet();
+                } else {
+                    addMember(groupName, groupId, userId);
+                }
+            }
+        }
 
-            log.debug("Reconcile group '{}' ({}) desired={} current={} remove={}",
-                    groupName, groupId, desired.size(), current.size(), toRemove.size());
+        private void inviteGuest(String email, String displayName, Set<String> groupNames) {
+            if (budgetExhausted()) {
+                cutOff = true;
+                counters.skipped.incrementAndGet();
+                next.invite(email);
+                for (String groupName : groupNames) {
+                    String groupId = groupIdByName.get(groupName);
+                    if (groupId != null) next.plan(groupId);
+                }
+                return;
+            }
 
-            for (String userId : toRemove) {
-                CompletableFuture<Void> f = CompletableFuture
-                        .runAsync(() -> {
-                            withRetry("removeMembership", "userId=" + userId + " groupId=" + groupId, () -> {
-                                graphGroupService.removeUserFromGroupAsync(userId, groupId).join();
-                                return null;
-                            });
-                            entraCache.removeMemberFromGroup(groupId, userId);
-                        }, executor)
-                        .orTimeout(10, TimeUnit.MINUTES)
-                        .whenComplete((_, ex) -> {
-                            if (ex != null) {
-                                Throwable t = unwrap(ex);
-                                log.error("FAILED to remove userId={} from group '{}' ({}). ErrorMessage={}",
-                                        userId, groupName, groupId, t.getMessage());
-                            } else {
-                                log.info("Removed userId={} from groupName={} - groupId={}",
-                                        userId, groupName, groupId);
-                            }
-                        });
+            AtomicReference<String> userId = new AtomicReference<>();
+            outstanding.incrementAndGet();
+            counters.plannedOps.incrementAndGet();
+            CompletableFuture<Void> f;
+            try {
+                f = window.submit(() -> {
+                    acquire(inviteLimit);
+                    try {
+                        userId.set(withRetry("ensureGuest", email, () -> graphUserService.ensureGuestUserId(email, displayName)));
+                        entraCache.putGuest(email, userId.get());
+                    } finally {
+                        inviteLimit.release();
+                    }
+                }).orTimeout(10, TimeUnit.MINUTES);
+            } catch (RuntimeException e) {
+                f = CompletableFuture.failedFuture(e);
+            }
 
-                futures.add(f);
+            f.whenComplete((_, ex) -> {
+                counters.completedOps.incrementAndGet();
+                if (ex == null) {
+                    work.add(() -> ensureMembers(userId.get(), groupNames));
+                } else {
+                    counters.failed.incrementAndGet();
+                    Throwable t = unwrap(ex);
+                    log.error("FAILED ensure guest email={} exType={} msg={}", email, t.getClass().getName(), t.getMessage());
+                }
+                outstanding.decrementAndGet();
+            });
+        }
+
+        private void addMember(String groupName, String groupId, String userId) {
+            if (budgetExhausted()) {
+                cutOff = true;
+                counters.skipped.incrementAndGet();
+                next.add(groupId, userId);
+                return;
             }
+            if (firstWriteAt == 0) firstWriteAt = System.nanoTime();
+
+            submitWrite("ensureMembership", "userId=" + userId + " group=" + groupName,
+                    () -> graphGroupService.addUserToGroup(userId, groupId), counters.added, t ->
+                            log.error("FAILED membership userId={} group='{}' exType={} msg={}",
+                                    userId, groupName, t.getClass().getName(), t.getMessage()));
         }
 
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                .whenComplete((_, ex) -> {
-                    if (ex != null) {
-                        Throwable t = unwrap(ex);
-                        log.warn("Reconcile finished WITH ERRORS. Ops={} cause={}", futures.size(), t.toString());
-                    } else {
-                        if (!futures.isEmpty()) {
-                            log.info("Reconcile finished. Removed {} members", futures.size());
-                        } else {
-                            log.debug("Reconcile finished. No members removed");
-                        }
+        /**
+         * Removes the cached members of each resolved group that no page asked for.
+         */
+        private void reconcile() {
+            for (Map.Entry<String, String> group : groupIdByName.entrySet()) {
+                if (budgetExhausted()) {
+                    log.warn("Sync run budget {} exhausted - reconcile stopped early", syncProperties.getRunBudget());
+                    return;
+                }
+                String groupName = group.getKey();
+                String groupId = group.getValue();
+
+                GroupMembershipPlan plan = planner.plan(groupName, groupId,
+                        desiredByGroupId.getOrDefault(groupId, new RoaringBitmap()));
+                log.debug("Reconcile group '{}' ({}) desired={} current={} remove={}",
+                        groupName, groupId, plan.desiredCount(), plan.currentCount(), plan.toRemove().size());
+
+                for (String userId : plan.toRemove()) {
+                    submitWrite("removeMembership", "userId=" + userId + " groupId=" + groupId,
+                            () -> graphGroupService.removeUserFromGroup(userId, groupId), counters.removed, t ->
+                                    log.error("FAILED to remove userId={} from group '{}' ({}). ErrorMessage={}",
+                                            userId, groupName, groupId, t.getMessage()));
+                }
+            }
+        }
 
-                    }
-                })
-                .join();
+        private void submitWrite(String op, String key, Runnable write, AtomicInteger succeeded,
+                                 Consumer<Throwable> onFailure) {
+            outstanding.incrementAndGet();
+            counters.plannedOps.incrementAndGet();
+            CompletableFuture<Void> f;
+            try {
+                f = write(op, key, write);
+            } catch (RuntimeException e) {
+                f = CompletableFuture.failedFuture(e);
+            }
+
+            f.whenComplete((_, ex) -> {
+                counters.completedOps.incrementAndGet();
+                if (ex == null) {
+                    succeeded.incrementAndGet();
+                } else {
+                    counters.failed.incrementAndGet();
+                    onFailure.accept(unwrap(ex));
+                }
+                outstanding.decrementAndGet();
+            });
+        }
+    }
+
+    private CompletableFuture<Void> write(String op, String key, Runnable write) {
+        return window.submit(() -> {
+            acquire(writeLimit);
+            try {
+                withRetry(op, key, () -> {
+                    write.run();
+                    return null;
+                });
+            } finally {
+                writeLimit.release();
+            }
+        }).orTimeout(10, TimeUnit.MINUTES);
     }
 
     private <T> T withRetry(String op, String key, Callable<T> fn) {
@@ -426,6 +1282,7 @@ public class UserSyncService {
                     throw (ex instanceof RuntimeException) ? (RuntimeException) ex : new RuntimeException(ex);
                 }
 
+                if (sc != null && (sc == 429 || sc == 503)) throttledRetries.increment();
                 long sleep = backoffMs(attempt);
                 if (sc != null) {
                     log.warn("{} RETRY key={} status={} attempt={}/{} sleepMs={}",
@@ -484,48 +1341,43 @@ public class UserSyncService {
         }
     }
 
-    private Set<String> getManagedGroupNamesFromConfig() {
-        try {
-            List<String> list = graphProperties.getGroupMappings();
-            if (list == null) return Set.of();
-            return list.stream()
-                    .filter(Objects::nonNull)
-                    .map(String::trim)
-                    .filter(s -> !s.isBlank())
-                    .collect(Collectors.toSet());
-        } catch (NoSuchMethodError | Exception e) {
-            return Set.of();
-        }
-    }
-
-    private String normalizeEmail(String email) {
-        if (email == null) return null;
-        String e = email.trim().toLowerCase();
-        return e.isBlank() ? null : e;
+    private record Desired(Map<String, Set<String>> desiredGroupsByEmail, Map<String, String> displayNameByEmail,
+                           Set<String> groupsToUse, String fingerprint) {
     }
 
-    private boolean isFederatedUser(QlikUserDto user) {
-        return user.getAssignedGroups() != null &&
-                user.getAssignedGroups().stream()
-                        .anyMatch(g -> "idp".equalsIgnoreCase(g.getProviderType()));
+    /**
+     * The part of the desired state an incremental run works on. {@code departed} are journaled users no longer
+     * desired, {@code untracked} journaled failures no longer desired.
+     */
+    private record Increment(Desired desired,
+                             Map<String, String> groupIdByName,
+                             Map<String, Set<String>> removalCandidatesByGroupId,
+                             Map<String, AppliedStateJournal.Entry> departed,
+                             Set<String> untracked) {
+
+        Set<String> forgettable() {
+            Set<String> emails = new HashSet<>(departed.keySet());
+            emails.addAll(untracked);
+            return emails;
+        }
     }
 
-    private boolean isExcludedDomain(String email) {
-        List<String> excluded = qlikProperties.getExcludedEmailDomains();
-        if (excluded == null || excluded.isEmpty()) return false;
-
-        int atIdx = email.lastIndexOf('@');
-        if (atIdx < 0 || atIdx == email.length() - 1) return false;
-
-        String domain = email.substring(atIdx + 1).toLowerCase();
-
-        return excluded.stream()
-                .filter(d -> d != null && !d.isBlank())
-                .map(String::toLowerCase)
-                .anyMatch(domain::equals);
-    }
+    /**
+     * What the last clean run applied: the desired-state fingerprint and the cache modification count after it. A
+     * later run with the same fingerprint and an untouched cache has nothing to do until {@code validUntil}, which
+     * is bounded by the max skip age and by the earliest retry of a suppressed guest invitation.
+     */
+    private record AppliedState(String fingerprint, long cacheModCount, Instant appliedAt, Instant validUntil) {
+
+        static AppliedState of(String fingerprint, long cacheModCount, Duration maxSkipAge, Instant nextInviteRetryAt) {
+            Instant now = Instant.now();
+            Instant validUntil = now.plus(maxSkipAge);
+            if (nextInviteRetryAt != null && nextInviteRetryAt.isBefore(validUntil)) validUntil = nextInviteRetryAt;
+            return new AppliedState(fingerprint, cacheModCount, now, validUntil);
+        }
 
-    private record Desired(Map<String, Set<String>> desiredGroupsByEmail, Map<String, String> displayNameByEmail,
-                           Set<String> groupsToUse) {
+        boolean covers(String fingerprint, long cacheModCount, Instant now) {
+            return this.fingerprint.equals(fingerprint) && this.cacheModCount == cacheModCount && now.isBefore(validUntil);
+        }
     }
 }
@@ -0,0 +1,107 @@
+package no.novari.qliktosharepoint.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.qliktosharepoint.config.SyncProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debounced queue between the Qlik webhook and the sync. Each event pushes its user's due time out by the debounce,
+ * so a burst of events for one user ends in a single targeted sync once the burst is over. Group events, and an
+ * overflowing queue, collapse into one full run.
+ * <p>
+ * A single worker drains due entries, so targeted syncs run one at a time.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class WebhookSyncQueue {
+
+    static final String FULL_RUN = "*";
+    private static final int MAX_PENDING = 10_000;
+    private static final long TICK_MILLIS = 500;
+
+    private final UserSyncService userSyncService;
+    private final UserSyncScheduler userSyncScheduler;
+    private final SyncProperties syncProperties;
+    private final Map<String, Long> dueAtByKey = new ConcurrentHashMap<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    public void start() {
+        worker.scheduleWithFixedDelay(this::drain, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    public void enqueueUser(String idOrEmail) {
+        if (idOrEmail == null || idOrEmail.isBlank()) return;
+        if (dueAtByKey.size() >= MAX_PENDING && !dueAtByKey.containsKey(idOrEmail)) {
+            log.warn("Webhook queue full ({} users) - collapsing into a full run", dueAtByKey.size());
+            dueAtByKey.clear();
+            enqueue(FULL_RUN);
+            return;
+        }
+        enqueue(idOrEmail.trim());
+    }
+
+    public void enqueueFullRun() {
+        enqueue(FULL_RUN);
+    }
+
+    public int pending() {
+        return dueAtByKey.size();
+    }
+
+    private void enqueue(String key) {
+        received.incrementAndGet();
+        long dueAt = System.nanoTime() + syncProperties.getWebhookDebounce().toNanos();
+        if (dueAtByKey.put(key, dueAt) != null) coalesced.incrementAndGet();
+    }
+
+    void drain() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Long> entry : dueAtByKey.entrySet()) {
+            String key = entry.getKey();
+            long dueAt = entry.getValue();
+            // a newer event for the key moved its due time; leave it for a later tick
+            if (dueAt - now > 0 || !dueAtByKey.remove(key, dueAt)) continue;
+
+            try {
+                if (FULL_RUN.equals(key)) {
+                    runFull();
+                } else {
+                    UserSyncResult result = userSyncService.syncUser(key);
+                    log.debug("Webhook sync key={} outcome={} tookMs={}", key, result.outcome(), result.tookMs());
+                }
+            } catch (RuntimeException e) {
+                log.error("Webhook sync FAILED key={} cause={}", key, e.toString(), e);
+            }
+        }
+    }
+
+    private void runFull() {
+        UserSyncScheduler.Submission submission = userSyncScheduler.submit("webhook");
+        if (!submission.started()) {
+            // the run in progress may have read Qlik before the change; try again after it
+            dueAtByKey.putIfAbsent(FULL_RUN, System.nanoTime() + syncProperties.getWebhookDebounce().toNanos());
+            return;
+        }
+        log.info("Webhook events triggered full run {}. received={} coalesced={}",
+                submission.job().id(), received.get(), coalesced.get());
+    }
+}
@@ -0,0 +1,58 @@
+package no.novari.qliktosharepoint.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompactMemberSetTest {
+
+    @Test
+    void addRemoveContains_matchesHashSet_forRandomIds() {
+        SplittableRandom random = new SplittableRandom(7);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            ids.add(new UUID(random.nextLong(), random.nextLong()).toString());
+        }
+
+        CompactMemberSet compact = new CompactMemberSet();
+        Set<String> expected = new HashSet<>();
+
+        for (int round = 0; round < 20_000; round++) {
+            String id = ids.get(random.nextInt(ids.size()));
+            if (random.nextInt(3) == 0) {
+                assertThat(compact.remove(id)).isEqualTo(expected.remove(id));
+            } else {
+                assertThat(compact.add(id)).isEqualTo(expected.add(id));
+            }
+        }
+
+        assertThat(compact).hasSize(expected.size());
+        assertThat(new HashSet<>(compact)).isEqualTo(expected);
+        for (String id : ids) {
+            assertThat(compact.contains(id)).isEqualTo(expected.contains(id));
+        }
+    }
+
+    @Test
+    void nonUuidIds_fallBackToStringSet() {
+        CompactMemberSet compact = new CompactMemberSet();
+        compact.add("not-a-uuid");
+        compact.add("00000000-0000-0000-0000-000000000000");
+        compact.add("3F2504E0-4F89-11D3-9A0C-0305E82C3301");
+
+        assertThat(compact).containsExactlyInAnyOrder(
+                "not-a-uuid",
+                "00000000-0000-0000-0000-000000000000",
+                "3F2504E0-4F89-11D3-9A0C-0305E82C3301");
+        assertThat(compact.contains("3f2504e0-4f89-11d3-9a0c-0305e82c3301")).isFalse();
+        assertThat(compact.remove("not-a-uuid")).isTrue();
+        assertThat(compact).hasSize(2);
+    }
+}
@@ -0,0 +1,40 @@
+package no.novari.qliktosharepoint.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EntraCacheMetricsTest {
+
+    @Test
+    void bindTo_publishesLookupCountersAndSizeGauges() {
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of("a@b.com", "u-a"), Map.of("GroupA", "g-a"), Map.of("g-a", Set.of("u-a", "u-b")));
+        cache.putGuest("c@b.com", "u-c");
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        new EntraCacheMetrics(cache).bindTo(registry);
+
+        cache.getGuestIdByEmail("a@b.com");
+        cache.getGuestIdByEmail("missing@b.com");
+        cache.getGuestIdByEmail("missing@b.com");
+        cache.isMember("g-a", "u-b");
+
+        assertThat(registry.get("entra.cache.lookups").tags("map", "guests", "result", "hit").functionCounter().count())
+                .isEqualTo(1);
+        assertThat(registry.get("entra.cache.lookups").tags("map", "guests", "result", "miss").functionCounter().count())
+                .isEqualTo(2);
+        assertThat(registry.get("entra.cache.lookups").tags("map", "membership", "result", "hit").functionCounter().count())
+                .isEqualTo(1);
+
+        assertThat(registry.get("entra.cache.guests").gauge().value()).isEqualTo(2);
+        assertThat(registry.get("entra.cache.groups").gauge().value()).isEqualTo(1);
+        assertThat(registry.get("entra.cache.memberships").gauge().value()).isEqualTo(2);
+        assertThat(registry.get("entra.cache.snapshot.age").gauge().value()).isGreaterThanOrEqualTo(0);
+        assertThat(registry.get("entra.cache.heap.estimated").gauge().value()).isPositive();
+    }
+}
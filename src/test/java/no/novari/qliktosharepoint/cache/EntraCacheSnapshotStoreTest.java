@@ -0,0 +1,75 @@
+package no.novari.qliktosharepoint.cache;
+
+import no.novari.qliktosharepoint.config.CacheProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class EntraCacheSnapshotStoreTest {
+
+    private static final String UUID_A = "0f8fad5b-d9cb-469f-a165-70867728950e";
+    private static final String UUID_B = "7c9e6679-7425-40de-944b-e07fc1f90ae7";
+
+    @Test
+    void persistAndLoad_restoresSnapshotWithDeltas(@TempDir Path dir) throws IOException {
+        CacheProperties props = new CacheProperties();
+        props.setSnapshotFile(dir.resolve("entra-cache.snapshot"));
+
+        EntraCache source = new EntraCache();
+        source.publish(Map.of("a@b.com", UUID_A), Map.of("GroupA", "g-a"), Map.of("g-a", Set.of(UUID_A, "not-a-uuid")));
+        source.putGuest("b@b.com", UUID_B);
+        source.addMemberToGroup("g-a", UUID_B);
+        new EntraCacheSnapshotStore(source, props).persist();
+
+        EntraCache restored = new EntraCache();
+        new EntraCacheSnapshotStore(restored, props).load();
+
+        assertThat(restored.getVersion()).isEqualTo(source.getVersion());
+        assertThat(restored.getLastRefresh()).isEqualTo(source.getLastRefresh().truncatedTo(ChronoUnit.MILLIS));
+        assertThat(restored.getGuestIdByEmail("B@b.com")).isEqualTo(UUID_B);
+        assertThat(restored.getGroupIdByDisplayName("GroupA")).isEqualTo("g-a");
+        assertThat(restored.getGroupMembers("g-a")).containsExactlyInAnyOrder(UUID_A, UUID_B, "not-a-uuid");
+    }
+
+    @Test
+    void read_rejectsCorruptedPayload() throws IOException {
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of("a@b.com", UUID_A), Map.of(), Map.of());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EntraCacheSnapshotStore.write(cache.current(), out);
+        byte[] bytes = out.toByteArray();
+        bytes[bytes.length - 12] ^= 0x01;
+
+        assertThatThrownBy(() -> EntraCacheSnapshotStore.read(new ByteArrayInputStream(bytes)))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void load_doesNotReplaceAlreadyPublishedCache(@TempDir Path dir) throws IOException {
+        CacheProperties props = new CacheProperties();
+        props.setSnapshotFile(dir.resolve("entra-cache.snapshot"));
+
+        EntraCache old = new EntraCache();
+        old.publish(Map.of("old@b.com", UUID_A), Map.of(), Map.of());
+        new EntraCacheSnapshotStore(old, props).persist();
+
+        EntraCache fresh = new EntraCache();
+        fresh.publish(Map.of("new@b.com", UUID_B), Map.of(), Map.of());
+        new EntraCacheSnapshotStore(fresh, props).load();
+
+        assertThat(fresh.getGuestIdByEmail("old@b.com")).isNull();
+        assertThat(Files.exists(props.getSnapshotFile())).isTrue();
+    }
+}
@@ -0,0 +1,212 @@
+package no.novari.qliktosharepoint.cache;
+
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EntraCacheTest {
+
+    @Test
+    void publish_swapsSnapshot_andKeepsDeltasWrittenDuringRefresh() {
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of("a@b.com", "u-a"), Map.of("GroupA", "g-a"), Map.of("g-a", Set.of("u-a")));
+        long version = cache.getVersion();
+
+        cache.beginRefresh();
+        // skrevet mens refresh pågår, men etter at Graph er lest
+        cache.putGuest("New@B.com", "u-new");
+        cache.addMemberToGroup("g-a", "u-new");
+        cache.removeMemberFromGroup("g-a", "u-a");
+
+        // gammel snapshot + deltas er fortsatt synlig for lesere
+        assertThat(cache.getGuestIdByEmail("a@b.com")).isEqualTo("u-a");
+        assertThat(cache.getGroupMembers("g-a")).containsExactly("u-new");
+
+        cache.publish(Map.of("a@b.com", "u-a"), Map.of("GroupA", "g-a"), Map.of("g-a", Set.of("u-a")));
+
+        assertThat(cache.getVersion()).isEqualTo(version + 1);
+        assertThat(cache.getGuestIdByEmail("new@b.com")).isEqualTo("u-new");
+        assertThat(cache.getGroupMembers("g-a")).containsExactlyInAnyOrder("u-new");
+    }
+
+    @Test
+    void publish_dropsDeltasWrittenBeforeRefreshStarted() {
+        EntraCache cache = new EntraCache();
+        cache.addMemberToGroup("g-a", "u-stale");
+
+        cache.beginRefresh();
+        cache.publish(Map.of(), Map.of("GroupA", "g-a"), Map.of("g-a", Set.of("u-a")));
+
+        assertThat(cache.getGroupMembers("g-a")).containsExactly("u-a");
+        assertThat(cache.getGroupIdByDisplayName(" GroupA ")).isEqualTo("g-a");
+    }
+
+    @Test
+    void memberBitmap_mergesDeltas_withoutTouchingSnapshot() {
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of(), Map.of("GroupA", "g-a"), Map.of("g-a", Set.of("u-a", "u-b")));
+        RoaringBitmap base = cache.memberBitmap("g-a");
+
+        cache.addMemberToGroup("g-a", "u-c");
+        cache.removeMemberFromGroup("g-a", "u-a");
+
+        RoaringBitmap merged = cache.memberBitmap("g-a");
+        assertThat(merged.getCardinality()).isEqualTo(2);
+        assertThat(base.getCardinality()).isEqualTo(2);
+        assertThat(cache.isMember("g-a", "u-a")).isFalse();
+        assertThat(cache.isMember("g-a", "u-b")).isTrue();
+        assertThat(cache.isMember("g-a", "u-c")).isTrue();
+        assertThat(cache.toBitmap(List.of("u-b", "u-c"))).isEqualTo(merged);
+    }
+
+    @Test
+    void recordInviteFailure_doublesBackoff_andPutGuestClearsIt() {
+        EntraCache cache = new EntraCache();
+
+        InviteFailure first = cache.recordInviteFailure("Bad@B.com", InviteFailureReason.INVALID_ADDRESS, "400");
+        InviteFailure second = cache.recordInviteFailure("bad@b.com", InviteFailureReason.INVALID_ADDRESS, "400");
+
+        assertThat(second.failures()).isEqualTo(2);
+        assertThat(Duration.between(second.lastFailure(), second.retryAfter()))
+                .isEqualTo(Duration.between(first.lastFailure(), first.retryAfter()).multipliedBy(2));
+        assertThat(cache.getActiveInviteFailure("bad@b.com")).isEqualTo(second);
+
+        cache.putGuest("bad@b.com", "u-bad");
+        assertThat(cache.getActiveInviteFailure("bad@b.com")).isNull();
+        assertThat(cache.getInviteFailures()).isEmpty();
+    }
+
+    @Test
+    void membershipCount_matchesMergedView_acrossDeltasAndRefresh() {
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of(), Map.of(), Map.of("g-a", Set.of("u-1", "u-2"), "g-b", Set.of("u-1")));
+        assertThat(cache.membershipCount()).isEqualTo(3);
+
+        // ny, eksisterende og fjernet, pluss en gruppe som bare finnes som delta
+        cache.addMemberToGroup("g-a", "u-3");
+        cache.addMemberToGroup("g-a", "u-1");
+        cache.removeMemberFromGroup("g-b", "u-1");
+        cache.removeMemberFromGroup("g-b", "u-9");
+        cache.addMemberToGroup("g-c", "u-1");
+        assertThat(cache.membershipCount()).isEqualTo(4);
+
+        // fjernet og lagt til igjen
+        cache.removeMemberFromGroup("g-a", "u-2");
+        cache.addMemberToGroup("g-a", "u-2");
+        assertThat(cache.membershipCount()).isEqualTo(4);
+
+        // skriv under refresh telles med og følger med inn i ny snapshot
+        cache.beginRefresh();
+        cache.addMemberToGroup("g-b", "u-4");
+        assertThat(cache.membershipCount()).isEqualTo(5);
+        cache.publish(Map.of(), Map.of(), Map.of("g-a", Set.of("u-1")));
+        assertThat(cache.membershipCount()).isEqualTo(2)
+                .isEqualTo(cache.getGroupMembers("g-a").size() + cache.getGroupMembers("g-b").size());
+    }
+
+    @Test
+    void recordInviteFailure_capsTransientBackoffAtOneHour() {
+        EntraCache cache = new EntraCache();
+
+        InviteFailure failure = null;
+        for (int i = 0; i < 10; i++) {
+            failure = cache.recordInviteFailure("slow@b.com", InviteFailureReason.TRANSIENT, "503");
+        }
+        assertThat(Duration.between(failure.lastFailure(), failure.retryAfter())).isEqualTo(Duration.ofHours(1));
+
+        // permanente feil kan fortsatt vente i dager
+        for (int i = 0; i < 10; i++) {
+            failure = cache.recordInviteFailure("bad@b.com", InviteFailureReason.INVALID_ADDRESS, "400");
+        }
+        assertThat(Duration.between(failure.lastFailure(), failure.retryAfter())).isEqualTo(Duration.ofDays(7));
+    }
+
+    @Test
+    void evictGuest_hidesSnapshotEntry_untilPutAgain() {
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of("a@b.com", "u-a"), Map.of(), Map.of());
+        assertThat(cache.getGuestVerifiedAt("a@b.com")).isEqualTo(cache.getLastRefresh());
+
+        cache.evictGuest("A@b.com");
+        assertThat(cache.getGuestIdByEmail("a@b.com")).isNull();
+        assertThat(cache.getGuestVerifiedAt("a@b.com")).isNull();
+        assertThat(cache.getGuests()).isEmpty();
+
+        cache.putGuest("a@b.com", "u-a2");
+        assertThat(cache.getGuests()).containsExactly(Map.entry("a@b.com", "u-a2"));
+        assertThat(cache.getGuestVerifiedAt("a@b.com")).isAfterOrEqualTo(cache.getLastRefresh());
+    }
+
+    @Test
+    void guestCount_matchesMergedView_acrossEvictAndReAdd() {
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of("a@b.com", "u-a", "b@b.com", "u-b"), Map.of(), Map.of());
+
+        // delta over en e-post som allerede er i snapshot
+        cache.putGuest("a@b.com", "u-a2");
+        assertThat(cache.guestCount()).isEqualTo(cache.getGuests().size()).isEqualTo(2);
+
+        // fjernet og lagt til igjen
+        cache.evictGuest("b@b.com");
+        assertThat(cache.guestCount()).isEqualTo(1);
+        cache.putGuest("b@b.com", "u-b");
+        assertThat(cache.guestCount()).isEqualTo(cache.getGuests().size()).isEqualTo(2);
+
+        // gjest som bare fantes som delta
+        cache.putGuest("c@b.com", "u-c");
+        cache.evictGuest("c@b.com");
+        cache.evictGuest("a@b.com");
+        assertThat(cache.guestCount()).isEqualTo(cache.getGuests().size()).isEqualTo(1);
+    }
+
+    @Test
+    void concurrentMemberWrites_duringRefresh_loseNoUpdates() throws Exception {
+        EntraCache cache = new EntraCache();
+        Set<String> base = new HashSet<>();
+        for (int i = 0; i < 2_000; i++) base.add("u-" + i);
+        cache.publish(Map.of(), Map.of("GroupA", "g-a"), Map.of("g-a", base));
+        cache.beginRefresh();
+
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                futures.add(pool.submit(() -> {
+                    // hver tråd eier sine brukere: partall ender som medlem, oddetall fjernes
+                    for (int i = offset; i < 4_000; i += threads) {
+                        String userId = "u-" + i;
+                        for (int round = 0; round < 5; round++) {
+                            cache.addMemberToGroup("g-a", userId);
+                            cache.removeMemberFromGroup("g-a", userId);
+                        }
+                        if (i % 2 == 0) cache.addMemberToGroup("g-a", userId);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) f.get(30, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        cache.publish(Map.of(), Map.of("GroupA", "g-a"), Map.of("g-a", base));
+
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 4_000; i += 2) expected.add("u-" + i);
+        assertThat(cache.getGroupMembers("g-a")).containsExactlyInAnyOrderElementsOf(expected);
+        assertThat(cache.memberBitmap("g-a").getCardinality()).isEqualTo(expected.size());
+    }
+}
@@ -0,0 +1,106 @@
+package no.novari.qliktosharepoint.cache;
+
+import com.microsoft.graph.directoryobjects.item.checkmembergroups.CheckMemberGroupsPostRequestBody;
+import com.microsoft.graph.directoryobjects.item.checkmembergroups.CheckMemberGroupsPostResponse;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.graph.users.item.UserItemRequestBuilder;
+import no.novari.qliktosharepoint.config.CacheProperties;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class EntraCacheVerifierTest {
+
+    @Test
+    void verify_refreshesOnlyGroupsOverDriftThreshold() {
+        GraphServiceClient graph = Mockito.mock(GraphServiceClient.class, Mockito.RETURNS_DEEP_STUBS);
+        EntraCacheRefresher refresher = mock(EntraCacheRefresher.class);
+
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of(), Map.of("GroupA", "g-a", "GroupB", "g-b"), Map.of(
+                "g-a", Set.of("u-1", "u-2", "u-3"),
+                "g-b", Set.of("u-4", "u-5")));
+
+        // u-1..u-3 er fortsatt medlem av g-a, ingen av medlemmene i g-b er det lenger
+        CheckMemberGroupsPostResponse stillInA = new CheckMemberGroupsPostResponse();
+        stillInA.setValue(List.of("g-a"));
+        CheckMemberGroupsPostResponse none = new CheckMemberGroupsPostResponse();
+        none.setValue(List.of());
+        for (String userId : List.of("u-1", "u-2", "u-3")) {
+            when(graph.directoryObjects().byDirectoryObjectId(userId).checkMemberGroups()
+                    .post(any(CheckMemberGroupsPostRequestBody.class))).thenReturn(stillInA);
+        }
+        for (String userId : List.of("u-4", "u-5")) {
+            when(graph.directoryObjects().byDirectoryObjectId(userId).checkMemberGroups()
+                    .post(any(CheckMemberGroupsPostRequestBody.class))).thenReturn(none);
+        }
+
+        CacheProperties props = new CacheProperties();
+        props.setVerifySamplesPerGroup(10);
+        props.setVerifyGuestSamples(0);
+
+        EntraCacheVerifier verifier = new EntraCacheVerifier(graph, cache, refresher, props);
+        assertThat(verifier.sampleGroup("g-a", 10).drifted()).isZero();
+        assertThat(verifier.sampleGroup("g-b", 10).driftRate()).isEqualTo(1.0);
+
+        verifier.verify();
+
+        verify(refresher).refreshGroup("g-b");
+        verify(refresher, never()).refreshGroup("g-a");
+        verify(refresher, never()).refreshCache();
+    }
+
+    @Test
+    void sampleGuests_drawsFromMergedView_upToSampleCount() {
+        GraphServiceClient graph = Mockito.mock(GraphServiceClient.class, Mockito.RETURNS_DEEP_STUBS);
+        UserItemRequestBuilder gone = mock(UserItemRequestBuilder.class);
+        when(graph.users().byUserId(anyString())).thenReturn(gone);
+        when(gone.get(any())).thenReturn(null);
+
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of("a@b.com", "u-a", "b@b.com", "u-b", "c@b.com", "u-c", "d@b.com", "u-d"),
+                Map.of(), Map.of());
+        cache.putGuest("a@b.com", "u-a2");
+        cache.evictGuest("d@b.com");
+
+        EntraCacheVerifier verifier = new EntraCacheVerifier(graph, cache, mock(EntraCacheRefresher.class),
+                new CacheProperties());
+        assertThat(verifier.sampleGuests(2)).isEqualTo(2);
+        assertThat(cache.guestCount()).isEqualTo(1);
+        assertThat(verifier.sampleGuests(10)).isEqualTo(1);
+        assertThat(cache.getGuests()).isEmpty();
+
+        // bare id-er fra sammenslått visning: overskrevet og fjernet snapshot-oppføring slås aldri opp
+        ArgumentCaptor<String> userIds = ArgumentCaptor.forClass(String.class);
+        verify(graph.users(), times(4)).byUserId(userIds.capture());
+        assertThat(userIds.getAllValues()).doesNotContain("u-a", "u-d")
+                .containsAll(List.of("u-a2", "u-b", "u-c"));
+    }
+
+    @Test
+    void replaceGroupMembers_swapsOneGroup_andDropsItsDeltas() {
+        EntraCache cache = new EntraCache();
+        cache.publish(Map.of(), Map.of(), Map.of("g-a", Set.of("u-1"), "g-b", Set.of("u-2")));
+        long version = cache.getVersion();
+        cache.addMemberToGroup("g-a", "u-stale");
+        cache.addMemberToGroup("g-b", "u-3");
+
+        assertThat(cache.replaceGroupMembers("g-a", List.of("u-1", "u-9"))).isTrue();
+
+        assertThat(cache.getVersion()).isEqualTo(version + 1);
+        assertThat(cache.getGroupMembers("g-a")).containsExactlyInAnyOrder("u-1", "u-9");
+        assertThat(cache.getGroupMembers("g-b")).containsExactlyInAnyOrder("u-2", "u-3");
+
+        cache.beginRefresh();
+        assertThat(cache.replaceGroupMembers("g-a", List.of())).isFalse();
+    }
+}
@@ -0,0 +1,116 @@
+package no.novari.qliktosharepoint.cache;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup cost and retained heap of the group member representations.
+ * Run with {@code ./gradlew jmh --args='MemberSetBenchmark'}; the footprint is printed once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemberSetBenchmark {
+
+    private static final int FOOTPRINT_COPIES = 8;
+
+    @Param({"1000", "20000", "100000"})
+    int members;
+
+    @Param({"hashSet", "concurrentKeySet", "compact"})
+    String impl;
+
+    private Set<String> set;
+    private String[] ids;
+    private String[] hits;
+    private String[] misses;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        ids = new String[members];
+        for (int i = 0; i < members; i++) {
+            ids[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+        }
+
+        hits = new String[1024];
+        misses = new String[1024];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = freshCopy(ids[random.nextInt(members)]);
+            misses[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+        }
+
+        set = build();
+        printFootprint();
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return set.contains(hits[next()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return set.contains(misses[next()]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Set<String> buildSet() {
+        return build();
+    }
+
+    private int next() {
+        cursor = (cursor + 1) & 1023;
+        return cursor;
+    }
+
+    private Set<String> build() {
+        Set<String> s = switch (impl) {
+            case "hashSet" -> new HashSet<>();
+            case "concurrentKeySet" -> ConcurrentHashMap.newKeySet();
+            case "compact" -> new CompactMemberSet();
+            default -> throw new IllegalArgumentException(impl);
+        };
+        for (String id : ids) {
+            s.add(freshCopy(id));
+        }
+        return s;
+    }
+
+    private void printFootprint() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Object[] keep = new Object[FOOTPRINT_COPIES];
+
+        long before = usedAfterGc(memory);
+        for (int i = 0; i < keep.length; i++) {
+            keep[i] = build();
+        }
+        long after = usedAfterGc(memory);
+
+        double bytesPerMember = (after - before) / (double) FOOTPRINT_COPIES / members;
+        System.out.printf("footprint impl=%s members=%d bytesPerMember=%.1f%n", impl, members, bytesPerMember);
+        if (keep[0] == null) throw new IllegalStateException();
+    }
+
+    private static long usedAfterGc(MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String freshCopy(String s) {
+        return new String(s.toCharArray());
+    }
+}
@@ -0,0 +1,93 @@
+package no.novari.qliktosharepoint.cache;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link EntraCache} membership reads and writes under concurrent load, as during a sync run where
+ * the executor threads add and remove members while the planner and GraphGroupService read them.
+ * Run with {@code ./gradlew jmh --args='MembershipConcurrencyBenchmark'}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class MembershipConcurrencyBenchmark {
+
+    @Param({"1", "16"})
+    int groups;
+
+    @Param({"20000"})
+    int membersPerGroup;
+
+    private EntraCache cache;
+    private String[] groupIds;
+    private String[] userIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        userIds = new String[membersPerGroup * 2];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+        }
+
+        groupIds = new String[groups];
+        Map<String, Set<String>> members = new HashMap<>();
+        for (int g = 0; g < groups; g++) {
+            groupIds[g] = new UUID(random.nextLong(), random.nextLong()).toString();
+            members.put(groupIds[g], Set.of(Arrays.copyOf(userIds, membersPerGroup)));
+        }
+
+        cache = new EntraCache();
+        cache.publish(Map.of(), Map.of(), members);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(16)
+    public boolean isMember() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return cache.isMember(groupIds[random.nextInt(groups)], userIds[random.nextInt(userIds.length)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public void add() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        cache.addMemberToGroup(groupIds[random.nextInt(groups)], userIds[random.nextInt(userIds.length)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public void remove() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        cache.removeMemberFromGroup(groupIds[random.nextInt(groups)], userIds[random.nextInt(userIds.length)]);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(12)
+    public void addHeavy() {
+        add();
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(12)
+    public void removeHeavy() {
+        remove();
+    }
+}
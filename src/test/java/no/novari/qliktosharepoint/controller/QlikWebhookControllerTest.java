@@ -0,0 +1,64 @@
+package no.novari.qliktosharepoint.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.novari.qliktosharepoint.config.SyncProperties;
+import no.novari.qliktosharepoint.service.WebhookSyncQueue;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+class QlikWebhookControllerTest {
+
+    private static final String SECRET = "delt-hemmelighet";
+
+    @Test
+    void onEvent_acceptsSignedEvents_andRejectsUnsigned() throws Exception {
+        WebhookSyncQueue queue = mock(WebhookSyncQueue.class);
+        SyncProperties props = new SyncProperties();
+        QlikWebhookController controller = new QlikWebhookController(queue, props, new ObjectMapper());
+
+        byte[] body = """
+                [{"eventType":"com.qlik.v1.user.updated","data":{"id":"u7","email":"ny@example.com"}},
+                 {"eventType":"com.qlik.v1.user.created","data":{"email":"annen@example.com"}},
+                 {"eventType":"com.qlik.v1.user.deleted","data":{"id":"u9"}},
+                 {"eventType":"com.qlik.v1.group.updated","data":{"id":"g1"}},
+                 {"eventType":"com.qlik.v1.app.reloaded","data":{"id":"a1"}}]
+                """.getBytes(StandardCharsets.UTF_8);
+        byte[] hmac = hmac(body);
+
+        // uten konfigurert hemmelighet er webhooken av
+        assertThat(controller.onEvent(HexFormat.of().formatHex(hmac), body).getStatusCode())
+                .isEqualTo(HttpStatus.NOT_FOUND);
+
+        props.setWebhookSecret(SECRET);
+        assertThat(controller.onEvent(null, body).getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+        assertThat(controller.onEvent("sha256=" + HexFormat.of().formatHex(new byte[32]), body).getStatusCode())
+                .isEqualTo(HttpStatus.UNAUTHORIZED);
+        verifyNoInteractions(queue);
+
+        var response = controller.onEvent("sha256=" + HexFormat.of().formatHex(hmac), body);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+        assertThat(response.getBody()).containsEntry("users", 2).containsEntry("fullRuns", 1);
+        verify(queue).enqueueUser("u7");
+        verify(queue).enqueueUser("annen@example.com");
+        verify(queue, times(1)).enqueueFullRun();
+        verifyNoMoreInteractions(queue);
+
+        assertThat(controller.onEvent(Base64.getEncoder().encodeToString(hmac), body).getStatusCode())
+                .isEqualTo(HttpStatus.ACCEPTED);
+    }
+
+    private static byte[] hmac(byte[] body) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return mac.doFinal(body);
+    }
+}
@@ -78,10 +78,71 @@ class QlikUserClientTest {
                     }
                 """));
 
-        List<QlikUserDto> result = client.getAllUsers();
+        List<QlikUser> result = client.getAllUsers();
 
         assertThat(result).isNotNull();
-        assertThat(result).extracting(QlikUserDto::getId).containsExactly("u1");
+        assertThat(result).extracting(QlikUser::id).containsExactly("u1");
+    }
+
+    @Test
+    void getUsers_parsesSlimUserWithSharedGroupList() {
+        server.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setHeader("Content-Type", "application/json")
+                .setBody("""
+                    {
+                      "data": [
+                        {"id":"u1","name":"User One","email":" One@Example.COM ",
+                         "assignedGroups":[{"providerType":"idp","name":"B_x"},{"providerType":"idp","name":"A_y"},
+                                           {"providerType":"idp","name":"B_x"}]},
+                        {"id":"u2","name":"User Two","email":"two@example.com",
+                         "assignedGroups":[{"providerType":"custom","name":"A_y"},{"providerType":"custom","name":"B_x"}]}
+                      ],
+                      "links": {"self":{"href":"/api/v1/users"}}
+                    }
+                """));
+        enqueueAuditPagesForActiveUsers(List.of("u1", "u2"));
+
+        List<QlikUser> result = client.getAllUsers();
+
+        assertThat(result).hasSize(2);
+        QlikUser one = result.getFirst();
+        QlikUser two = result.getLast();
+        assertThat(one.email()).isEqualTo("one@example.com");
+        assertThat(one.federated()).isTrue();
+        assertThat(two.federated()).isFalse();
+        assertThat(one.groupNames()).containsExactly("A_y", "B_x");
+        // samme gruppekombinasjon deler én liste
+        assertThat(two.groupNames()).isSameAs(one.groupNames());
+    }
+
+    @Test
+    void findUsers_andActivityLookup_areSingleRequests() throws InterruptedException {
+        server.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setHeader("Content-Type", "application/json")
+                .setBody("""
+                    {"data":[{"id":"u7","name":"Ny Ansatt","email":"ny@example.com",
+                              "assignedGroups":[{"providerType":"idp","name":"A_apps"}]}]}
+                """));
+        server.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setHeader("Content-Type", "application/json")
+                .setBody("""
+                    {"data":[{"userId":"u7","eventTime":"2026-01-15T10:00:00Z","eventType":"com.qlik.user-session.begin"}]}
+                """));
+        server.enqueue(new MockResponse().setResponseCode(500));
+
+        List<QlikUser> found = client.findUsers("Ny@Example.com");
+        assertThat(found).extracting(QlikUser::id).containsExactly("u7");
+        assertThat(server.takeRequest().getRequestUrl().queryParameter("filter"))
+                .isEqualTo("email eq \"Ny@Example.com\"");
+
+        assertThat(client.hasRecentActivity("u7")).isTrue();
+        assertThat(server.takeRequest().getRequestUrl().queryParameter("userId")).isEqualTo("u7");
+
+        assertThat(client.findUsers("u8")).isNull();
+        assertThat(server.takeRequest().getRequestUrl().queryParameter("filter")).isEqualTo("id eq \"u8\"");
     }
 
     @Test
@@ -100,12 +161,12 @@ class QlikUserClientTest {
         }
         enqueueAuditPagesForActiveUsers(activeUserIds);
 
-        List<QlikUserDto> result = client.getAllUsers();
+        List<QlikUser> result = client.getAllUsers();
 
         assertThat(result).isNotNull();
         assertThat(result).hasSize(nActive);
 
-        assertThat(result).extracting(QlikUserDto::getId)
+        assertThat(result).extracting(QlikUser::id)
                 .containsExactlyElementsOf(expectedUserIds(nActive));
     }
 
@@ -133,13 +194,13 @@ class QlikUserClientTest {
 
         enqueueAuditPagesForActiveUsers(activeUserIds);
 
-        List<QlikUserDto> result = client.getAllUsers();
+        List<QlikUser> result = client.getAllUsers();
 
         assertThat(result).isNotNull();
         assertThat(result).hasSize(expectedActive);
 
         assertThat(result).allMatch(u -> {
-            int n = Integer.parseInt(u.getId().substring(1));
+            int n = Integer.parseInt(u.id().substring(1));
             return isActive.test(n);
         });
     }
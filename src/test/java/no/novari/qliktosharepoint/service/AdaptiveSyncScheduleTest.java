@@ -0,0 +1,115 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.cache.EntraCache;
+import no.novari.qliktosharepoint.config.CacheProperties;
+import no.novari.qliktosharepoint.config.SyncProperties;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveSyncScheduleTest {
+
+    private final SyncProperties syncProperties = new SyncProperties();
+    private final CacheProperties cacheProperties = new CacheProperties();
+    private final EntraCache cache = new EntraCache();
+
+    @Test
+    void interval_shrinksOnChanges_andBacksOffWhenIdleOrThrottled() {
+        AdaptiveSyncSchedule schedule = new AdaptiveSyncSchedule(syncProperties, cacheProperties, cache);
+        assertThat(schedule.decision().interval()).isEqualTo(Duration.ofMinutes(5));
+
+        // endringer halverer, men aldri under min-interval
+        schedule.onRunFinished(run(SyncJob.State.SUCCEEDED, 3, 0, 0, Duration.ofSeconds(2)), 0);
+        assertThat(schedule.decision()).isEqualTo(decision(Duration.ofSeconds(150), AdaptiveSyncSchedule.Reason.CHANGES));
+        schedule.onRunFinished(run(SyncJob.State.SUCCEEDED, 0, 1, 0, Duration.ofSeconds(2)), 0);
+        schedule.onRunFinished(run(SyncJob.State.SUCCEEDED, 0, 1, 0, Duration.ofSeconds(2)), 0);
+        assertThat(schedule.decision().interval()).isEqualTo(Duration.ofMinutes(1));
+
+        // no-op strekker med en halv
+        schedule.onRunFinished(run(SyncJob.State.SUCCEEDED, 0, 0, 0, Duration.ofSeconds(2)), 0);
+        assertThat(schedule.decision()).isEqualTo(decision(Duration.ofSeconds(90), AdaptiveSyncSchedule.Reason.IDLE));
+
+        // struping dobler selv om kjøringen fant endringer, og stopper på max-interval
+        schedule.onRunFinished(run(SyncJob.State.SUCCEEDED, 5, 0, 0, Duration.ofSeconds(2)), 4);
+        assertThat(schedule.decision()).isEqualTo(decision(Duration.ofMinutes(3), AdaptiveSyncSchedule.Reason.THROTTLED));
+        for (int i = 0; i < 10; i++) {
+            schedule.onRunFinished(run(SyncJob.State.FAILED, 0, 0, 0, Duration.ofSeconds(2)), 0);
+        }
+        assertThat(schedule.decision()).isEqualTo(decision(Duration.ofMinutes(30), AdaptiveSyncSchedule.Reason.FAILED));
+        assertThat(schedule.lastThrottled()).isZero();
+    }
+
+    @Test
+    void longRun_keepsGapOfSeveralRunDurations() {
+        AdaptiveSyncSchedule schedule = new AdaptiveSyncSchedule(syncProperties, cacheProperties, cache);
+
+        schedule.onRunFinished(run(SyncJob.State.SUCCEEDED, 10, 0, 0, Duration.ofMinutes(4)), 0);
+
+        assertThat(schedule.decision()).isEqualTo(decision(Duration.ofMinutes(4).multipliedBy(
+                AdaptiveSyncSchedule.LONG_RUN_FACTOR), AdaptiveSyncSchedule.Reason.LONG_RUN));
+        assertThat(schedule.lastRunDuration()).isEqualTo(Duration.ofMinutes(4));
+    }
+
+    @Test
+    void disabled_keepsConfiguredInterval() {
+        syncProperties.setAdaptiveInterval(false);
+        AdaptiveSyncSchedule schedule = new AdaptiveSyncSchedule(syncProperties, cacheProperties, cache);
+
+        schedule.onRunFinished(run(SyncJob.State.SUCCEEDED, 10, 0, 0, Duration.ofSeconds(1)), 3);
+
+        assertThat(schedule.decision()).isEqualTo(decision(Duration.ofMinutes(5), AdaptiveSyncSchedule.Reason.CONFIGURED));
+    }
+
+    @Test
+    void cacheRefresh_isDeferredAwayFromSyncRuns() {
+        AdaptiveSyncSchedule schedule = new AdaptiveSyncSchedule(syncProperties, cacheProperties, cache);
+        Instant now = Instant.parse("2026-01-01T12:00:00Z");
+        cache.restore(1, now.minus(Duration.ofHours(1)), Map.of(), Map.of(), Map.of());
+
+        // før første sync er planlagt: ingen refresh
+        assertThat(schedule.cacheRefreshWindowOpen(false, now)).isFalse();
+
+        // neste sync om 5 min: rett etter forrige er vinduet åpent, like før neste er det stengt
+        Instant nextSync = schedule.scheduleNextSync(now);
+        assertThat(nextSync).isEqualTo(now.plus(Duration.ofMinutes(5)));
+        assertThat(schedule.cacheRefreshWindowOpen(false, now.plusSeconds(30))).isTrue();
+        assertThat(schedule.nextCacheRefreshAt(now, now)).isEqualTo(now.plus(Duration.ofHours(12)));
+
+        assertThat(schedule.cacheRefreshWindowOpen(false, now.plus(Duration.ofMinutes(4)))).isFalse();
+        assertThat(schedule.cacheRefreshWindowOpen(true, now.plusSeconds(30))).isFalse();
+        assertThat(schedule.deferredRefreshes()).isEqualTo(3);
+        // utsatt refresh prøver igjen en halv sync-intervall senere
+        assertThat(schedule.nextCacheRefreshAt(now, now)).isEqualTo(now.plus(Duration.ofSeconds(150)));
+    }
+
+    @Test
+    void firstCacheRefresh_coldRunsAtOnce_restoredWaitsUntilSnapshotIsDue() {
+        AdaptiveSyncSchedule schedule = new AdaptiveSyncSchedule(syncProperties, cacheProperties, cache);
+        Instant now = Instant.parse("2026-01-01T12:00:00Z");
+
+        // kald cache: refresh med en gang, også mens en sync kjører
+        assertThat(schedule.nextCacheRefreshAt(null, now)).isEqualTo(now);
+        assertThat(schedule.cacheRefreshWindowOpen(true, now)).isTrue();
+
+        // snapshot bygget for en time siden: første refresh når det er refresh-interval gammelt
+        cache.restore(3, now.minus(Duration.ofHours(1)), Map.of(), Map.of(), Map.of());
+        assertThat(schedule.isCacheCold()).isFalse();
+        assertThat(schedule.nextCacheRefreshAt(null, now)).isEqualTo(now.plus(Duration.ofHours(11)));
+        Instant later = now.plus(Duration.ofDays(1));
+        assertThat(schedule.nextCacheRefreshAt(null, later)).isEqualTo(later);
+    }
+
+    private static AdaptiveSyncSchedule.Decision decision(Duration interval, AdaptiveSyncSchedule.Reason reason) {
+        return new AdaptiveSyncSchedule.Decision(interval, reason);
+    }
+
+    private static SyncJob.Status run(SyncJob.State state, int added, int removed, int failed, Duration took) {
+        Instant started = Instant.parse("2026-01-01T12:00:00Z");
+        return new SyncJob.Status("run", "scheduled", state, SyncJob.Phase.FINISHED, started, started.plus(took),
+                100, added, removed, 0, failed, added + removed, added + removed, 0, null);
+    }
+}
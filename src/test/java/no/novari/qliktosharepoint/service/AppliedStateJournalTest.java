@@ -0,0 +1,115 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.config.SyncProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AppliedStateJournalTest {
+
+    @Test
+    void commitAndLoad_replaysAppendedRecords(@TempDir Path dir) {
+        SyncProperties props = props(dir);
+        AppliedStateJournal journal = new AppliedStateJournal(props);
+        journal.load();
+        assertThat(journal.isFullRunDue(Instant.EPOCH, Instant.now())).isTrue();
+
+        journal.commit(Map.of(
+                "a@b.com", new AppliedStateJournal.Entry("id-a", Set.of("G1", "G\t2")),
+                "c@b.com", new AppliedStateJournal.Entry("id-c", Set.of("G1"))), Set.of("x@b.com"), Set.of(), true);
+        journal.commit(Map.of("x@b.com", new AppliedStateJournal.Entry("id-x", Set.of("G1"))),
+                Set.of("a@b.com"), Set.of("c@b.com"), false);
+        journal.close();
+
+        AppliedStateJournal reloaded = new AppliedStateJournal(props);
+        reloaded.load();
+
+        assertThat(reloaded.isFullRunDue(Instant.EPOCH, Instant.now())).isFalse();
+        assertThat(reloaded.get("a@b.com").groupNames()).containsExactlyInAnyOrder("G1", "G\t2");
+        assertThat(reloaded.isFailed("a@b.com")).isTrue();
+        assertThat(reloaded.get("x@b.com").userId()).isEqualTo("id-x");
+        assertThat(reloaded.isFailed("x@b.com")).isFalse();
+        assertThat(reloaded.get("c@b.com")).isNull();
+        assertThat(reloaded.emails()).containsExactlyInAnyOrder("a@b.com", "x@b.com");
+    }
+
+    @Test
+    void load_stopsAtTornRecord(@TempDir Path dir) throws IOException {
+        SyncProperties props = props(dir);
+        AppliedStateJournal journal = new AppliedStateJournal(props);
+        journal.load();
+        journal.commit(Map.of("a@b.com", new AppliedStateJournal.Entry("id-a", Set.of("G1"))), Set.of(), Set.of(), true);
+        journal.close();
+
+        // halvskrevet linje etter et krasj
+        Files.writeString(props.getJournalFile(), "1234abcd\tA\tb@b.com\tid-", StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        AppliedStateJournal reloaded = new AppliedStateJournal(props);
+        reloaded.load();
+
+        assertThat(reloaded.get("a@b.com")).isNotNull();
+        assertThat(reloaded.get("b@b.com")).isNull();
+    }
+
+    @Test
+    void load_rewritesTornTail_soLaterAppendsSurviveReload(@TempDir Path dir) throws IOException {
+        SyncProperties props = props(dir);
+        AppliedStateJournal journal = new AppliedStateJournal(props);
+        journal.load();
+        journal.commit(Map.of("a@b.com", new AppliedStateJournal.Entry("id-a", Set.of("G1"))), Set.of(), Set.of(), true);
+        journal.close();
+        Files.writeString(props.getJournalFile(), "1234abcd\tA\tb@b.com\tid-", StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        AppliedStateJournal afterCrash = new AppliedStateJournal(props);
+        afterCrash.load();
+        assertThat(Files.readString(props.getJournalFile())).doesNotContain("b@b.com").endsWith("\n");
+
+        // inkrementell kjøring etter krasjet skal ikke havne bak den avrevne linjen
+        afterCrash.commit(Map.of("c@b.com", new AppliedStateJournal.Entry("id-c", Set.of("G2"))),
+                Set.of("d@b.com"), Set.of(), false);
+        afterCrash.close();
+
+        AppliedStateJournal reloaded = new AppliedStateJournal(props);
+        reloaded.load();
+
+        assertThat(reloaded.get("a@b.com").userId()).isEqualTo("id-a");
+        assertThat(reloaded.get("c@b.com").groupNames()).containsExactly("G2");
+        assertThat(reloaded.isFailed("d@b.com")).isTrue();
+        assertThat(reloaded.isFullRunDue(Instant.EPOCH, Instant.now())).isFalse();
+    }
+
+    @Test
+    void fullRun_compactsFile(@TempDir Path dir) throws IOException {
+        SyncProperties props = props(dir);
+        AppliedStateJournal journal = new AppliedStateJournal(props);
+        journal.load();
+
+        for (int i = 0; i < 50; i++) {
+            journal.commit(Map.of("a@b.com", new AppliedStateJournal.Entry("id-a", Set.of("G" + i))),
+                    Set.of(), Set.of(), false);
+        }
+        assertThat(Files.readAllLines(props.getJournalFile())).hasSize(50);
+
+        journal.commit(Map.of("a@b.com", new AppliedStateJournal.Entry("id-a", Set.of("G1"))), Set.of(), Set.of(), true);
+
+        assertThat(Files.readAllLines(props.getJournalFile())).hasSize(2);
+    }
+
+    private static SyncProperties props(Path dir) {
+        SyncProperties props = new SyncProperties();
+        props.setJournalFile(dir.resolve("applied-state.journal"));
+        return props;
+    }
+}
@@ -0,0 +1,112 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.config.GraphProperties;
+import no.novari.qliktosharepoint.config.QlikProperties;
+import no.novari.qliktosharepoint.qlik.AssignedGroupDto;
+import no.novari.qliktosharepoint.qlik.QlikUser;
+import no.novari.qliktosharepoint.qlik.QlikUserDto;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Desired-state construction from Qlik users: {@link DesiredStateBuilder} on {@link QlikUser} projections against
+ * the former single-threaded loop over the full DTOs (mapping without memo).
+ * Run with {@code ./gradlew jmh --args='DesiredStateBenchmark'}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class DesiredStateBenchmark {
+
+    private static final int GROUPS = 40;
+
+    @Param({"10000", "100000", "1000000"})
+    int users;
+
+    private List<QlikUserDto> dtos;
+    private List<QlikUser> qlikUsers;
+    private QlikToAadGroupMappingService mappingService;
+    private QlikProperties qlikProperties;
+    private GraphProperties graphProperties;
+    private DesiredStateBuilder builder;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        graphProperties = new GraphProperties();
+        List<String> mappings = new ArrayList<>();
+        for (int g = 0; g < GROUPS; g++) mappings.add("Qlik-G" + g + "_Users");
+        graphProperties.setGroupMappings(mappings);
+
+        qlikProperties = new QlikProperties();
+        qlikProperties.setExcludedEmailDomains(List.of("excluded.no", "other.example", "test.invalid"));
+
+        mappingService = new QlikToAadGroupMappingService(graphProperties);
+        mappingService.init();
+        builder = new DesiredStateBuilder(mappingService, qlikProperties, graphProperties);
+
+        SplittableRandom random = new SplittableRandom(42);
+        QlikUser.Interner interner = new QlikUser.Interner();
+        dtos = new ArrayList<>(users);
+        qlikUsers = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            List<AssignedGroupDto> assigned = new ArrayList<>();
+            assigned.add(group("idp", "Everyone"));
+            for (int k = 0; k < 3; k++) assigned.add(group("idp", "G" + random.nextInt(GROUPS) + "_app" + k));
+
+            QlikUserDto u = new QlikUserDto();
+            u.setId("q" + i);
+            u.setName("User " + i);
+            u.setEmail("User" + i + (i % 50 == 0 ? "@excluded.no" : "@example.com"));
+            u.setAssignedGroups(assigned);
+            dtos.add(u);
+            qlikUsers.add(QlikUser.from(u, interner));
+        }
+    }
+
+    @Benchmark
+    public DesiredStateBuilder.Result builder() {
+        return builder.build(qlikUsers);
+    }
+
+    @Benchmark
+    public Map<String, Set<String>> sequentialLoop() {
+        Set<String> managed = graphProperties.getGroupMappings().stream()
+                .map(String::trim).collect(Collectors.toSet());
+        Map<String, Set<String>> desired = new HashMap<>();
+        Map<String, String> names = new HashMap<>();
+
+        for (int i = 0; i < dtos.size(); i++) {
+            QlikUserDto u = dtos.get(i);
+            if (u.getAssignedGroups().stream().noneMatch(g -> "idp".equalsIgnoreCase(g.getProviderType()))) continue;
+            String email = u.getEmail().trim().toLowerCase();
+            String domain = email.substring(email.lastIndexOf('@') + 1).toLowerCase();
+            if (qlikProperties.getExcludedEmailDomains().stream().map(String::toLowerCase).anyMatch(domain::equals)) {
+                continue;
+            }
+
+            Set<String> effective = mappingService.resolveTargetAadGroupNames(qlikUsers.get(i)).stream()
+                    .filter(managed::contains).collect(Collectors.toSet());
+            if (effective.isEmpty()) continue;
+
+            desired.merge(email, effective, (a, b) -> {
+                a.addAll(b);
+                return a;
+            });
+            names.putIfAbsent(email, u.getName());
+        }
+        return desired;
+    }
+
+    private static AssignedGroupDto group(String providerType, String name) {
+        AssignedGroupDto g = new AssignedGroupDto();
+        g.setProviderType(providerType);
+        g.setName(name);
+        return g;
+    }
+}
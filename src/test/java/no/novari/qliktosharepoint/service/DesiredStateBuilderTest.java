@@ -0,0 +1,60 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.config.GraphProperties;
+import no.novari.qliktosharepoint.config.QlikProperties;
+import no.novari.qliktosharepoint.qlik.QlikUser;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class DesiredStateBuilderTest {
+
+    @Test
+    void build_parallel_matchesSequentialSemantics() {
+        QlikToAadGroupMappingService mappingService = mock(QlikToAadGroupMappingService.class);
+        QlikProperties qlikProperties = new QlikProperties();
+        qlikProperties.setExcludedEmailDomains(List.of(" Excluded.NO "));
+        GraphProperties graphProperties = new GraphProperties();
+        graphProperties.setGroupMappings(List.of("GroupA", "GroupB"));
+
+        // Qlik-gruppe "even" → A, "odd" → B og en uadministrert gruppe
+        when(mappingService.resolveTargetAadGroupNames(any(QlikUser.class))).thenAnswer(inv ->
+                "even".equals(inv.<QlikUser>getArgument(0).groupNames().getFirst())
+                        ? Set.of("GroupA")
+                        : Set.of("GroupB", "Unmanaged"));
+
+        QlikUser.Interner interner = new QlikUser.Interner();
+        List<QlikUser> users = new ArrayList<>();
+        int total = DesiredStateBuilder.PARALLEL_THRESHOLD * 4;
+        for (int i = 0; i < total; i++) {
+            // hver e-post forekommer to ganger, med partalls- og oddetallsindeks
+            String email = (i / 2 == 3 ? "User3@Excluded.no" : "User" + (i / 2) + "@example.com");
+            boolean federated = i % 10 != 9;
+            users.add(interner.user(String.valueOf(i), email, "Name " + i, federated, List.of(i % 2 == 0 ? "even" : "odd")));
+        }
+
+        DesiredStateBuilder.Result result =
+                new DesiredStateBuilder(mappingService, qlikProperties, graphProperties).build(users);
+
+        assertThat(result.groupsToUse()).containsExactlyInAnyOrder("GroupA", "GroupB");
+        assertThat(result.groupsByEmail()).doesNotContainKey("user3@excluded.no");
+        assertThat(result.groupsByEmail().get("user0@example.com")).containsExactlyInAnyOrder("GroupA", "GroupB");
+        // id 9 er ikke føderert, så bare partall-brukeren gir grupper
+        assertThat(result.groupsByEmail().get("user4@example.com")).containsExactly("GroupA");
+        assertThat(result.displayNameByEmail().get("user4@example.com")).isEqualTo("Name 8");
+        assertThat(result.displayNameByEmail().get("user1001@example.com")).isEqualTo("Name 2002");
+        assertThat(result.groupsByEmail()).hasSize(total / 2 - 1);
+
+        // to distinkte gruppesignaturer, resten er treff i memoet
+        assertThat(result.mappingStats().distinct()).isEqualTo(2);
+        assertThat(result.mappingStats().misses()).isEqualTo(2);
+        assertThat(result.mappingStats().hits() + result.mappingStats().misses()).isEqualTo(total - total / 10 - 2);
+        verify(mappingService, times(2)).resolveTargetAadGroupNames(any(QlikUser.class));
+    }
+}
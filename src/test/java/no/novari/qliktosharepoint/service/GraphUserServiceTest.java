@@ -7,6 +7,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.graph.models.User;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
 import no.novari.qliktosharepoint.cache.EntraCache;
+import no.novari.qliktosharepoint.cache.InviteFailureReason;
 import no.novari.qliktosharepoint.config.GraphProperties;
 import okhttp3.*;
 import org.junit.jupiter.api.Test;
@@ -18,7 +19,8 @@ import okio.Buffer;
 import java.time.OffsetDateTime;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.ArgumentMatchers.any;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
 class GraphUserServiceTest {
@@ -143,6 +145,44 @@ class GraphUserServiceTest {
         }
     }
 
+    @Test
+    void ensureGuestUserId_recordsNegativeCacheEntry_whenInviteIsRejected() throws Exception {
+        GraphServiceClient graph = Mockito.mock(GraphServiceClient.class, Mockito.RETURNS_DEEP_STUBS);
+        EntraCache entraCache = Mockito.mock(EntraCache.class);
+
+        GraphProperties graphProps = new GraphProperties();
+        graphProps.setInviteRedirectUrl("https://example.com");
+
+        ClientSecretCredential credential = Mockito.mock(ClientSecretCredential.class);
+        OkHttpClient ok = Mockito.mock(OkHttpClient.class);
+
+        when(credential.getToken(any(TokenRequestContext.class)))
+                .thenReturn(Mono.just(new AccessToken("tok", OffsetDateTime.now().plusHours(1))));
+
+        Response response = new Response.Builder()
+                .request(new Request.Builder().url("https://graph.microsoft.com/v1.0/invitations").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(400)
+                .message("Bad Request")
+                .body(ResponseBody.create("{\"error\":{\"message\":\"The invited user email address is invalid.\"}}",
+                        MediaType.get("application/json")))
+                .build();
+
+        Call call = Mockito.mock(Call.class);
+        when(call.execute()).thenReturn(response);
+        when(ok.newCall(any(Request.class))).thenReturn(call);
+
+        GraphUserService svc = new GraphUserService(graph, graphProps, entraCache, credential, ok, new ObjectMapper());
+
+        assertThatThrownBy(() -> svc.ensureGuestUserId("Bad@Example.com", "Bad"))
+                .isInstanceOf(GuestInviteRejectedException.class);
+
+        // ingen retry på 400, og e-posten havner i negativ cache
+        verify(ok, times(1)).newCall(any(Request.class));
+        verify(entraCache).recordInviteFailure(eq("bad@example.com"), eq(InviteFailureReason.INVALID_ADDRESS), anyString());
+        verify(entraCache, never()).putGuest(anyString(), anyString());
+    }
+
     private static String extractEmailFromInviteBody(String jsonBody) {
         // finner "invitedUserEmailAddress":"...".
         int idx = jsonBody.indexOf("\"invitedUserEmailAddress\"");
@@ -0,0 +1,98 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.config.GraphProperties;
+import no.novari.qliktosharepoint.qlik.QlikUser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-user group mapping cost with hundreds of configured mappings: the compiled {@link GroupNameMatcher} behind
+ * {@link QlikToAadGroupMappingService} against the former first-underscore substring and hash lookup.
+ * Run with {@code ./gradlew jmh --args='GroupMappingBenchmark'}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupMappingBenchmark {
+
+    private static final int USERS = 1024;
+    private static final int GROUPS_PER_USER = 6;
+
+    @Param({"100", "500"})
+    int mappings;
+
+    @Param({"prefix", "mixed"})
+    String rules;
+
+    private QlikToAadGroupMappingService service;
+    private Map<String, String> legacyPrefixToAadGroupName;
+    private QlikUser[] users;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        GraphProperties props = new GraphProperties();
+        List<String> groupMappings = new ArrayList<>();
+        Map<String, List<String>> groupMappingRules = new HashMap<>();
+        legacyPrefixToAadGroupName = new HashMap<>();
+
+        for (int m = 0; m < mappings; m++) {
+            String aadGroupName = "Qlik-K" + m + "_Users";
+            groupMappings.add(aadGroupName);
+            legacyPrefixToAadGroupName.put("K" + m + "_", aadGroupName);
+            if ("mixed".equals(rules)) {
+                switch (m % 4) {
+                    case 1 -> groupMappingRules.put(aadGroupName, List.of("K" + m + "_FIN_*"));
+                    case 2 -> groupMappingRules.put(aadGroupName, List.of("K" + m + "_*_Rapport"));
+                    case 3 -> groupMappingRules.put(aadGroupName, List.of("K" + m + "_*", "re:R" + m + "_\\d+"));
+                    default -> {
+                    }
+                }
+            }
+        }
+        props.setGroupMappings(groupMappings);
+        props.setGroupMappingRules(groupMappingRules);
+        service = new QlikToAadGroupMappingService(props);
+        service.init();
+
+        SplittableRandom random = new SplittableRandom(42);
+        String[] suffixes = {"_FIN_Budget", "_HR_Rapport", "_apps", "_x"};
+        QlikUser.Interner interner = new QlikUser.Interner();
+        users = new QlikUser[USERS];
+        for (int u = 0; u < USERS; u++) {
+            List<String> groupNames = new ArrayList<>();
+            for (int g = 0; g < GROUPS_PER_USER; g++) {
+                int k = random.nextInt(mappings * 2);
+                groupNames.add((k % 7 == 0 ? "Other" : "K") + k + suffixes[random.nextInt(suffixes.length)]);
+            }
+            users[u] = interner.user("q" + u, "u" + u + "@example.com", "User " + u, true, groupNames);
+        }
+    }
+
+    @Benchmark
+    public Set<String> compiledMatcher() {
+        return service.resolveTargetAadGroupNames(users[next()]);
+    }
+
+    @Benchmark
+    public Set<String> legacySubstringLookup() {
+        Set<String> result = new HashSet<>();
+        for (String name : users[next()].groupNames()) {
+            int idx = name.indexOf('_');
+            if (idx <= 0) continue;
+            String aadGroupName = legacyPrefixToAadGroupName.get(name.substring(0, idx + 1));
+            if (aadGroupName != null) result.add(aadGroupName);
+        }
+        return result;
+    }
+
+    private int next() {
+        cursor = (cursor + 1) & (USERS - 1);
+        return cursor;
+    }
+}
@@ -0,0 +1,91 @@
+package no.novari.qliktosharepoint.service;
+
+import com.microsoft.graph.models.User;
+import com.microsoft.graph.models.UserCollectionResponse;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.graph.users.UsersRequestBuilder;
+import no.novari.qliktosharepoint.cache.EntraCache;
+import no.novari.qliktosharepoint.config.CacheProperties;
+import no.novari.qliktosharepoint.config.GuestResolutionMode;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class GuestLookupServiceTest {
+
+    @Test
+    void resolve_looksUpStaleEmailsInChunks_evictsMissing_andLeavesFailedChunkUntouched() {
+        EntraCache cache = new EntraCache();
+        // snapshot fra i går: alle oppføringene er eldre enn guest-ttl
+        cache.restore(1, Instant.now().minus(Duration.ofDays(1)), Map.of(
+                "b@x.com", "u-b",
+                "d@x.com", "u-d",
+                "e@x.com", "u-e"), Map.of(), Map.of());
+        cache.putGuest("fresh@x.com", "u-fresh");
+
+        // Graph kjenner a og e; chunken med c og d feiler
+        Map<String, String> inGraph = Map.of("a@x.com", "u-a", "e@x.com", "u-e");
+        List<String> filters = new ArrayList<>();
+        GraphServiceClient graph = mock(GraphServiceClient.class);
+        UsersRequestBuilder users = mock(UsersRequestBuilder.class);
+        when(graph.users()).thenReturn(users);
+        when(users.get(any())).thenAnswer(inv -> {
+            UsersRequestBuilder.GetRequestConfiguration config = new UsersRequestBuilder.GetRequestConfiguration();
+            inv.<Consumer<UsersRequestBuilder.GetRequestConfiguration>>getArgument(0).accept(config);
+            String filter = config.queryParameters.filter;
+            synchronized (filters) {
+                filters.add(filter);
+            }
+            if (filter.contains("'c@x.com'")) throw new IllegalStateException("connection reset");
+
+            List<User> found = new ArrayList<>();
+            inGraph.forEach((mail, id) -> {
+                if (filter.contains("'" + mail + "'")) {
+                    User u = new User();
+                    u.setId(id);
+                    u.setMail(mail);
+                    found.add(u);
+                }
+            });
+            UserCollectionResponse page = new UserCollectionResponse();
+            page.setValue(found);
+            return page;
+        });
+
+        CacheProperties props = new CacheProperties();
+        props.setGuestResolution(GuestResolutionMode.DEMAND);
+        props.setGuestLookupChunkSize(2);
+        GuestLookupService service = new GuestLookupService(graph, props, cache);
+        long modCount = cache.getModCount();
+        try {
+            service.resolve(List.of("a@x.com", "b@x.com", "c@x.com", "d@x.com", "e@x.com", "fresh@x.com"));
+        } finally {
+            service.shutdown();
+        }
+
+        // fersk oppføring slås ikke opp; fem e-poster i chunker på to
+        assertThat(filters).hasSize(3);
+        assertThat(filters).noneMatch(f -> f.contains("fresh@x.com"));
+
+        assertThat(cache.getGuestIdByEmail("a@x.com")).isEqualTo("u-a");
+        assertThat(cache.getGuestIdByEmail("b@x.com")).isNull();
+        assertThat(cache.getGuestIdByEmail("e@x.com")).isEqualTo("u-e");
+        assertThat(cache.getGuestVerifiedAt("e@x.com")).isAfter(Instant.now().minus(Duration.ofMinutes(1)));
+
+        // feilet chunk: d beholdes med gammel verifisering, så neste kjøring prøver igjen
+        assertThat(cache.getGuestIdByEmail("d@x.com")).isEqualTo("u-d");
+        assertThat(cache.getGuestVerifiedAt("d@x.com")).isBefore(Instant.now().minus(Duration.ofHours(12)));
+
+        // bare a lagt til og b fjernet; e med uendret id teller ikke som endring
+        assertThat(cache.getModCount()).isEqualTo(modCount + 2);
+    }
+}
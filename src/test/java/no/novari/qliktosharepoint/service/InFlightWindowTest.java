@@ -0,0 +1,88 @@
+package no.novari.qliktosharepoint.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class InFlightWindowTest {
+
+    @Test
+    void submit_blocksWhenFull_andNeverExceedsCapacity() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        ExecutorService feeder = Executors.newSingleThreadExecutor();
+        try {
+            InFlightWindow window = new InFlightWindow(executor, 3);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            Runnable task = () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+            };
+
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) futures.add(window.submit(task));
+            assertThat(window.inFlight()).isEqualTo(3);
+
+            // fjerde innsending venter til et vindu er ledig
+            CompletableFuture<CompletableFuture<Void>> fourth = CompletableFuture.supplyAsync(() -> window.submit(task), feeder);
+            Thread.sleep(200);
+            assertThat(fourth).isNotDone();
+
+            release.countDown();
+            futures.add(fourth.get(5, TimeUnit.SECONDS));
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+            assertThat(maxRunning.get()).isLessThanOrEqualTo(3);
+            assertThat(window.inFlight()).isZero();
+        } finally {
+            feeder.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failingTask_releasesItsSlot() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            InFlightWindow window = new InFlightWindow(executor, 1);
+
+            CompletableFuture<Void> failed = window.submit(() -> {
+                throw new IllegalStateException("boom");
+            });
+            assertThatThrownBy(() -> failed.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+
+            window.submit(() -> {}).get(5, TimeUnit.SECONDS);
+            assertThat(window.inFlight()).isZero();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void rejectedSubmit_releasesItsSlot() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        InFlightWindow window = new InFlightWindow(executor, 1);
+
+        assertThatThrownBy(() -> window.submit(() -> {})).isInstanceOf(RejectedExecutionException.class);
+        assertThat(window.inFlight()).isZero();
+    }
+}
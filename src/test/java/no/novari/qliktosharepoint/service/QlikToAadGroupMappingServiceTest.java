@@ -0,0 +1,90 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.config.GraphProperties;
+import no.novari.qliktosharepoint.qlik.QlikUser;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class QlikToAadGroupMappingServiceTest {
+
+    @Test
+    void resolve_derivedPrefix_matchesFirstSegmentLikeBefore() {
+        QlikToAadGroupMappingService svc = service(List.of("Qlik-ABC_Users", "DEF_Users", "NoUnderscore"), Map.of());
+
+        assertThat(svc.resolveTargetAadGroupNames(user("ABC_sales", "DEF_x", "GHI_y", "ABC")))
+                .containsExactlyInAnyOrder("Qlik-ABC_Users", "DEF_Users");
+        assertThat(svc.resolveTargetAadGroupNames(user("XABC_sales"))).isEmpty();
+    }
+
+    @Test
+    void resolve_overlappingDerivedPrefixes_keepLastMappingLikeBefore() {
+        QlikToAadGroupMappingService svc = service(
+                List.of("Qlik-Sales_Users", "Sales_Managers", "Qlik-Salesforce_Users"), Map.of());
+
+        // Qlik-Sales_Users og Sales_Managers gir begge prefikset "Sales_"; siste i listen vinner
+        assertThat(svc.resolveTargetAadGroupNames(user("Sales_Nord_x"))).containsExactly("Sales_Managers");
+        assertThat(svc.resolveTargetAadGroupNames(user("Salesforce_x"))).containsExactly("Qlik-Salesforce_Users");
+        assertThat(svc.resolveTargetAadGroupNames(user("Sales"))).isEmpty();
+    }
+
+    @Test
+    void resolve_explicitRules_supportMultiSegmentPrefixWildcardAndRegex() {
+        QlikToAadGroupMappingService svc = service(
+                List.of("Qlik-38_Finance", "Qlik-38_Reports", "Qlik-Admins", "Qlik-ABC_Users"),
+                Map.of(
+                        "Qlik-38_Finance", List.of("38_FIN_*"),
+                        "Qlik-38_Reports", List.of("38_*_Rapport", "Rapport?"),
+                        "Qlik-Admins", List.of("re:(?i)admin_\\d+"),
+                        "Qlik-Unknown", List.of("X_*")));
+
+        assertThat(svc.resolveTargetAadGroupNames(user("38_FIN_Budget"))).containsExactly("Qlik-38_Finance");
+        assertThat(svc.resolveTargetAadGroupNames(user("38_HR_Rapport", "RapportA")))
+                .containsExactly("Qlik-38_Reports");
+        assertThat(svc.resolveTargetAadGroupNames(user("38_HR_Rapport_old", "Rapport"))).isEmpty();
+        assertThat(svc.resolveTargetAadGroupNames(user("ADMIN_42"))).containsExactly("Qlik-Admins");
+        assertThat(svc.resolveTargetAadGroupNames(user("ABC_x", "38_FIN_x")))
+                .containsExactlyInAnyOrder("Qlik-ABC_Users", "Qlik-38_Finance");
+        assertThat(svc.resolveTargetAadGroupNames(user("X_y"))).isEmpty();
+    }
+
+    @Test
+    void matcher_exactAndGlobRulesShareTrieNodes() {
+        GroupNameMatcher matcher = GroupNameMatcher.compile(Map.of(
+                "A", List.of("AB"),
+                "B", List.of("AB*C"),
+                "C", List.of("A*")));
+
+        assertThat(matches(matcher, "AB")).containsExactlyInAnyOrder("A", "C");
+        assertThat(matches(matcher, "ABxxC")).containsExactlyInAnyOrder("B", "C");
+        assertThat(matches(matcher, "ABC")).containsExactlyInAnyOrder("B", "C");
+        assertThat(matches(matcher, "B")).isEmpty();
+        assertThatThrownBy(() -> GroupNameMatcher.compile(Map.of("X", List.of("re:("))))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static List<String> matches(GroupNameMatcher matcher, String name) {
+        BitSet hits = new BitSet();
+        matcher.matchInto(name, hits);
+        return hits.stream().mapToObj(matcher::targetName).toList();
+    }
+
+    private static QlikToAadGroupMappingService service(List<String> mappings, Map<String, List<String>> rules) {
+        GraphProperties props = new GraphProperties();
+        props.setGroupMappings(mappings);
+        props.setGroupMappingRules(rules);
+        QlikToAadGroupMappingService svc = new QlikToAadGroupMappingService(props);
+        svc.init();
+        return svc;
+    }
+
+    private static QlikUser user(String... groupNames) {
+        return new QlikUser.Interner().user("q1", "a@b.com", "A", true, Arrays.asList(groupNames));
+    }
+}
@@ -0,0 +1,159 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.cache.EntraCache;
+import no.novari.qliktosharepoint.cache.EntraCacheRefresher;
+import no.novari.qliktosharepoint.config.CacheProperties;
+import no.novari.qliktosharepoint.config.SyncProperties;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class UserSyncSchedulerTest {
+
+    @Test
+    void submit_returnsRunInProgress_andCancelStopsIt() throws Exception {
+        UserSyncService service = mock(UserSyncService.class);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(inv -> {
+            SyncJob job = inv.getArgument(0);
+            job.counters().plannedOps.set(10);
+            job.counters().completedOps.set(4);
+            started.countDown();
+            assertThat(release.await(5, TimeUnit.SECONDS)).isTrue();
+            return null;
+        }).when(service).syncAll(any(SyncJob.class));
+
+        AdaptiveSyncSchedule schedule = new AdaptiveSyncSchedule(new SyncProperties(), new CacheProperties(), warmCache());
+        EntraCacheRefresher refresher = mock(EntraCacheRefresher.class);
+        UserSyncScheduler scheduler = new UserSyncScheduler(service, schedule, refresher);
+        try {
+            UserSyncScheduler.Submission first = scheduler.submit("manual");
+            assertThat(first.started()).isTrue();
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // ny trigger mens kjøringen pågår gir samme kjøring tilbake
+            UserSyncScheduler.Submission second = scheduler.submit("manual");
+            assertThat(second.started()).isFalse();
+            assertThat(second.job().id()).isEqualTo(first.job().id());
+
+            // planlagt kjøring hopper over, og cache-refresh venter til synken er ferdig
+            scheduler.scheduledRun();
+            verify(service, times(1)).syncAll(any(SyncJob.class));
+            assertThat(schedule.delayedSyncs()).isEqualTo(1);
+            scheduler.scheduledCacheRefresh();
+            verify(refresher, never()).refreshCacheScheduled();
+
+            SyncJob.Status running = scheduler.job(first.job().id()).status();
+            assertThat(running.state()).isEqualTo(SyncJob.State.RUNNING);
+            assertThat(running.completedOps()).isEqualTo(4);
+            assertThat(running.etaSeconds()).isNotNull();
+
+            assertThat(first.job().cancel()).isTrue();
+            release.countDown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!first.job().isFinished() && System.nanoTime() < deadline) Thread.sleep(10);
+
+            SyncJob.Status done = first.job().status();
+            assertThat(done.state()).isEqualTo(SyncJob.State.CANCELLED);
+            assertThat(done.etaSeconds()).isNull();
+            assertThat(first.job().cancel()).isFalse();
+            assertThat(scheduler.current()).isNull();
+            assertThat(scheduler.running.get()).isFalse();
+            // avbrutt kjøring beholder intervallet
+            while (schedule.decision().reason() == AdaptiveSyncSchedule.Reason.CONFIGURED
+                    && System.nanoTime() < deadline) Thread.sleep(10);
+            assertThat(schedule.decision().reason()).isEqualTo(AdaptiveSyncSchedule.Reason.PENDING);
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void cacheRefresh_runsOffSchedulerThread_andDoesNotHoldUpSync() throws Exception {
+        UserSyncService service = mock(UserSyncService.class);
+        AdaptiveSyncSchedule schedule = new AdaptiveSyncSchedule(new SyncProperties(), new CacheProperties(), warmCache());
+        EntraCacheRefresher refresher = mock(EntraCacheRefresher.class);
+        CountDownLatch refreshStarted = new CountDownLatch(1);
+        CountDownLatch releaseRefresh = new CountDownLatch(1);
+        doAnswer(_ -> {
+            refreshStarted.countDown();
+            assertThat(releaseRefresh.await(5, TimeUnit.SECONDS)).isTrue();
+            return null;
+        }).when(refresher).refreshCacheScheduled();
+
+        UserSyncScheduler scheduler = new UserSyncScheduler(service, schedule, refresher);
+        try {
+            schedule.scheduleNextSync(Instant.now());
+
+            // triggeren returnerer med en gang; refresh leser Graph på egen tråd
+            scheduler.scheduledCacheRefresh();
+            assertThat(refreshStarted.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(scheduler.isCacheRefreshing()).isTrue();
+
+            // synken venter ikke på refresh
+            scheduler.scheduledRun();
+            verify(service).syncAll(any(SyncJob.class));
+            assertThat(scheduler.isCacheRefreshing()).isTrue();
+
+            // ny refresh-trigger mens den forrige pågår hoppes over
+            scheduler.scheduledCacheRefresh();
+            verify(refresher, times(1)).refreshCacheScheduled();
+
+            releaseRefresh.countDown();
+            awaitRefreshDone(scheduler);
+        } finally {
+            releaseRefresh.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void coldCache_scheduledRunWaitsForFirstRefresh() throws Exception {
+        UserSyncService service = mock(UserSyncService.class);
+        AdaptiveSyncSchedule schedule = new AdaptiveSyncSchedule(new SyncProperties(), new CacheProperties(), new EntraCache());
+        EntraCacheRefresher refresher = mock(EntraCacheRefresher.class);
+        CountDownLatch releaseRefresh = new CountDownLatch(1);
+        doAnswer(_ -> {
+            assertThat(releaseRefresh.await(5, TimeUnit.SECONDS)).isTrue();
+            return null;
+        }).when(refresher).refreshCacheScheduled();
+
+        UserSyncScheduler scheduler = new UserSyncScheduler(service, schedule, refresher);
+        try {
+            // uten cache ville første sync invitert alle på nytt
+            scheduler.scheduledCacheRefresh();
+            scheduler.scheduledRun();
+            verify(service, never()).syncAll(any(SyncJob.class));
+            assertThat(schedule.delayedSyncs()).isEqualTo(1);
+
+            releaseRefresh.countDown();
+            awaitRefreshDone(scheduler);
+            scheduler.scheduledRun();
+            verify(service).syncAll(any(SyncJob.class));
+        } finally {
+            releaseRefresh.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    private static EntraCache warmCache() {
+        EntraCache cache = new EntraCache();
+        cache.restore(1, Instant.now(), Map.of(), Map.of(), Map.of());
+        return cache;
+    }
+
+    private static void awaitRefreshDone(UserSyncScheduler scheduler) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.isCacheRefreshing() && System.nanoTime() < deadline) Thread.sleep(10);
+        assertThat(scheduler.isCacheRefreshing()).isFalse();
+    }
+}
@@ -1,23 +1,65 @@
 package no.novari.qliktosharepoint.service;
 
 import no.novari.qliktosharepoint.cache.EntraCache;
+import no.novari.qliktosharepoint.cache.InviteFailureReason;
 import no.novari.qliktosharepoint.config.GraphProperties;
 import no.novari.qliktosharepoint.config.QlikProperties;
+import no.novari.qliktosharepoint.config.SyncProperties;
 import no.novari.qliktosharepoint.qlik.AssignedGroupDto;
 import no.novari.qliktosharepoint.qlik.QlikUserClient;
+import no.novari.qliktosharepoint.qlik.QlikUser;
 import no.novari.qliktosharepoint.qlik.QlikUserDto;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
 
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.IntPredicate;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
 class UserSyncServiceTest {
 
+    private final QlikUserClient qlikUserClient = mock(QlikUserClient.class);
+    private final GraphUserService graphUserService = mock(GraphUserService.class);
+    private final GraphGroupService graphGroupService = mock(GraphGroupService.class);
+    private final QlikToAadGroupMappingService mappingService = mock(QlikToAadGroupMappingService.class);
+    private final QlikProperties qlikProperties = mock(QlikProperties.class);
+    private final GraphProperties graphProperties = mock(GraphProperties.class);
+    // ekte cache (spy) – planleggeren trenger ordinaler for bitmap-diff
+    private final EntraCache entraCache = spy(new EntraCache());
+    private final List<QlikUserDto> users = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        // NB: UserSyncService bruker graphProperties.getGroupMappings() som "managedGroupNames"
+        when(graphProperties.getGroupMappings()).thenReturn(List.of("GroupA"));
+        when(qlikProperties.getExcludedEmailDomains()).thenReturn(List.of());
+        when(mappingService.resolveTargetAadGroupNames(any(QlikUser.class))).thenReturn(Set.of("GroupA"));
+        when(qlikUserClient.getAllUsers()).thenAnswer(_ -> users.stream().map(QlikUser::from).toList());
+        when(graphUserService.ensureGuestUserId(anyString(), anyString()))
+                .thenAnswer(inv -> "entra-" + inv.getArgument(0));
+        entraCache.putGroupIdByDisplayName("GroupA", "groupA-id");
+
+        // medlemskap skrives til cachen som i GraphGroupService
+        doAnswer(inv -> {
+            entraCache.addMemberToGroup(inv.getArgument(1), inv.getArgument(0));
+            return null;
+        }).when(graphGroupService).addUserToGroup(anyString(), anyString());
+        doAnswer(inv -> {
+            entraCache.removeMemberFromGroup(inv.getArgument(1), inv.getArgument(0));
+            return null;
+        }).when(graphGroupService).removeUserFromGroup(anyString(), anyString());
+    }
+
     @Test
     void runSyncOnce_createsXUsers_whereYPercentFilteredOut_byFederatedRule() {
         int totalUsers = 2836;
@@ -26,86 +68,405 @@ class UserSyncServiceTest {
         IntPredicate isIncluded = i -> (i * 100 / totalUsers) >= filteredPercent;
         int expectedIncluded = 0;
 
-        QlikUserClient qlikUserClient = mock(QlikUserClient.class);
-        GraphUserService graphUserService = mock(GraphUserService.class);
-        GraphGroupService graphGroupService = mock(GraphGroupService.class);
-        QlikToAadGroupMappingService mappingService = mock(QlikToAadGroupMappingService.class);
-        QlikProperties qlikProperties = mock(QlikProperties.class);
-        GraphProperties graphProperties = mock(GraphProperties.class);
-        EntraCache entraCache = mock(EntraCache.class);
+        // ingen medlemmer og ingen guests cached → må "opprettes"
+        for (int i = 1; i <= totalUsers; i++) {
+            boolean included = isIncluded.test(i);
+            if (included) expectedIncluded++;
+            users.add(user(i, assignedGroup(included ? "idp" : "local")));
+        }
 
-        // NB: UserSyncService bruker graphProperties.getGroupMappings() som "managedGroupNames"
-        when(graphProperties.getGroupMappings()).thenReturn(List.of("GroupA"));
+        newService().syncAll();
 
-        // Ikke kjør reconcile i testen
-        when(qlikProperties.isCleanupRemoveMemberships()).thenReturn(false);
-        when(qlikProperties.getExcludedEmailDomains()).thenReturn(List.of());
+        // expectedIncluded = antall federated (idp)
+        verify(graphUserService, times(expectedIncluded))
+                .ensureGuestUserId(anyString(), anyString());
 
-        // groupId kommer fra cache i ny kode
-        when(entraCache.getGroupIdByDisplayName("GroupA")).thenReturn("groupA-id");
+        // Membership kalles for alle included (én gruppe per user i denne testen)
+        verify(graphGroupService, times(expectedIncluded))
+                .addUserToGroup(anyString(), eq("groupA-id"));
 
-        // ingen medlemmer i utgangspunktet
-        when(entraCache.getGroupMembers("groupA-id")).thenReturn(Set.of());
+        assertThat(expectedIncluded).isLessThan(totalUsers);
+        assertThat(expectedIncluded).isGreaterThan(0);
+    }
 
-        // ingen guests cached → må "opprettes"
-        when(entraCache.getGuestIdByEmail(anyString())).thenReturn(null);
+    @Test
+    void syncAll_skipsSecondRun_whenDesiredStateAndCacheAreUnchanged() {
+        addUsers(1, 20, null);
+        UserSyncService svc = newService();
 
-        // Qlik users
-        List<QlikUserDto> users = new ArrayList<>();
-        for (int i = 1; i <= totalUsers; i++) {
-            boolean included = isIncluded.test(i);
-            if (included) expectedIncluded++;
+        svc.syncAll();
+        svc.syncAll();
 
-            QlikUserDto u = new QlikUserDto();
-            u.setId("q" + i);
-            u.setName("User " + i);
-            u.setEmail("user" + i + "@example.com");
-            u.setAssignedGroups(included
-                    ? List.of(assignedGroup("idp"))
-                    : List.of(assignedGroup("local")));
-            users.add(u);
-        }
-        when(qlikUserClient.getAllUsers()).thenReturn(users);
+        verify(graphUserService, times(20)).ensureGuestUserId(anyString(), anyString());
+        verify(graphGroupService, times(20)).addUserToGroup(anyString(), eq("groupA-id"));
+        // første planlegging bare; andre kjøring hoppes over
+        verify(entraCache, times(1)).memberBitmap("groupA-id");
 
-        // mappingService må gi groupName som finnes i groupIdByName
-        when(mappingService.resolveTargetAadGroupNames(any(QlikUserDto.class)))
-                .thenReturn(Set.of("GroupA"));
+        // endret ønsket tilstand → ny kjøring
+        users.getFirst().setEmail("changed@example.com");
+        svc.syncAll();
+        verify(graphUserService, times(21)).ensureGuestUserId(anyString(), anyString());
+    }
 
-        // user creation
-        when(graphUserService.ensureGuestUserId(anyString(), anyString()))
-                .thenAnswer(inv -> "entra-" + inv.getArgument(0));
+    @Test
+    void syncAll_failsRun_whenQlikFetchFails() {
+        addUsers(1, 3, null);
+        when(qlikUserClient.getAllUsers()).thenReturn(null);
+        UserSyncService svc = newService();
+
+        // feilet henting skal ikke se ut som en kjøring uten endringer
+        assertThatThrownBy(svc::syncAll).isInstanceOf(IllegalStateException.class);
+        verifyNoInteractions(graphUserService, graphGroupService);
+
+        when(qlikUserClient.getAllUsers()).thenAnswer(_ -> users.stream().map(QlikUser::from).toList());
+        svc.syncAll();
+        verify(graphGroupService, times(3)).addUserToGroup(anyString(), eq("groupA-id"));
+    }
 
-        // membership add (kalles inne i en runAsync, men join() brukes)
-        when(graphGroupService.ensureUserInGroupsAsync(anyString(), anyCollection()))
-                .thenReturn(CompletableFuture.completedFuture(null));
+    @Test
+    void syncAll_pipeline_addsAfterInvitesSettle_andSkipsUsersWhoseInviteFailed() {
+        // user1-2 finnes som gjester, user3 inviteres, user4 feiler, user5 er i negativ-cachen
+        entraCache.putGuest("user1@example.com", "entra-user1@example.com");
+        entraCache.putGuest("user2@example.com", "entra-user2@example.com");
+        entraCache.recordInviteFailure("user5@example.com", InviteFailureReason.BLOCKED_DOMAIN, "blocked");
+        addUsers(1, 5, null);
+        when(graphUserService.ensureGuestUserId(anyString(), anyString())).thenAnswer(inv -> {
+            String email = inv.getArgument(0);
+            if (email.startsWith("user4")) throw new IllegalStateException("invite rejected");
+            return "entra-" + email;
+        });
+        UserSyncService svc = newService();
+
+        SyncJob job = new SyncJob("test");
+        svc.syncAll(job);
+
+        // gruppen planlegges først når alle invitasjoner til den er avgjort, også den som feilet
+        InOrder invitedFirst = inOrder(graphUserService, graphGroupService);
+        invitedFirst.verify(graphUserService).ensureGuestUserId(eq("user3@example.com"), anyString());
+        invitedFirst.verify(graphGroupService, times(3)).addUserToGroup(anyString(), eq("groupA-id"));
+        InOrder failedFirst = inOrder(graphUserService, graphGroupService);
+        failedFirst.verify(graphUserService).ensureGuestUserId(eq("user4@example.com"), anyString());
+        failedFirst.verify(graphGroupService, times(3)).addUserToGroup(anyString(), eq("groupA-id"));
+
+        verify(graphGroupService).addUserToGroup("entra-user3@example.com", "groupA-id");
+        verify(graphGroupService, never()).addUserToGroup(contains("user4"), anyString());
+        verify(graphGroupService, never()).addUserToGroup(contains("user5"), anyString());
+        verify(graphUserService, never()).ensureGuestUserId(eq("user5@example.com"), anyString());
 
-        UserSyncService svc = new UserSyncService(
-                qlikUserClient,
-                graphUserService,
-                graphGroupService,
-                mappingService,
-                qlikProperties,
-                graphProperties,
-                entraCache
-        );
+        SyncJob.Status status = job.status();
+        assertThat(status.added()).isEqualTo(3);
+        assertThat(status.failed()).isEqualTo(1);
+        assertThat(status.completedOps()).isEqualTo(5);
 
+        // feilen gjør at neste kjøring ikke hoppes over; bare den feilede invitasjonen prøves igjen
         svc.syncAll();
+        verify(graphUserService, times(2)).ensureGuestUserId(eq("user4@example.com"), anyString());
+        verify(graphUserService, times(1)).ensureGuestUserId(eq("user3@example.com"), anyString());
+    }
 
-        // expectedIncluded = antall federated (idp)
-        verify(graphUserService, times(expectedIncluded))
-                .ensureGuestUserId(anyString(), anyString());
+    @Test
+    void syncAll_runBudget_carriesOverUnstartedWork_andNextRunStartsWithIt() {
+        // ett vindu gjør at operasjonene kjøres i innsendingsrekkefølge
+        SyncProperties syncProperties = new SyncProperties();
+        syncProperties.setJournalEnabled(false);
+        syncProperties.setMaxInFlight(1);
+        syncProperties.setRunBudget(Duration.ofMillis(200));
 
-        // Membership kalles for alle included (én gruppe per user i denne testen)
-        verify(graphGroupService, times(expectedIncluded))
-                .ensureUserInGroupsAsync(anyString(), anyCollection());
+        when(qlikProperties.isCleanupRemoveMemberships()).thenReturn(true);
+        entraCache.addMemberToGroup("groupA-id", "stale-id");
+        for (int i = 1; i <= 7; i++) entraCache.putGuest("user" + i + "@example.com", "entra-user" + i);
+        addUsers(1, 5, null);
 
-        assertThat(expectedIncluded).isLessThan(totalUsers);
-        assertThat(expectedIncluded).isGreaterThan(0);
+        // første skriving bruker opp budsjettet; den neste er allerede sendt inn
+        List<String> addedUserIds = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean slowFirstWrite = new AtomicBoolean(true);
+        doAnswer(inv -> {
+            if (slowFirstWrite.getAndSet(false)) Thread.sleep(400);
+            addedUserIds.add(inv.getArgument(0));
+            entraCache.addMemberToGroup(inv.getArgument(1), inv.getArgument(0));
+            return null;
+        }).when(graphGroupService).addUserToGroup(anyString(), anyString());
+
+        UserSyncService svc = newService(syncProperties, disabledJournal());
+
+        SyncJob first = new SyncJob("test");
+        svc.syncAll(first);
+
+        assertThat(first.status().added()).isEqualTo(2);
+        Set<String> carriedAdds = svc.carryOver().addsByGroupId().get("groupA-id");
+        assertThat(carriedAdds).hasSize(3).doesNotContainAnyElementsOf(addedUserIds);
+        // opprydding startes ikke i en avkuttet kjøring, men tas med videre
+        assertThat(svc.carryOver().removesByGroupId()).containsEntry("groupA-id", Set.of("stale-id"));
+        verify(graphGroupService, never()).removeUserFromGroup(anyString(), anyString());
+
+        // nye brukere i Qlik; neste kjøring har tid nok og starter med det som ble overført
+        addUsers(6, 7, null);
+        syncProperties.setRunBudget(Duration.ofMinutes(10));
+        addedUserIds.clear();
+        svc.syncAll();
+
+        assertThat(addedUserIds.subList(0, 3)).containsExactlyInAnyOrderElementsOf(carriedAdds);
+        assertThat(addedUserIds.subList(3, 5)).containsExactlyInAnyOrder("entra-user6", "entra-user7");
+        verify(graphGroupService).removeUserFromGroup("stale-id", "groupA-id");
+        assertThat(svc.carryOver().isEmpty()).isTrue();
+    }
+
+    @Test
+    void fingerprint_isIndependentOfIterationOrder() {
+        Map<String, Set<String>> a = new LinkedHashMap<>();
+        a.put("x@b.com", new LinkedHashSet<>(List.of("G1", "G2")));
+        a.put("y@b.com", Set.of("G1"));
+        Map<String, Set<String>> b = new LinkedHashMap<>();
+        b.put("y@b.com", Set.of("G1"));
+        b.put("x@b.com", new LinkedHashSet<>(List.of("G2", "G1")));
+
+        assertThat(UserSyncService.fingerprint(a, Set.of("G1", "G2")))
+                .isEqualTo(UserSyncService.fingerprint(b, Set.of("G2", "G1")))
+                .isNotEqualTo(UserSyncService.fingerprint(Map.of("x@b.com", Set.of("G1")), Set.of("G1", "G2")));
+    }
+
+    @Test
+    void syncAll_incrementalRun_onlyTouchesUsersWhoseGroupsChanged(@TempDir Path dir) {
+        SyncProperties syncProperties = journaled(dir);
+        AppliedStateJournal journal = new AppliedStateJournal(syncProperties);
+        journal.load();
+        mapByFirstLetter();
+        addUsers(1, 10, "A_apps");
+        UserSyncService svc = newService(syncProperties, journal);
+
+        // første kjøring er full og journalføres
+        svc.syncAll();
+        verify(graphGroupService, times(10)).addUserToGroup(anyString(), eq("groupA-id"));
+        assertThat(journal.get("user1@example.com"))
+                .isEqualTo(new AppliedStateJournal.Entry("entra-user1@example.com", Set.of("GroupA")));
+
+        // én bruker flyttes, én forsvinner fra Qlik
+        users.getFirst().setAssignedGroups(List.of(assignedGroup("idp", "B_apps")));
+        users.removeLast();
+        clearInvocations(entraCache);
+        svc.syncAll();
+
+        verify(graphGroupService).addUserToGroup("entra-user1@example.com", "groupB-id");
+        verify(graphGroupService).removeUserFromGroup("entra-user1@example.com", "groupA-id");
+        verify(graphGroupService).removeUserFromGroup("entra-user10@example.com", "groupA-id");
+        verify(graphGroupService, times(11)).addUserToGroup(anyString(), anyString());
+        verify(entraCache, never()).memberBitmap(anyString());
+        verify(graphUserService, times(10)).ensureGuestUserId(anyString(), anyString());
+
+        // journalen overlever omstart
+        AppliedStateJournal reloaded = new AppliedStateJournal(syncProperties);
+        reloaded.load();
+        assertThat(reloaded.get("user1@example.com").groupNames()).containsExactly("GroupB");
+        assertThat(reloaded.get("user10@example.com")).isNull();
+        assertThat(reloaded.get("user2@example.com")).isNotNull();
+    }
+
+    @Test
+    void syncAll_incrementalRun_reAddsJournaledMemberMissingFromCache(@TempDir Path dir) {
+        SyncProperties syncProperties = journaled(dir);
+        AppliedStateJournal journal = new AppliedStateJournal(syncProperties);
+        journal.load();
+        mapByFirstLetter();
+        addUsers(1, 3, "A_apps");
+        UserSyncService svc = newService(syncProperties, journal);
+        svc.syncAll();
+
+        // medlemskapet fjernes utenfor synken; journalen sier fortsatt at det er lagt til
+        entraCache.removeMemberFromGroup("groupA-id", "entra-user2@example.com");
+        svc.syncAll();
+
+        verify(graphGroupService, times(2)).addUserToGroup("entra-user2@example.com", "groupA-id");
+        verify(graphGroupService, times(1)).addUserToGroup("entra-user1@example.com", "groupA-id");
+        verify(graphGroupService, times(1)).addUserToGroup("entra-user3@example.com", "groupA-id");
+        verify(graphGroupService, never()).removeUserFromGroup(anyString(), anyString());
+        assertThat(entraCache.isMember("groupA-id", "entra-user2@example.com")).isTrue();
+    }
+
+    @Test
+    void syncAll_streamed_writesPerPageAndReconcilesOnlyAfterCompleteStream() {
+        SyncProperties syncProperties = new SyncProperties();
+        syncProperties.setJournalEnabled(false);
+        syncProperties.setStreamingEnabled(true);
+        syncProperties.setStreamQueuePages(1);
+        when(qlikProperties.isCleanupRemoveMemberships()).thenReturn(true);
+
+        // fem brukere finnes allerede som medlemmer, pluss ett medlem som ikke lenger skal være der
+        for (int i = 1; i <= 5; i++) {
+            entraCache.putGuest("user" + i + "@example.com", "entra-user" + i + "@example.com");
+            entraCache.addMemberToGroup("groupA-id", "entra-user" + i + "@example.com");
+        }
+        entraCache.addMemberToGroup("groupA-id", "stale-id");
+
+        List<List<QlikUser>> pages = pages(250, 100);
+        boolean[] complete = {true};
+        when(qlikUserClient.streamAllUsers(any())).thenAnswer(inv -> {
+            Consumer<List<QlikUser>> onPage = inv.getArgument(0);
+            for (List<QlikUser> page : complete[0] ? pages : pages.subList(0, 1)) onPage.accept(page);
+            return complete[0];
+        });
+        UserSyncService svc = newService(syncProperties, disabledJournal());
+
+        // avbrutt strøm: skriver for første side, men rydder ikke, og kjøringen feiler
+        complete[0] = false;
+        assertThatThrownBy(svc::syncAll).isInstanceOf(IllegalStateException.class);
+        verify(graphGroupService, times(95)).addUserToGroup(anyString(), eq("groupA-id"));
+        verify(graphGroupService, never()).removeUserFromGroup(anyString(), anyString());
+
+        complete[0] = true;
+        clearInvocations(graphGroupService, graphUserService);
+        svc.syncAll();
+
+        verify(qlikUserClient, never()).getAllUsers();
+        verify(graphUserService, times(150)).ensureGuestUserId(anyString(), anyString());
+        verify(graphGroupService, times(150)).addUserToGroup(anyString(), eq("groupA-id"));
+        verify(graphGroupService).removeUserFromGroup("stale-id", "groupA-id");
+        verify(graphGroupService, never()).removeUserFromGroup(startsWith("entra-"), anyString());
+    }
+
+    @Test
+    void syncAll_streamed_carriesOverWorkDroppedMidPage_andNextRunStartsWithIt() {
+        SyncProperties syncProperties = new SyncProperties();
+        syncProperties.setJournalEnabled(false);
+        syncProperties.setStreamingEnabled(true);
+        when(qlikProperties.isCleanupRemoveMemberships()).thenReturn(true);
+
+        // user1-3 finnes som gjester, user4-5 må inviteres
+        for (int i = 1; i <= 3; i++) entraCache.putGuest("user" + i + "@example.com", "entra-user" + i + "@example.com");
+        entraCache.addMemberToGroup("groupA-id", "stale-id");
+        List<List<QlikUser>> pages = pages(5, 5);
+        when(qlikUserClient.streamAllUsers(any())).thenAnswer(inv -> {
+            pages.forEach(inv.<Consumer<List<QlikUser>>>getArgument(0));
+            return true;
+        });
+
+        // avbrytes etter at siden er tatt imot, men før noe er sendt inn
+        SyncJob first = new SyncJob("test");
+        AtomicBoolean cancel = new AtomicBoolean(true);
+        doAnswer(inv -> {
+            if (cancel.getAndSet(false)) first.cancel();
+            return inv.callRealMethod();
+        }).when(entraCache).getGroupIdByDisplayName("GroupA");
+        UserSyncService svc = newService(syncProperties, disabledJournal());
+
+        svc.syncAll(first);
+
+        assertThat(first.status().skipped()).isEqualTo(5);
+        assertThat(first.status().added()).isZero();
+        verify(graphUserService, never()).ensureGuestUserId(anyString(), anyString());
+        verify(graphGroupService, never()).addUserToGroup(anyString(), anyString());
+        verify(graphGroupService, never()).removeUserFromGroup(anyString(), anyString());
+
+        SyncCarryOver carried = svc.carryOver();
+        assertThat(carried.addsByGroupId()).containsEntry("groupA-id",
+                Set.of("entra-user1@example.com", "entra-user2@example.com", "entra-user3@example.com"));
+        assertThat(carried.emailsToInvite()).containsExactlyInAnyOrder("user4@example.com", "user5@example.com");
+        assertThat(carried.groupIdsToPlan()).containsExactly("groupA-id");
+
+        // overførte medlemskap sendes før første side, og ingen legges til to ganger
+        svc.syncAll(new SyncJob("test"));
+
+        verify(graphGroupService, times(5)).addUserToGroup(anyString(), eq("groupA-id"));
+        verify(graphGroupService).addUserToGroup("entra-user1@example.com", "groupA-id");
+        verify(graphUserService, times(2)).ensureGuestUserId(anyString(), anyString());
+        verify(graphGroupService).removeUserFromGroup("stale-id", "groupA-id");
+        assertThat(svc.carryOver().isEmpty()).isTrue();
+    }
+
+    @Test
+    void syncUser_invitesAndAddsOnlyThatUser() {
+        when(graphProperties.getGroupMappings()).thenReturn(List.of("GroupA", "GroupB"));
+        when(mappingService.resolveTargetAadGroupNames(any(QlikUser.class))).thenReturn(Set.of("GroupA", "GroupB"));
+        entraCache.putGroupIdByDisplayName("GroupB", "groupB-id");
+        entraCache.addMemberToGroup("groupB-id", "entra-ny@example.com");
+
+        QlikUser.Interner interner = new QlikUser.Interner();
+        when(qlikUserClient.findUsers("u7"))
+                .thenReturn(List.of(interner.user("u7", "Ny@Example.com", "Ny Ansatt", true, List.of("A_apps"))));
+        when(qlikUserClient.findUsers("u8")).thenReturn(List.of());
+        when(qlikUserClient.hasRecentActivity("u7")).thenReturn(true);
+        UserSyncService svc = newService();
+
+        UserSyncResult result = svc.syncUser("u7");
+
+        assertThat(result.outcome()).isEqualTo(UserSyncResult.Outcome.SYNCED);
+        assertThat(result.userId()).isEqualTo("entra-ny@example.com");
+        assertThat(result.added()).containsExactly("GroupA");
+        assertThat(result.unchanged()).containsExactly("GroupB");
+        verify(graphUserService).ensureGuestUserId("ny@example.com", "Ny Ansatt");
+        verify(graphGroupService).addUserToGroup("entra-ny@example.com", "groupA-id");
+        verify(graphGroupService, never()).removeUserFromGroup(anyString(), anyString());
+        verify(qlikUserClient, never()).getAllUsers();
+
+        assertThat(svc.syncUser("u8").outcome()).isEqualTo(UserSyncResult.Outcome.NOT_FOUND);
+    }
+
+    private UserSyncService newService() {
+        return newService(new SyncProperties(), disabledJournal());
+    }
+
+    private UserSyncService newService(SyncProperties syncProperties, AppliedStateJournal journal) {
+        return new UserSyncService(qlikUserClient, graphUserService, mock(GuestLookupService.class),
+                graphGroupService, new DesiredStateBuilder(mappingService, qlikProperties, graphProperties),
+                new MembershipPlanner(entraCache), qlikProperties, syncProperties, entraCache, journal);
+    }
+
+    /**
+     * Qlik-gruppe "A_..." → GroupA, "B_..." → GroupB, med opprydding på.
+     */
+    private void mapByFirstLetter() {
+        when(graphProperties.getGroupMappings()).thenReturn(List.of("GroupA", "GroupB"));
+        when(qlikProperties.isCleanupRemoveMemberships()).thenReturn(true);
+        when(mappingService.resolveTargetAadGroupNames(any(QlikUser.class))).thenAnswer(inv ->
+                Set.of("Group" + inv.<QlikUser>getArgument(0).groupNames().getFirst().charAt(0)));
+        entraCache.putGroupIdByDisplayName("GroupB", "groupB-id");
+    }
+
+    private void addUsers(int from, int to, String groupName) {
+        for (int i = from; i <= to; i++) users.add(user(i, assignedGroup("idp", groupName)));
+    }
+
+    private static QlikUserDto user(int i, AssignedGroupDto... groups) {
+        QlikUserDto u = new QlikUserDto();
+        u.setId("q" + i);
+        u.setName("User " + i);
+        u.setEmail("user" + i + "@example.com");
+        u.setAssignedGroups(List.of(groups));
+        return u;
+    }
+
+    private static List<List<QlikUser>> pages(int userCount, int pageSize) {
+        QlikUser.Interner interner = new QlikUser.Interner();
+        List<List<QlikUser>> pages = new ArrayList<>();
+        for (int from = 1; from <= userCount; from += pageSize) {
+            List<QlikUser> page = new ArrayList<>();
+            for (int i = from; i < Math.min(userCount + 1, from + pageSize); i++) {
+                page.add(interner.user("q" + i, "user" + i + "@example.com", "User " + i, true, List.of("A_apps")));
+            }
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    private static SyncProperties journaled(Path dir) {
+        SyncProperties props = new SyncProperties();
+        props.setJournalFile(dir.resolve("applied-state.journal"));
+        return props;
+    }
+
+    private static AppliedStateJournal disabledJournal() {
+        SyncProperties props = new SyncProperties();
+        props.setJournalEnabled(false);
+        return new AppliedStateJournal(props);
     }
 
     private static AssignedGroupDto assignedGroup(String providerType) {
+        return assignedGroup(providerType, null);
+    }
+
+    private static AssignedGroupDto assignedGroup(String providerType, String name) {
         AssignedGroupDto g = new AssignedGroupDto();
         g.setProviderType(providerType);
+        g.setName(name);
         return g;
     }
 }
@@ -0,0 +1,46 @@
+package no.novari.qliktosharepoint.service;
+
+import no.novari.qliktosharepoint.config.SyncProperties;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class WebhookSyncQueueTest {
+
+    @Test
+    void drain_coalescesBurstsPerUser_andCollapsesGroupEventsIntoOneFullRun() {
+        UserSyncService service = mock(UserSyncService.class);
+        UserSyncScheduler scheduler = mock(UserSyncScheduler.class);
+        when(service.syncUser(anyString())).thenAnswer(inv -> UserSyncResult.of(
+                UserSyncResult.Outcome.SYNCED, inv.getArgument(0), null, System.nanoTime()));
+        when(scheduler.submit("webhook")).thenReturn(new UserSyncScheduler.Submission(new SyncJob("webhook"), true));
+
+        SyncProperties props = new SyncProperties();
+        props.setWebhookDebounce(Duration.ofHours(1));
+        WebhookSyncQueue queue = new WebhookSyncQueue(service, scheduler, props);
+
+        // innenfor debounce-vinduet skjer ingenting
+        queue.enqueueUser("u1");
+        queue.drain();
+        verifyNoInteractions(service);
+
+        props.setWebhookDebounce(Duration.ZERO);
+        queue.enqueueUser("u1");
+        queue.enqueueUser(" u1 ");
+        queue.enqueueUser("u2");
+        queue.enqueueFullRun();
+        queue.enqueueFullRun();
+        assertThat(queue.pending()).isEqualTo(3);
+
+        queue.drain();
+
+        verify(service, times(1)).syncUser("u1");
+        verify(service, times(1)).syncUser("u2");
+        verify(scheduler, times(1)).submit("webhook");
+        assertThat(queue.pending()).isZero();
+    }
+}